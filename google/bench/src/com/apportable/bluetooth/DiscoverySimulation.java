@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Time from "start searching" to a connected server, simulated on a virtual
+ * clock: DiscoveryEngine against the discovery loop it replaced, over a few
+ * typical rooms.
+ *
+ * The radio model is coarse but based on how Android behaves. An inquiry runs
+ * ~12 s and each nearby device answers once, mostly within the first couple
+ * of seconds. A connect to a present host takes 1-2 s and succeeds more often
+ * the stronger its signal. A connect to an absent host fails after the 5 s
+ * page timeout. The old loop restarted discovery every 10 s if it had
+ * stopped, and connected to the first matching name it heard; it is modelled
+ * without the service bug that made its retries fail.
+ *
+ * Not a JMH benchmark, since it measures simulated time:
+ *
+ *     java -cp ... com.apportable.bluetooth.DiscoverySimulation [runs]
+ */
+public final class DiscoverySimulation {
+    private static final String SERVICE = "game";
+
+    private static final long INQUIRY_MILLIS = 12000;
+
+    private static final long PAGE_TIMEOUT_MILLIS = 5120;
+
+    private static final long LEGACY_LOOP_MILLIS = 10000;
+
+    private static final long GIVE_UP_MILLIS = 120000;
+
+    private static final int BYSTANDERS = 6;
+
+    private static final class SimHost {
+        final String mAddress;
+
+        final boolean mPresent;
+
+        final int mRssi;
+
+        SimHost(String address, boolean present, int rssi) {
+            mAddress = address;
+            mPresent = present;
+            mRssi = rssi;
+        }
+    }
+
+    private static final class Scenario {
+        final String mName;
+
+        final SimHost[] mHosts;
+
+        final String mLastHost;
+
+        final boolean mBonded;
+
+        Scenario(String name, String lastHost, boolean bonded, SimHost... hosts) {
+            mName = name;
+            mHosts = hosts;
+            mLastHost = lastHost;
+            mBonded = bonded;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long mTime;
+
+        final long mSeq;
+
+        final Runnable mAction;
+
+        Event(long time, long seq, Runnable action) {
+            mTime = time;
+            mSeq = seq;
+            mAction = action;
+        }
+
+        public int compareTo(Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSeq < other.mSeq ? -1 : (mSeq == other.mSeq ? 0 : 1);
+        }
+    }
+
+    /**
+     * The radio and the clock for one run.
+     */
+    private abstract static class World {
+        final Scenario mScenario;
+
+        final Random mRandom;
+
+        final HashMap<String, SimHost> mByAddress = new HashMap<String, SimHost>();
+
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+
+        private long mSeq;
+
+        long mNow;
+
+        long mConnectedAt = -1;
+
+        // Bumped by every start or cancel, so that a stale inquiry's
+        // responses are dropped.
+        int mInquiry;
+
+        boolean mDiscovering;
+
+        World(Scenario scenario, Random random) {
+            mScenario = scenario;
+            mRandom = random;
+            for (SimHost host : scenario.mHosts) {
+                mByAddress.put(host.mAddress, host);
+            }
+        }
+
+        void at(long time, Runnable action) {
+            mEvents.add(new Event(time, mSeq++, action));
+        }
+
+        long run() {
+            start();
+            while (mConnectedAt < 0 && !mEvents.isEmpty()) {
+                Event event = mEvents.poll();
+                if (event.mTime > GIVE_UP_MILLIS) {
+                    break;
+                }
+                mNow = event.mTime;
+                event.mAction.run();
+                afterEvent();
+            }
+            return mConnectedAt;
+        }
+
+        abstract void start();
+
+        void afterEvent() {
+        }
+
+        abstract void found(String address, String name, int rssi);
+
+        abstract void inquiryFinished();
+
+        abstract void connected(String address, boolean success);
+
+        void startInquiry() {
+            if (mDiscovering) {
+                return;
+            }
+            mDiscovering = true;
+            final int inquiry = ++mInquiry;
+            List<SimHost> responders = new ArrayList<SimHost>();
+            for (SimHost host : mScenario.mHosts) {
+                if (host.mPresent) {
+                    responders.add(host);
+                }
+            }
+            for (int i = 0; i < BYSTANDERS; i++) {
+                responders.add(new SimHost("bystander-" + i, true, -70));
+            }
+            for (final SimHost host : responders) {
+                long delay = Math.min((long) (-1500 * Math.log(1 - mRandom.nextDouble())), INQUIRY_MILLIS - 1);
+                final int rssi = host.mRssi + (int) Math.round(mRandom.nextGaussian() * 4);
+                at(mNow + delay, new Runnable() {
+                    public void run() {
+                        if (inquiry == mInquiry) {
+                            boolean server = host.mAddress.startsWith("server");
+                            found(host.mAddress, server ? "phone-" + SERVICE : "headset", rssi);
+                        }
+                    }
+                });
+            }
+            at(mNow + INQUIRY_MILLIS, new Runnable() {
+                public void run() {
+                    if (inquiry == mInquiry) {
+                        mDiscovering = false;
+                        inquiryFinished();
+                    }
+                }
+            });
+        }
+
+        void cancelInquiry() {
+            if (mDiscovering) {
+                mDiscovering = false;
+                mInquiry++;
+                // Android reports a cancelled inquiry as finished too.
+                at(mNow, new Runnable() {
+                    public void run() {
+                        inquiryFinished();
+                    }
+                });
+            }
+        }
+
+        void startConnect(final String address) {
+            cancelInquiry();
+            SimHost host = mByAddress.get(address);
+            final boolean success;
+            long latency;
+            if (host == null || !host.mPresent) {
+                success = false;
+                latency = PAGE_TIMEOUT_MILLIS;
+            } else {
+                double chance = Math.max(0.1, Math.min(0.98, (host.mRssi + 95) / 25.0));
+                success = mRandom.nextDouble() < chance;
+                latency = success ? 1000 + mRandom.nextInt(1000) : 2000 + mRandom.nextInt(2000);
+            }
+            at(mNow + latency, new Runnable() {
+                public void run() {
+                    if (success) {
+                        mConnectedAt = mNow;
+                    }
+                    connected(address, success);
+                }
+            });
+        }
+    }
+
+    /**
+     * BluetoothConnectionManager before DiscoveryEngine.
+     */
+    private static final class LegacyWorld extends World {
+        LegacyWorld(Scenario scenario, Random random) {
+            super(scenario, random);
+        }
+
+        void start() {
+            loop();
+        }
+
+        private void loop() {
+            startInquiry();
+            at(mNow + LEGACY_LOOP_MILLIS, new Runnable() {
+                public void run() {
+                    loop();
+                }
+            });
+        }
+
+        void found(String address, String name, int rssi) {
+            if (name.endsWith(SERVICE)) {
+                startConnect(address);
+            }
+        }
+
+        void inquiryFinished() {
+        }
+
+        void connected(String address, boolean success) {
+        }
+    }
+
+    private static final class EngineWorld extends World implements DiscoveryEngine.Actions {
+        final DiscoveryEngine mEngine;
+
+        private long mWakeAt = DiscoveryEngine.NEVER;
+
+        EngineWorld(Scenario scenario, Random random) {
+            super(scenario, random);
+            final String lastHost = scenario.mLastHost;
+            mEngine = new DiscoveryEngine(SERVICE, this, new DiscoveryEngine.HostStore() {
+                public String getLastHost() {
+                    return lastHost;
+                }
+
+                public void putLastHost(String address) {
+                }
+            });
+            if (scenario.mBonded) {
+                for (SimHost host : scenario.mHosts) {
+                    mEngine.addBondedHost(host.mAddress, "phone-" + SERVICE);
+                }
+            }
+        }
+
+        void start() {
+            mEngine.begin(mNow);
+            afterEvent();
+        }
+
+        void afterEvent() {
+            mEngine.poll(mNow);
+            long next = mEngine.nextPollMillis();
+            if (next != DiscoveryEngine.NEVER && (mWakeAt <= mNow || next < mWakeAt)) {
+                mWakeAt = Math.max(next, mNow);
+                at(mWakeAt, new Runnable() {
+                    public void run() {
+                    }
+                });
+            }
+        }
+
+        void found(String address, String name, int rssi) {
+            mEngine.onDeviceFound(address, name, rssi, mNow);
+        }
+
+        void inquiryFinished() {
+            mEngine.onScanFinished(mNow);
+        }
+
+        void connected(String address, boolean success) {
+            mEngine.onConnectResult(address, success, mNow);
+        }
+
+        public void startScan() {
+            startInquiry();
+        }
+
+        public void cancelScan() {
+            cancelInquiry();
+        }
+
+        public void connect(String address) {
+            startConnect(address);
+        }
+    }
+
+    private static String summarize(long[] times) {
+        Arrays.sort(times);
+        int failed = 0;
+        long sum = 0;
+        for (long time : times) {
+            if (time < 0) {
+                failed++;
+            } else {
+                sum += time;
+            }
+        }
+        long[] connected = Arrays.copyOfRange(times, failed, times.length);
+        if (connected.length == 0) {
+            return "never connected";
+        }
+        return String.format("mean %6.1f s  p50 %5.1f s  p90 %5.1f s  p99 %5.1f s  gave up %4.1f%%",
+                sum / 1000.0 / connected.length,
+                connected[connected.length / 2] / 1000.0,
+                connected[(int) (connected.length * 0.9)] / 1000.0,
+                connected[(int) (connected.length * 0.99)] / 1000.0,
+                100.0 * failed / times.length);
+    }
+
+    public static void main(String[] args) {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Scenario[] scenarios = {
+            new Scenario("one host, first time", null, false,
+                    new SimHost("server-a", true, -60)),
+            new Scenario("three hosts, two weak", null, false,
+                    new SimHost("server-a", true, -86), new SimHost("server-b", true, -82),
+                    new SimHost("server-c", true, -58)),
+            new Scenario("last host present", "server-a", false,
+                    new SimHost("server-a", true, -60)),
+            new Scenario("bonded host present", null, true,
+                    new SimHost("server-a", true, -60)),
+            new Scenario("last host gone, another present", "server-gone", false,
+                    new SimHost("server-gone", false, -60), new SimHost("server-b", true, -60)),
+        };
+        for (Scenario scenario : scenarios) {
+            long[] legacy = new long[runs];
+            long[] engine = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                legacy[i] = new LegacyWorld(scenario, new Random(i)).run();
+                engine[i] = new EngineWorld(scenario, new Random(i)).run();
+            }
+            System.out.println(scenario.mName);
+            System.out.println("  discovery loop   " + summarize(legacy));
+            System.out.println("  DiscoveryEngine  " + summarize(engine));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a received message costs once it reaches the app process.
+ * Connection's callback either hands the bytes to an OnBytesReceivedListener
+ * or decodes a String for an OnMessageReceivedListener, and
+ * BluetoothConnectionManager copies the bytes into its direct buffer for the
+ * native upcall. Connection itself needs a Context, so the listener
+ * dispatch is reproduced here step for step.
+ *
+ * The batch* benchmarks cover receive batching, BATCH messages at a time and
+ * reported per message: gathering them in ReceiveBatcher, handing the packed
+ * batch to the native upcall in one copy, and unpacking it for per-message
+ * listeners. The Binder transaction each batch saves is not in here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatchBenchmark {
+    private static final int BATCH = 16;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int payloadSize;
+
+    private byte[] mMessage;
+
+    private ByteBuffer mReceiveBuffer;
+
+    private Connection.OnBytesReceivedListener mBytesListener;
+
+    private Connection.OnMessageReceivedListener mStringListener;
+
+    private Blackhole mBlackhole;
+
+    private byte[] mBatchData;
+
+    private int[] mBatchLengths;
+
+    private ReceiveBatcher mBatcher;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        mMessage = new byte[payloadSize];
+        mReceiveBuffer = ByteBuffer.allocateDirect(payloadSize * BATCH);
+        mBlackhole = bh;
+        mBytesListener = new Connection.OnBytesReceivedListener() {
+            public void OnBytesReceived(String device, byte[] message) {
+                ByteBuffer data = mReceiveBuffer;
+                data.clear();
+                data.put(message);
+                data.flip();
+                mBlackhole.consume(data);
+            }
+        };
+        mStringListener = new Connection.OnMessageReceivedListener() {
+            public void OnMessageReceived(String device, String message) {
+                mBlackhole.consume(message);
+            }
+        };
+        mBatchData = new byte[payloadSize * BATCH];
+        mBatchLengths = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            mBatchLengths[i] = payloadSize;
+        }
+        mBatcher = new ReceiveBatcher(new ReceiveBatcher.Sink() {
+            public void deliver(String device, byte[] data, int[] lengths) {
+                mBlackhole.consume(data);
+            }
+        });
+        // Long enough that only the explicit flush delivers.
+        mBatcher.setPolicy(Integer.MAX_VALUE, payloadSize * BATCH + 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBatcher.close();
+    }
+
+    @Benchmark
+    public void bytesToDirectBuffer() {
+        mBytesListener.OnBytesReceived("00:11:22:33:44:55", mMessage);
+    }
+
+    @Benchmark
+    public void bytesToString() {
+        mStringListener.OnMessageReceived("00:11:22:33:44:55", new String(mMessage));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batchGather() {
+        for (int i = 0; i < BATCH; i++) {
+            mBatcher.add("00:11:22:33:44:55", mMessage, 0, mMessage.length);
+        }
+        mBatcher.flush("00:11:22:33:44:55");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batchToDirectBuffer() {
+        ByteBuffer data = mReceiveBuffer;
+        data.clear();
+        data.put(mBatchData);
+        data.flip();
+        mBlackhole.consume(data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batchUnpacked() {
+        int offset = 0;
+        for (int length : mBatchLengths) {
+            byte[] message = new byte[length];
+            System.arraycopy(mBatchData, offset, message, 0, length);
+            offset += length;
+            mBytesListener.OnBytesReceived("00:11:22:33:44:55", message);
+        }
+    }
+}
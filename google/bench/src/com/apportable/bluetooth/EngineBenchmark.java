@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The engine's send, broadcast and bookkeeping paths with 1 to 7 connected
+ * peers over PipeTransport. roundTrip runs in SampleTime mode, so its result
+ * carries the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EngineBenchmark {
+    // Enough to keep every writer busy without letting queues grow without bound.
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    @Param({"1", "2", "4", "7"})
+    public int peers;
+
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    private LoopbackHarness mHarness;
+
+    private byte[] mPayload;
+
+    private final Semaphore mEchoed = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        mPayload = new byte[payloadSize];
+        final ConnectionEngine[] server = new ConnectionEngine[1];
+        mHarness = new LoopbackHarness(peers, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                server[0].sendMessage(device, message.toByteArray());
+                message.release();
+            }
+        }, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                message.release();
+                mEchoed.release();
+            }
+        });
+        server[0] = mHarness.server;
+        mHarness.server.setOverflowPolicy(Connection.OVERFLOW_BLOCK, MAX_QUEUED_BYTES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Benchmark
+    public String getConnections() {
+        return mHarness.server.getConnections();
+    }
+
+    @Benchmark
+    public String[] getConnectionList() {
+        return mHarness.server.getConnectionList();
+    }
+
+    @Benchmark
+    public int broadcast() {
+        return mHarness.server.broadcastMessage(mPayload, null, null);
+    }
+
+    @Benchmark
+    public int sendToOnePeer() {
+        return mHarness.server.sendMessage(mHarness.clientAddresses[0], mPayload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        mHarness.clients[0].sendMessage(mHarness.serverAddress, mPayload);
+        mEchoed.acquire();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A server offering updates to one client several times as fast as the
+ * client can handle them, with the client's receive window off (window 0) or at 4 and
+ * 16 KB. Each operation is one update offered; one refused with
+ * WOULD_BLOCK is shed, the way a game drops a stale update. delivered and
+ * shed count updates per second, and ageMicros is the mean time from
+ * sendMessage() to the client handling an update, which without a window
+ * grows with the queue for as long as the run lasts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class FlowControlBenchmark {
+    private static final long SEND_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // What the client spends on each update; well over the send interval
+    // even where parkNanos() sleeps a few times longer than asked.
+    private static final long RECEIVE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int UPDATE_SIZE = 64;
+
+    @Param({"0", "4096", "16384"})
+    public int window;
+
+    private LoopbackHarness mHarness;
+
+    private String mClient;
+
+    private final byte[] mUpdate = new byte[UPDATE_SIZE];
+
+    private final AtomicLong mDelivered = new AtomicLong();
+
+    private final AtomicLong mTotalAgeNanos = new AtomicLong();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long delivered;
+
+        public long shed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            delivered = 0;
+            shed = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Age {
+        public long ageMicros;
+
+        private long mDeliveredBefore;
+
+        private long mAgeNanosBefore;
+
+        @Setup(Level.Iteration)
+        public void reset(FlowControlBenchmark benchmark) {
+            ageMicros = 0;
+            mDeliveredBefore = benchmark.mDelivered.get();
+            mAgeNanosBefore = benchmark.mTotalAgeNanos.get();
+        }
+    }
+
+    private final class SlowClient extends LoopbackHarness.QuietCallback {
+        public void messageReceived(String device, BufferPool.Buffer message) {
+            long sentNanos = LinkClock.getLong(message.getData(), 0);
+            message.release();
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < RECEIVE_NANOS) {
+                // The game working through the update.
+            }
+            mTotalAgeNanos.addAndGet(System.nanoTime() - sentNanos);
+            mDelivered.incrementAndGet();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        mHarness = new LoopbackHarness(1, new LoopbackHarness.QuietCallback(), new SlowClient());
+        mClient = mHarness.clientAddresses[0];
+        // The client grants credit once the first update reaches it.
+        mHarness.clients[0].setReceiveWindow(window);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Benchmark
+    public void offer(Counters counters, Age age) {
+        long deliveredBefore = mDelivered.get();
+        LinkClock.putLong(mUpdate, 0, System.nanoTime());
+        if (mHarness.server.sendMessage(mClient, mUpdate) == Connection.WOULD_BLOCK) {
+            counters.shed++;
+        }
+        LockSupport.parkNanos(SEND_INTERVAL_NANOS);
+        counters.delivered += mDelivered.get() - deliveredBefore;
+        long delivered = mDelivered.get() - age.mDeliveredBefore;
+        if (delivered > 0) {
+            age.ageMicros = (mTotalAgeNanos.get() - age.mAgeNanosBefore) / delivered / 1000;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of putting a message on the wire and taking it off again:
+ * WireFormat encoding, the String conversion sendMessage(String) does, and the
+ * FrameReader loop in BtStreamWatcher. The legacy* methods reproduce the
+ * zero-terminated String protocol the framing replaced, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameBenchmark {
+    private static final int FRAMES = 64;
+
+    // RFCOMM rarely hands back more than one L2CAP MTU per read.
+    private static final int READ_CHUNK = 1008;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+
+    private String mMessage;
+
+    private byte[] mFramedStream;
+
+    private byte[][] mLegacyMessages;
+
+    @Setup
+    public void setup() throws IOException {
+        // Game traffic is Base64-ish text today; keep it printable so the
+        // legacy zero terminator still works.
+        Random random = new Random(42);
+        char[] chars = new char[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            chars[i] = (char) ('A' + random.nextInt(26));
+        }
+        mMessage = new String(chars);
+        mPayload = mMessage.getBytes();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        mLegacyMessages = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            stream.write(WireFormat.encode(0, mPayload));
+            mLegacyMessages[i] = legacyEncode();
+        }
+        mFramedStream = stream.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeBytes() {
+        return WireFormat.encode(0, mPayload);
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return WireFormat.encode(0, mMessage.getBytes());
+    }
+
+    @Benchmark
+    public byte[] legacyEncode() {
+        byte[] stringAsBytes = (mMessage + " ").getBytes();
+        stringAsBytes[stringAsBytes.length - 1] = 0;
+        return stringAsBytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(Blackhole bh) throws IOException {
+        FrameReader reader = new FrameReader(new ChunkedInputStream(mFramedStream, READ_CHUNK));
+        while (reader.next()) {
+            bh.consume(reader.copyPayload());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void legacyDecode(Blackhole bh) throws IOException {
+        int bufferSize = 1024;
+        byte[] buffer = new byte[bufferSize];
+        for (int m = 0; m < FRAMES; m++) {
+            // The old reader only worked when reads never straddled two
+            // messages, so feed it one message at a time.
+            InputStream instream = new ChunkedInputStream(mLegacyMessages[m], bufferSize);
+            String message = "";
+            int bytesRead = instream.read(buffer);
+            while ((bytesRead == bufferSize) && (buffer[bufferSize - 1] != 0)) {
+                message = message + new String(buffer, 0, bytesRead);
+                bytesRead = instream.read(buffer);
+            }
+            message = message + new String(buffer, 0, bytesRead - 1);
+            bh.consume(message);
+        }
+    }
+
+    static final class ChunkedInputStream extends InputStream {
+        private final byte[] mData;
+
+        private final int mChunk;
+
+        private int mPos;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            mData = data;
+            mChunk = chunk;
+        }
+
+        public int read() {
+            return mPos < mData.length ? mData[mPos++] & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (mPos >= mData.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, mChunk), mData.length - mPos);
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server ConnectionEngine and a number of clients connected to it over
+ * PipeTransport, all in this JVM. Every harness gets fresh addresses so
+ * several can exist at once.
+ */
+final class LoopbackHarness {
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    final ConnectionEngine server;
+
+    final String serverAddress;
+
+    final ConnectionEngine[] clients;
+
+    final String[] clientAddresses;
+
+    LoopbackHarness(int clientCount, ConnectionEngine.Callback serverCallback,
+            ConnectionEngine.Callback clientCallback) throws InterruptedException {
+        int id = sNextId.incrementAndGet();
+        serverAddress = "server-" + id;
+        server = new ConnectionEngine(new PipeTransport(serverAddress, serverAddress), null);
+        server.setCallback(serverCallback);
+        server.startServer("bench", clientCount);
+        clients = new ConnectionEngine[clientCount];
+        clientAddresses = new String[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clientAddresses[i] = "client-" + id + "-" + i;
+            clients[i] = new ConnectionEngine(new PipeTransport(clientAddresses[i], clientAddresses[i]), null);
+            clients[i].setCallback(clientCallback);
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            // The server only listens on its next slot once the previous
+            // client has been accepted, so wait for it rather than letting
+            // FastConnector probe and back off.
+            while (clients[i].getTransport().getAdvertisedServices(serverAddress, 0).isEmpty()) {
+                checkDeadline(deadline, i);
+                Thread.sleep(1);
+            }
+            if (clients[i].connect(serverAddress) != Connection.SUCCESS) {
+                throw new IllegalStateException("Client " + i + " could not connect");
+            }
+            while (connectionCount() < i + 1) {
+                checkDeadline(deadline, i);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void checkDeadline(long deadline, int client) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Client " + client + " could not connect");
+        }
+    }
+
+    private int connectionCount() {
+        return server.getConnectionList().length;
+    }
+
+    void shutdown() {
+        for (ConnectionEngine client : clients) {
+            client.shutdown();
+        }
+        server.stopServer();
+        server.shutdown();
+    }
+
+    /**
+     * Callback that ignores everything; subclass what a benchmark needs.
+     */
+    static class QuietCallback implements ConnectionEngine.Callback {
+        public void incomingConnection(String device) {
+        }
+
+        public void maxConnectionsReached() {
+        }
+
+        public void messageReceived(String device, BufferPool.Buffer message) {
+            message.release();
+        }
+
+        public void connectionLost(String device) {
+        }
+
+        public void socketIOException() {
+        }
+
+        public void linkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros) {
+        }
+
+        public void snapshotReceived(String device, int seq, byte[] snapshot) {
+        }
+
+        public void channelMessageReceived(String device, int channel, BufferPool.Buffer message) {
+            message.release();
+        }
+
+        public void tick(long tick) {
+        }
+
+        public void writable(String device) {
+        }
+
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes) {
+        }
+
+        public void transferReceived(String device, int transferId, String name, File file) {
+            file.delete();
+        }
+
+        public void transferFailed(String device, int transferId, boolean incoming) {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One message in and one read of the same size out, with backlog bytes
+ * already buffered ahead of them, for ReadQueue and for a buffer that is
+ * trimmed from the front the way the native NSMutableData receive buffer
+ * was (replaceBytesInRange:withBytes:NULL length:0 moves everything
+ * after the range down).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReadQueueBenchmark {
+    @Param({"0", "65536", "1048576"})
+    public int backlog;
+
+    @Param({"64"})
+    public int messageSize;
+
+    private byte[] mMessage;
+
+    private ByteBuffer mOut;
+
+    private ReadQueue mQueue;
+
+    private byte[] mTrimmed;
+
+    private int mTrimmedLength;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mMessage = new byte[messageSize];
+        mOut = ByteBuffer.allocateDirect(messageSize);
+        byte[] backlogBytes = new byte[backlog];
+        mQueue = new ReadQueue();
+        mQueue.append(backlogBytes, 0, backlog);
+        mTrimmed = new byte[backlog + messageSize];
+        mTrimmedLength = backlog;
+    }
+
+    @Benchmark
+    public ByteBuffer ringBuffer() {
+        mQueue.append(mMessage, 0, messageSize);
+        mQueue.request(messageSize, 0, 0);
+        mQueue.nextReady();
+        mOut.clear();
+        mQueue.take(mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public ByteBuffer frontTrimmed() {
+        System.arraycopy(mMessage, 0, mTrimmed, mTrimmedLength, messageSize);
+        mTrimmedLength += messageSize;
+        mOut.clear();
+        mOut.put(mTrimmed, 0, messageSize);
+        mTrimmedLength -= messageSize;
+        System.arraycopy(mTrimmed, messageSize, mTrimmed, 0, mTrimmedLength);
+        return mOut;
+    }
+}
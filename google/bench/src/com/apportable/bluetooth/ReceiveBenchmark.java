@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One peer's read loop: frames read off the socket, decoded and handed to
+ * the callback in pooled buffers, for plain, channel and compressed
+ * messages.
+ *
+ * The callback runs on the reader thread and reads that thread's allocation
+ * counter, so readerBytes counts every byte the read loop allocated between
+ * two messages, sender and benchmark threads excluded. Once warmed up that
+ * should be 0, and a measurement iteration in which it is not fails the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiveBenchmark {
+    private static final int CHANNEL = 1;
+
+    private static final com.sun.management.ThreadMXBean sThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Param({"message", "channel", "compressed"})
+    public String path;
+
+    @Param({"16", "1024", "16384"})
+    public int payloadSize;
+
+    private LoopbackHarness mHarness;
+
+    private ConnectionEngine mClient;
+
+    private byte[] mPayload;
+
+    private final Semaphore mReceived = new Semaphore(0);
+
+    // Written by the reader thread before it releases mReceived.
+    private long mLastAllocated = -1;
+
+    private long mAllocatedSinceLast;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocations {
+        public long readerBytes;
+
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            readerBytes = 0;
+            messages = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void check(IterationParams params) {
+            if (params.getType() == IterationType.MEASUREMENT && readerBytes != 0) {
+                throw new IllegalStateException("Read loop allocated " + readerBytes + " bytes for "
+                        + messages + " messages");
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        mPayload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            // Compressible, so that the compressed path really inflates.
+            mPayload[i] = (byte) ('a' + i % 7);
+        }
+        mHarness = new LoopbackHarness(1, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                message.release();
+                received();
+            }
+
+            public void channelMessageReceived(String device, int channel, BufferPool.Buffer message) {
+                message.release();
+                received();
+            }
+        }, new LoopbackHarness.QuietCallback());
+        mClient = mHarness.clients[0];
+        if (path.equals("channel")) {
+            mClient.openChannel(CHANNEL, Connection.DEFAULT_PRIORITY, Connection.DELIVERY_RELIABLE);
+        } else if (path.equals("compressed")) {
+            mClient.setCompression(Connection.COMPRESSION_ON, 0);
+        }
+    }
+
+    private void received() {
+        long allocated = sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        mAllocatedSinceLast = mLastAllocated < 0 ? 0 : allocated - mLastAllocated;
+        mLastAllocated = allocated;
+        mReceived.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Benchmark
+    public void receive(Allocations allocations) throws InterruptedException {
+        if (path.equals("channel")) {
+            mClient.sendChannelMessage(mHarness.serverAddress, CHANNEL, mPayload);
+        } else {
+            mClient.sendMessage(mHarness.serverAddress, mPayload);
+        }
+        mReceived.acquire();
+        allocations.readerBytes += mAllocatedSinceLast;
+        allocations.messages++;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What each relay hop costs, over PipeTransport: a chain of hops links from
+ * a leaf client through hops - 1 relays to the server, all in relay mode.
+ * With hops = 1 the leaf is connected to the server directly and messages
+ * go as plain frames, the baseline for the others.
+ *
+ * roundTrip sends a message from the leaf to the server, which echoes it
+ * back, in SampleTime mode. throughput streams BATCH messages from the leaf
+ * and waits for the server to have them all, and reports messages per
+ * second. Neither includes RFCOMM's own per-hop latency, which a phone adds
+ * on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RelayBenchmark {
+    private static final int BATCH = 256;
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    @Param({"1", "2", "3"})
+    public int hops;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    // chain[0] is the server and chain[hops] the leaf.
+    private ConnectionEngine[] mChain;
+
+    private String mServerAddress;
+
+    private byte[] mPayload;
+
+    private final Semaphore mEchoed = new Semaphore(0);
+
+    private final Semaphore mReceived = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        mPayload = new byte[payloadSize];
+        int id = sNextId.incrementAndGet();
+        mChain = new ConnectionEngine[hops + 1];
+        String[] addresses = new String[hops + 1];
+        for (int i = 0; i <= hops; i++) {
+            addresses[i] = "relay-" + id + "-" + i;
+            mChain[i] = new ConnectionEngine(new PipeTransport(addresses[i], addresses[i]), null);
+            mChain[i].setRelay(true);
+            mChain[i].setCallback(new LoopbackHarness.QuietCallback());
+        }
+        mServerAddress = addresses[0];
+        final ConnectionEngine server = mChain[0];
+        server.setCallback(new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                if (message.getData()[0] != 0) {
+                    server.sendMessage(device, message.toByteArray());
+                }
+                message.release();
+                mReceived.release();
+            }
+        });
+        mChain[hops].setCallback(new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                message.release();
+                mEchoed.release();
+            }
+        });
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        for (int i = 1; i <= hops; i++) {
+            mChain[i - 1].startServer("bench", 1);
+            while (mChain[i].getTransport().getAdvertisedServices(addresses[i - 1], 0).isEmpty()) {
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+            if (mChain[i].connect(addresses[i - 1]) != Connection.SUCCESS) {
+                throw new IllegalStateException("Hop " + i + " could not connect");
+            }
+        }
+        // The server and the leaf must have heard of each other before they
+        // can talk.
+        String leaf = addresses[hops];
+        while (mChain[0].getConnectionList().length == 0
+                || (hops > 1 && (!Arrays.asList(mChain[0].getRoutedDevices()).contains(leaf)
+                        || !Arrays.asList(mChain[hops].getRoutedDevices()).contains(mServerAddress)))) {
+            checkDeadline(deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Relay chain did not come up");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = mChain.length - 1; i >= 0; i--) {
+            mChain[i].shutdown();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        mPayload[0] = 1;
+        mChain[hops].sendMessage(mServerAddress, mPayload);
+        mEchoed.acquire();
+        mReceived.acquire();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException {
+        // A first byte of 0 asks the server not to echo.
+        mPayload[0] = 0;
+        ConnectionEngine leaf = mChain[hops];
+        for (int i = 0; i < BATCH; i++) {
+            leaf.sendMessage(mServerAddress, mPayload);
+        }
+        mReceived.acquire(BATCH);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovering from a dropout in the middle of a burst: the link to the server
+ * breaks under both ends (PipeTransport.dropConnections()), the client sends
+ * BURST messages, and the operation ends once the server has them.
+ *
+ * With "resume" the engines bridge the dropout themselves and every message
+ * arrives, in order, without connectionLost. With "reconnect" resume is off
+ * and the app does what it had to before: wait for connectionLost, listen
+ * and connect again, and send what is left; the messages sent before the
+ * client noticed are gone, and lostMessages counts them. Neither includes
+ * rediscovery, which the old path also paid on a phone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class ResumeBenchmark {
+    private static final int BURST = 64;
+
+    private static final int GRACE_MILLIS = 5000;
+
+    @Param({"resume", "reconnect"})
+    public String mode;
+
+    private LoopbackHarness mHarness;
+
+    private ConnectionEngine mClient;
+
+    private final Semaphore mReceived = new Semaphore(0);
+
+    private final Semaphore mServerLost = new Semaphore(0);
+
+    private final Semaphore mClientLost = new Semaphore(0);
+
+    // Next message number the server expects; reader thread only.
+    private int mExpected;
+
+    private volatile boolean mOutOfOrder;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Losses {
+        public long lostMessages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lostMessages = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        mHarness = new LoopbackHarness(1, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                int seq = message.getData()[0] & 0xFF;
+                message.release();
+                if (seq != (mExpected & 0xFF)) {
+                    mOutOfOrder = true;
+                }
+                mExpected++;
+                mReceived.release();
+            }
+
+            public void connectionLost(String device) {
+                mServerLost.release();
+            }
+        }, new LoopbackHarness.QuietCallback() {
+            public void connectionLost(String device) {
+                mClientLost.release();
+            }
+        });
+        mClient = mHarness.clients[0];
+        int grace = mode.equals("resume") ? GRACE_MILLIS : 0;
+        mHarness.server.setSessionResume(grace, 0);
+        mClient.setSessionResume(grace, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHarness.shutdown();
+        if (mOutOfOrder) {
+            throw new IllegalStateException("Messages arrived out of order");
+        }
+    }
+
+    @Benchmark
+    public void dropout(Losses losses) throws InterruptedException {
+        String server = mHarness.serverAddress;
+        PipeTransport.dropConnections(server);
+        byte[][] messages = new byte[BURST][];
+        for (int i = 0; i < BURST; i++) {
+            messages[i] = new byte[] {(byte) (mExpected + i)};
+        }
+        if (mode.equals("resume")) {
+            for (byte[] message : messages) {
+                mClient.sendMessage(server, message);
+            }
+            mReceived.acquire(BURST);
+            return;
+        }
+        // What is sent before the client notices the dropout is lost.
+        int sent = 0;
+        while (sent < BURST && mClient.sendMessage(server, messages[sent]) == Connection.SUCCESS) {
+            sent++;
+        }
+        mClientLost.acquire();
+        mServerLost.acquire();
+        mHarness.server.startServer("bench", 1);
+        while (mClient.connect(server) != Connection.SUCCESS) {
+            Thread.sleep(1);
+        }
+        int delivered = mReceived.drainPermits();
+        losses.lostMessages += sent - delivered;
+        mExpected += sent - delivered;
+        for (int i = sent; i < BURST; i++) {
+            mClient.sendMessage(server, messages[i]);
+        }
+        mReceived.acquire(BURST - sent);
+    }
+}
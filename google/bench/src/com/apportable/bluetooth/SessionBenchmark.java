@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two sessions between the same two devices, the way ConnectionService runs
+ * them: the default session and a named one, each with its own engines,
+ * on one PipeTransport per device. roundTrip measures echo latency on the
+ * default session while the named one is idle or, with busy, streams 1 KB
+ * messages as fast as its queue drains. The busy session should add little
+ * beyond the CPU it takes from the bench machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionBenchmark {
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final int FLOOD_MESSAGE_SIZE = 1024;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    @Param({"false", "true"})
+    public boolean busy;
+
+    private final ConnectionEngine[] mServers = new ConnectionEngine[2];
+
+    private final ConnectionEngine[] mClients = new ConnectionEngine[2];
+
+    private String mServerAddress;
+
+    private final byte[] mPayload = new byte[16];
+
+    private final Semaphore mEchoed = new Semaphore(0);
+
+    private volatile boolean mFlooding;
+
+    private Thread mFlood;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        int id = sNextId.incrementAndGet();
+        mServerAddress = "sessions-server-" + id;
+        String clientAddress = "sessions-client-" + id;
+        Transport serverTransport = new PipeTransport(mServerAddress, mServerAddress);
+        Transport clientTransport = new PipeTransport(clientAddress, clientAddress);
+        for (int i = 0; i < 2; i++) {
+            List<UUID> uuids = i == 0 ? ConnectionEngine.SLOT_UUIDS : ConnectionEngine.slotUuids("bench#game");
+            mServers[i] = new ConnectionEngine(serverTransport, uuids, null, ConnectionEngine.newDefaultIoExecutor());
+            mClients[i] = new ConnectionEngine(clientTransport, uuids, null, ConnectionEngine.newDefaultIoExecutor());
+            mServers[i].setCallback(new LoopbackHarness.QuietCallback());
+            mServers[i].startServer("bench", 1);
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            while (!clientTransport.getAdvertisedServices(mServerAddress, 0).contains(uuids.get(0))) {
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+            if (mClients[i].connect(mServerAddress) != Connection.SUCCESS) {
+                throw new IllegalStateException("Session " + i + " could not connect");
+            }
+            while (mServers[i].getConnectionList().length == 0) {
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+        }
+        final ConnectionEngine quietServer = mServers[0];
+        quietServer.setCallback(new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                quietServer.sendMessage(device, message.toByteArray());
+                message.release();
+            }
+        });
+        mClients[0].setCallback(new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                message.release();
+                mEchoed.release();
+            }
+        });
+        if (busy) {
+            mFlooding = true;
+            final ConnectionEngine busyClient = mClients[1];
+            mFlood = new Thread(new Runnable() {
+                public void run() {
+                    byte[] message = new byte[FLOOD_MESSAGE_SIZE];
+                    while (mFlooding) {
+                        busyClient.sendMessage(mServerAddress, message);
+                    }
+                }
+            }, "bench-flood");
+            mFlood.start();
+        }
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Sessions did not come up");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mFlooding = false;
+        for (int i = 0; i < 2; i++) {
+            mClients[i].close();
+            mServers[i].close();
+        }
+        if (mFlood != null) {
+            mFlood.join();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        mClients[0].sendMessage(mServerAddress, mPayload);
+        mEchoed.acquire();
+    }
+}
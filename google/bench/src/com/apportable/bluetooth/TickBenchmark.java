@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A game loop at 60 frames per second that sends small updates to each of
+ * PEERS clients whenever it has one, spread over the frame, with tick mode
+ * off (tickRate 0) or at 20 and 60 Hz. Each operation is one frame;
+ * writes and messages count the server's socket writes and messages per
+ * second, so writes per message is what tick mode saves in syscalls.
+ * Ping and session frames are left out: pings are off and acks only come
+ * back from the clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class TickBenchmark {
+    private static final int PEERS = 4;
+
+    private static final int UPDATES_PER_FRAME = 8;
+
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    @Param({"0", "20", "60"})
+    public int tickRate;
+
+    private ConnectionEngine mServer;
+
+    private ConnectionEngine[] mClients;
+
+    private String[] mClientAddresses;
+
+    // Socket writes on the server's side of every connection.
+    private final AtomicLong mWrites = new AtomicLong();
+
+    private final byte[] mUpdate = new byte[32];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long writes;
+
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+            messages = 0;
+        }
+    }
+
+    /**
+     * Counts the write calls on the sockets a server accepts.
+     */
+    private final class CountingTransport implements Transport {
+        private final Transport mTransport;
+
+        CountingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+            final TransportServerSocket serverSocket = mTransport.listen(name, uuid);
+            return new TransportServerSocket() {
+                public TransportSocket accept() throws IOException {
+                    final TransportSocket socket = serverSocket.accept();
+                    final OutputStream output = new FilterOutputStream(socket.getOutputStream()) {
+                        public void write(byte[] buffer, int offset, int length) throws IOException {
+                            mWrites.incrementAndGet();
+                            out.write(buffer, offset, length);
+                        }
+                    };
+                    return new TransportSocket() {
+                        public InputStream getInputStream() throws IOException {
+                            return socket.getInputStream();
+                        }
+
+                        public OutputStream getOutputStream() {
+                            return output;
+                        }
+
+                        public String getRemoteAddress() {
+                            return socket.getRemoteAddress();
+                        }
+
+                        public void close() throws IOException {
+                            socket.close();
+                        }
+                    };
+                }
+
+                public void close() throws IOException {
+                    serverSocket.close();
+                }
+            };
+        }
+
+        public TransportSocket connect(String address, UUID uuid) throws IOException {
+            return mTransport.connect(address, uuid);
+        }
+
+        public List<UUID> getAdvertisedServices(String address, long timeoutMillis) {
+            return mTransport.getAdvertisedServices(address, timeoutMillis);
+        }
+
+        public String getAddress() {
+            return mTransport.getAddress();
+        }
+
+        public String getName() {
+            return mTransport.getName();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        int id = sNextId.incrementAndGet();
+        String serverAddress = "tick-server-" + id;
+        mServer = new ConnectionEngine(new CountingTransport(new PipeTransport(serverAddress, serverAddress)), null);
+        mServer.setCallback(new LoopbackHarness.QuietCallback());
+        mServer.startServer("bench", PEERS);
+        mClients = new ConnectionEngine[PEERS];
+        mClientAddresses = new String[PEERS];
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        for (int i = 0; i < PEERS; i++) {
+            mClientAddresses[i] = "tick-client-" + id + "-" + i;
+            mClients[i] = new ConnectionEngine(new PipeTransport(mClientAddresses[i], mClientAddresses[i]), null);
+            mClients[i].setCallback(new LoopbackHarness.QuietCallback());
+            while (mClients[i].getTransport().getAdvertisedServices(serverAddress, 0).isEmpty()) {
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+            if (mClients[i].connect(serverAddress) != Connection.SUCCESS) {
+                throw new IllegalStateException("Client " + i + " could not connect");
+            }
+            while (mServer.getConnectionList().length < i + 1) {
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+        }
+        if (mServer.setTickRate(tickRate) != Connection.SUCCESS) {
+            throw new IllegalStateException("Tick mode did not start");
+        }
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Clients did not connect");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ConnectionEngine client : mClients) {
+            client.close();
+        }
+        mServer.close();
+    }
+
+    @Benchmark
+    public void frame(Counters counters) {
+        long writesBefore = mWrites.get();
+        for (int i = 0; i < UPDATES_PER_FRAME; i++) {
+            for (String client : mClientAddresses) {
+                mServer.sendMessage(client, mUpdate);
+            }
+            LockSupport.parkNanos(FRAME_NANOS / UPDATES_PER_FRAME);
+        }
+        counters.writes += mWrites.get() - writesBefore;
+        counters.messages += UPDATES_PER_FRAME * PEERS;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling a read timeout and cancelling it when the read completes,
+ * which is what nearly every timeout comes to, with pending other
+ * timeouts already scheduled: on TimerWheel, and on a
+ * ScheduledThreadPoolExecutor, whose queue is a heap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TimerWheelBenchmark {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // Far enough out that none fires during the run.
+    private static final long BACKGROUND_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"0", "1000", "100000"})
+    public int pending;
+
+    private TimerWheel mWheel;
+
+    private ScheduledThreadPoolExecutor mExecutor;
+
+    private final Runnable mTask = new Runnable() {
+        public void run() {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mWheel = new TimerWheel("bench-timeouts");
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mExecutor.setRemoveOnCancelPolicy(true);
+        for (int i = 0; i < pending; i++) {
+            mWheel.schedule(mTask, BACKGROUND_MILLIS + i);
+            mExecutor.schedule(mTask, BACKGROUND_MILLIS + i, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWheel.stop();
+        mExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean timerWheel() {
+        return mWheel.schedule(mTask, TIMEOUT_MILLIS).cancel();
+    }
+
+    @Benchmark
+    public boolean scheduledExecutor() {
+        return mExecutor.schedule(mTask, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).cancel(false);
+    }
+}
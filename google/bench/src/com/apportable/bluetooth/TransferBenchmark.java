@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip latency of a small game message from the server while the
+ * server sends a 1 MB asset to the same client over and over: as a file
+ * transfer ("sendFile"), as one message the way apps had to before
+ * ("sendMessage"), and with no asset at all ("idle") for the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+    private static final int ASSET_SIZE = 1024 * 1024;
+
+    private static final int MESSAGE_SIZE = 16;
+
+    @Param({"idle", "sendFile", "sendMessage"})
+    public String mode;
+
+    private LoopbackHarness mHarness;
+
+    private String mClient;
+
+    private File mDirectory;
+
+    private File mAsset;
+
+    private final byte[] mMessage = new byte[MESSAGE_SIZE];
+
+    private final Semaphore mEchoed = new Semaphore(0);
+
+    // Released once the client has the whole asset.
+    private final Semaphore mDelivered = new Semaphore(0);
+
+    private Thread mSender;
+
+    private volatile boolean mStopped;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException, IOException {
+        mHarness = new LoopbackHarness(1, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                message.release();
+                mEchoed.release();
+            }
+
+            public void transferProgress(String device, int transferId, boolean incoming, long bytes,
+                    long totalBytes) {
+                if (bytes == totalBytes) {
+                    mDelivered.release();
+                }
+            }
+        }, new LoopbackHarness.QuietCallback() {
+            public void messageReceived(String device, BufferPool.Buffer message) {
+                int length = message.getLength();
+                byte[] echo = length == MESSAGE_SIZE ? message.toByteArray() : null;
+                message.release();
+                if (echo != null) {
+                    mHarness.clients[0].sendMessage(device, echo);
+                } else {
+                    mDelivered.release();
+                }
+            }
+        });
+        mClient = mHarness.clientAddresses[0];
+        mDirectory = File.createTempFile("transfers", "");
+        mDirectory.delete();
+        mHarness.clients[0].setTransferDirectory(mDirectory);
+        byte[] asset = new byte[ASSET_SIZE];
+        new Random(1).nextBytes(asset);
+        mAsset = File.createTempFile("asset", ".bin");
+        FileOutputStream out = new FileOutputStream(mAsset);
+        out.write(asset);
+        out.close();
+        if (!mode.equals("idle")) {
+            mSender = new Thread(new AssetSender(asset), "asset-sender");
+            mSender.start();
+        }
+    }
+
+    private final class AssetSender implements Runnable {
+        private final byte[] mAssetBytes;
+
+        AssetSender(byte[] asset) {
+            mAssetBytes = asset;
+        }
+
+        public void run() {
+            try {
+                while (!mStopped) {
+                    if (mode.equals("sendFile")) {
+                        FileChannel channel = new RandomAccessFile(mAsset, "r").getChannel();
+                        mHarness.server.sendFile(mClient, channel, "asset");
+                        channel.close();
+                    } else {
+                        mHarness.server.sendMessage(mClient, mAssetBytes);
+                    }
+                    while (!mStopped && !mDelivered.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                        // Checking for the end of the trial now and then.
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } catch (InterruptedException e) {
+                // Torn down.
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        if (mSender != null) {
+            mSender.join();
+        }
+        mHarness.shutdown();
+        mAsset.delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        mHarness.server.sendMessage(mClient, mMessage);
+        mEchoed.acquire();
+    }
+}
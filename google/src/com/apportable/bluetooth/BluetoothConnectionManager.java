@@ -18,23 +18,39 @@
 package com.apportable.bluetooth;
 
 import com.apportable.bluetooth.Connection;
+import com.apportable.bluetooth.Connection.OnBytesReceivedListener;
+import com.apportable.bluetooth.Connection.OnChannelMessageReceivedListener;
 import com.apportable.bluetooth.Connection.OnConnectionLostListener;
 import com.apportable.bluetooth.Connection.OnConnectionServiceReadyListener;
 import com.apportable.bluetooth.Connection.OnIncomingConnectionListener;
+import com.apportable.bluetooth.Connection.OnLinkTimingListener;
 import com.apportable.bluetooth.Connection.OnMaxConnectionsReachedListener;
-import com.apportable.bluetooth.Connection.OnMessageReceivedListener;
+import com.apportable.bluetooth.Connection.OnMessageBatchReceivedListener;
 import com.apportable.bluetooth.Connection.OnSocketIOExceptionListener;
+import com.apportable.bluetooth.Connection.OnTickListener;
+import com.apportable.bluetooth.Connection.OnWritableListener;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.util.Log;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 public class BluetoothConnectionManager {
     public static final String TAG = "BluetoothConnectionManager";
+
+    private static final String HOST_PREFS_NAME = "com.apportable.bluetooth.hosts";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
     
     private BluetoothConnectionManager self;
 
@@ -53,6 +69,8 @@ public class BluetoothConnectionManager {
     private boolean mConnectedToServer;
     
     private String mConnectedServer;
+
+    private final DiscoveryEngine mDiscovery;
     
     private native void didPublish();
     
@@ -60,19 +78,176 @@ public class BluetoothConnectionManager {
     
     private native void connectionReceived(String clientDevice);
     
-    private native void didReceive(String message, String device);
+    private native void didReadData(ByteBuffer data, String device, long tag);
+
+    private native void didWriteData(String device, long tag);
+
+    private native void didTimeOut(String device, long tag, boolean write);
     
     private native void didConnectToServer(String hostAddress);
     
     private native void didDisconnect(String device);
     
     private native void resetBluetoothNeeded();
+
+    private native void didUpdateLinkTiming(String device, long rttMicros, long jitterMicros, long clockOffsetMicros);
+
+    private native void didReceiveChannelBytes(ByteBuffer data, String device, int channel);
+
+    private native void didTick(long tick);
+
+    private native void didBecomeWritable(String device);
+
+    private int mPingIntervalMillis;
+
+    private int mReceiveBatchMicros;
+
+    private int mReceiveBatchBytes;
+
+    private int mResumeGraceMillis;
+
+    private int mMaxReplayBytes;
+
+    private int mTickRate;
+
+    private int mReceiveWindow;
+
+    // Clients the server, or a relay, accepts.
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private boolean mRelay;
+
+    // channel -> {priority, delivery}, reapplied to each new session.
+    private final HashMap<Integer, int[]> mChannels = new HashMap<Integer, int[]>();
     
 	private boolean mRegistered;
 
-    private OnMessageReceivedListener dataReceivedListener = new OnMessageReceivedListener() {
-        public void OnMessageReceived(String device, String message) {
-        	didReceive(message, device);
+    // Reused for every didReadData and didReceiveChannelBytes upcall; native
+    // code copies out of it before returning. Guarded by mReceiveLock.
+    private ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(4096);
+
+    private final Object mReceiveLock = new Object();
+
+    // Received bytes and pending reads per device; guarded by mReceiveLock.
+    private final HashMap<String, ReadQueue> mReadQueues = new HashMap<String, ReadQueue>();
+
+    // Read and write timeouts for every device.
+    private final TimerWheel mTimers = new TimerWheel("bt-timeouts");
+
+    // A write the device had no credit for, waiting for OnWritable.
+    private static final class HeldWrite {
+        final byte[] mData;
+
+        final long mTag;
+
+        TimerWheel.Timeout mTimeout;
+
+        HeldWrite(byte[] data, long tag) {
+            mData = data;
+            mTag = tag;
+        }
+    }
+
+    // Held writes per device, in order; guarded by mWriteLock.
+    private final HashMap<String, ArrayDeque<HeldWrite>> mHeldWrites = new HashMap<String, ArrayDeque<HeldWrite>>();
+
+    private final Object mWriteLock = new Object();
+
+    private ByteBuffer receiveBuffer(int length) {
+        if (mReceiveBuffer.capacity() < length) {
+            mReceiveBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(length) << 1);
+        }
+        ByteBuffer data = mReceiveBuffer;
+        data.clear();
+        return data;
+    }
+
+    private ByteBuffer fillReceiveBuffer(byte[] message) {
+        ByteBuffer data = receiveBuffer(message.length);
+        data.put(message);
+        data.flip();
+        return data;
+    }
+
+    private ReadQueue getReadQueue(String device) {
+        ReadQueue queue = mReadQueues.get(device);
+        if (queue == null) {
+            queue = new ReadQueue();
+            mReadQueues.put(device, queue);
+        }
+        return queue;
+    }
+
+    private void received(String device, byte[] data, int length) {
+        ReadQueue queue = getReadQueue(device);
+        queue.append(data, 0, length);
+        completeReads(device, queue);
+    }
+
+    // Native code only ever sees whole reads.
+    private void completeReads(String device, ReadQueue queue) {
+        int length;
+        while ((length = queue.nextReady()) >= 0) {
+            ByteBuffer data = receiveBuffer(length);
+            ReadQueue.Read read = queue.take(data);
+            if (read.mTimeout != null) {
+                read.mTimeout.cancel();
+            }
+            data.flip();
+            didReadData(data, device, read.getTag());
+        }
+    }
+
+    /**
+     * Called by native code for readDataToLength:withTimeout:tag:; the read
+     * completes through didReadData once length bytes from device are in,
+     * after the tagLength-byte tag in front of them if it is tag, or through
+     * didTimeOut if timeoutMillis (negative for none) pass first.
+     */
+    private void readDataToLength(final String device, int length, long tag, int tagLength, int timeoutMillis) {
+        synchronized(mReceiveLock) {
+            final ReadQueue queue = getReadQueue(device);
+            final ReadQueue.Read read = queue.request(length, tag, tagLength);
+            completeReads(device, queue);
+            if (timeoutMillis >= 0 && queue.getPendingReads() > 0) {
+                read.mTimeout = mTimers.schedule(new Runnable() {
+                    public void run() {
+                        synchronized(mReceiveLock) {
+                            if (!queue.remove(read)) {
+                                return;
+                            }
+                            didTimeOut(device, read.getTag(), false);
+                            // The reads behind it may want fewer bytes.
+                            completeReads(device, queue);
+                        }
+                    }
+                }, timeoutMillis);
+            }
+        }
+    }
+
+    private OnBytesReceivedListener bytesReceivedListener = new OnBytesReceivedListener() {
+        public void OnBytesReceived(String device, byte[] message) {
+            synchronized(mReceiveLock) {
+                received(device, message, message.length);
+            }
+        }
+    };
+
+    // The read queue is a byte stream, so a whole batch goes in at once.
+    private OnMessageBatchReceivedListener batchReceivedListener = new OnMessageBatchReceivedListener() {
+        public void OnMessageBatchReceived(String device, byte[] data, int[] lengths) {
+            synchronized(mReceiveLock) {
+                received(device, data, data.length);
+            }
+        }
+    };
+
+    private OnChannelMessageReceivedListener channelMessageListener = new OnChannelMessageReceivedListener() {
+        public void OnChannelMessageReceived(String device, int channel, byte[] message) {
+            synchronized(mReceiveLock) {
+                didReceiveChannelBytes(fillReceiveBuffer(message), device, channel);
+            }
         }
     };
 
@@ -92,18 +267,226 @@ public class BluetoothConnectionManager {
 
     private OnConnectionLostListener disconnectedListener = new OnConnectionLostListener() {
         public void OnConnectionLost(String device) {
+            if (device.equals(mConnectedServer)) {
+                mDiscovery.onDisconnected();
+            }
+            synchronized(mReceiveLock) {
+                ReadQueue queue = mReadQueues.remove(device);
+                if (queue != null) {
+                    queue.clear();
+                }
+            }
+            dropHeldWrites(device);
         	didDisconnect(device);
         }
     };
     
+    private OnLinkTimingListener linkTimingListener = new OnLinkTimingListener() {
+        public void OnLinkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros) {
+            didUpdateLinkTiming(device, rttMicros, jitterMicros, clockOffsetMicros);
+        }
+    };
+
+    private OnTickListener tickListener = new OnTickListener() {
+        public void OnTick(long tick) {
+            didTick(tick);
+        }
+    };
+
+    private OnWritableListener writableListener = new OnWritableListener() {
+        public void OnWritable(String device) {
+            releaseHeldWrites(device);
+            didBecomeWritable(device);
+        }
+    };
+
     private OnSocketIOExceptionListener socketIOExceptionListener = new OnSocketIOExceptionListener() {
         public void OnSocketIOException() {
         	resetBluetoothNeeded();
         }
     };
     
-    private void sendDeviceMessage(String device, String message) {
-        mConnection.sendMessage(device, message);
+    private int sendDeviceMessage(String device, String message) {
+        return mConnection.sendMessage(device, message);
+    }
+    
+    private int sendDeviceBytes(String device, byte[] message) {
+        return mConnection.sendMessage(device, message);
+    }
+
+    private int sendDeviceChannelBytes(String device, int channel, byte[] message) {
+        return mConnection.sendChannelMessage(device, channel, message);
+    }
+
+    /**
+     * Called by native code for writeData:withTimeout:tag:. A write the
+     * device has no credit for, or that would overtake one held for that
+     * reason, is held and sent once the device grants more; it completes
+     * through didWriteData then, or through didTimeOut if timeoutMillis
+     * (negative for none) pass first. Returns Connection.WOULD_BLOCK for a
+     * held write and sendMessage()'s result for any other.
+     */
+    private int writeDeviceBytes(final String device, byte[] message, long tag, int timeoutMillis) {
+        synchronized(mWriteLock) {
+            ArrayDeque<HeldWrite> held = mHeldWrites.get(device);
+            if (held == null) {
+                int result = mConnection.sendMessage(device, message);
+                if (result != Connection.WOULD_BLOCK) {
+                    return result;
+                }
+                held = new ArrayDeque<HeldWrite>();
+                mHeldWrites.put(device, held);
+            }
+            final HeldWrite write = new HeldWrite(message, tag);
+            held.addLast(write);
+            if (timeoutMillis >= 0) {
+                write.mTimeout = mTimers.schedule(new Runnable() {
+                    public void run() {
+                        synchronized(mWriteLock) {
+                            ArrayDeque<HeldWrite> held = mHeldWrites.get(device);
+                            if (held == null || !held.removeFirstOccurrence(write)) {
+                                return;
+                            }
+                            if (held.isEmpty()) {
+                                mHeldWrites.remove(device);
+                            }
+                            didTimeOut(device, write.mTag, true);
+                        }
+                    }
+                }, timeoutMillis);
+            }
+            return Connection.WOULD_BLOCK;
+        }
+    }
+
+    private void releaseHeldWrites(String device) {
+        synchronized(mWriteLock) {
+            ArrayDeque<HeldWrite> held = mHeldWrites.get(device);
+            while (held != null && !held.isEmpty()) {
+                HeldWrite write = held.peekFirst();
+                if (mConnection == null || mConnection.sendMessage(device, write.mData) == Connection.WOULD_BLOCK) {
+                    return;
+                }
+                held.removeFirst();
+                if (write.mTimeout != null) {
+                    write.mTimeout.cancel();
+                }
+                didWriteData(device, write.mTag);
+            }
+            mHeldWrites.remove(device);
+        }
+    }
+
+    private void dropHeldWrites(String device) {
+        synchronized(mWriteLock) {
+            ArrayDeque<HeldWrite> held = mHeldWrites.remove(device);
+            if (held != null) {
+                for (HeldWrite write : held) {
+                    if (write.mTimeout != null) {
+                        write.mTimeout.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    private void setPingInterval(int intervalMillis) {
+        synchronized(this) {
+            mPingIntervalMillis = intervalMillis;
+            if (mConnection != null) {
+                // Fails harmlessly until the session starts; applySessionSettings()
+                // applies it then.
+                mConnection.setPingInterval(intervalMillis);
+            }
+        }
+    }
+
+    private void setReceiveBatching(int windowMicros, int maxBytes) {
+        synchronized(this) {
+            mReceiveBatchMicros = windowMicros;
+            mReceiveBatchBytes = maxBytes;
+            if (mConnection != null) {
+                mConnection.setReceiveBatching(windowMicros, maxBytes);
+            }
+        }
+    }
+
+    private void setSessionResume(int graceMillis, int maxReplayBytes) {
+        synchronized(this) {
+            mResumeGraceMillis = graceMillis;
+            mMaxReplayBytes = maxReplayBytes;
+            if (mConnection != null) {
+                mConnection.setSessionResume(graceMillis, maxReplayBytes);
+            }
+        }
+    }
+
+    private void setTickRate(int ticksPerSecond) {
+        synchronized(this) {
+            mTickRate = ticksPerSecond;
+            if (mConnection != null) {
+                mConnection.setTickRate(ticksPerSecond);
+            }
+        }
+    }
+
+    private void setReceiveWindow(int windowBytes) {
+        synchronized(this) {
+            mReceiveWindow = windowBytes;
+            if (mConnection != null) {
+                mConnection.setReceiveWindow(windowBytes);
+            }
+        }
+    }
+
+    private void setMaxConnections(int maxConnections) {
+        synchronized(this) {
+            mMaxConnections = maxConnections;
+        }
+    }
+
+    // Takes effect with the next session.
+    private void setRelay(boolean relay) {
+        synchronized(this) {
+            mRelay = relay;
+        }
+    }
+
+    private void openChannel(int channel, int priority, int delivery) {
+        synchronized(this) {
+            mChannels.put(channel, new int[] {priority, delivery});
+            if (mConnection != null) {
+                mConnection.openChannel(channel, priority, delivery);
+            }
+        }
+    }
+
+    // The service only accepts these once startServer() or connect() has
+    // made this app the owner of the session.
+    private void applySessionSettings() {
+        synchronized(this) {
+            if (mRelay) {
+                mConnection.setRelay(true);
+            }
+            if (mPingIntervalMillis > 0) {
+                mConnection.setPingInterval(mPingIntervalMillis);
+            }
+            if (mReceiveBatchMicros > 0) {
+                mConnection.setReceiveBatching(mReceiveBatchMicros, mReceiveBatchBytes);
+            }
+            if (mResumeGraceMillis > 0) {
+                mConnection.setSessionResume(mResumeGraceMillis, mMaxReplayBytes);
+            }
+            if (mTickRate > 0) {
+                mConnection.setTickRate(mTickRate);
+            }
+            if (mReceiveWindow > 0) {
+                mConnection.setReceiveWindow(mReceiveWindow);
+            }
+            for (Map.Entry<Integer, int[]> channel : mChannels.entrySet()) {
+                mConnection.openChannel(channel.getKey(), channel.getValue()[0], channel.getValue()[1]);
+            }
+        }
     }
     
  // Create a BroadcastReceiver for ACTION_FOUND
@@ -124,27 +507,68 @@ public class BluetoothConnectionManager {
                     Log.d(TAG, "OOPS, ignoring bluetooth device with null name or address");
                     return;
                 }
-                if (name.endsWith(mName)) {
-                    myBt.cancelDiscovery(); // Cancel BT discovery explicitly so that connections can go through
-                    int connectionStatus;
-                    synchronized(self) {
-	                    connectionStatus = mConnection.connect(address, dataReceivedListener, disconnectedListener);
-                    }
-                    if (connectionStatus != Connection.SUCCESS) {
-                        Log.d(TAG, "Unable to connect; please try again.");
-                    } else {
-                    	// Successful client connection to server
-                    	mConnectedToServer = true;
-                        didConnectToServer(address);
-                        mConnectedServer = address;
-                        Log.d(TAG, "Connection successful");
-                    }
+                // DiscoveryEngine decides whether and when to connect, off
+                // this thread.
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DiscoveryEngine.UNKNOWN_RSSI);
+                mDiscovery.onDeviceFound(address, name, rssi);
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                mDiscovery.onScanFinished();
+            }
+        }
+    };
+
+    private final DiscoveryEngine.Actions mDiscoveryActions = new DiscoveryEngine.Actions() {
+        public void startScan() {
+            if (!myBt.isDiscovering()) {
+                myBt.startDiscovery();
+            }
+        }
+
+        public void cancelScan() {
+            myBt.cancelDiscovery();
+        }
+
+        public void connect(String address) {
+            myBt.cancelDiscovery(); // Cancel BT discovery explicitly so that connections can go through
+            int connectionStatus = Connection.FAILURE;
+            synchronized(self) {
+                if (mConnection != null) {
+                    // Messages arrive through bytesReceivedListener.
+                    connectionStatus = mConnection.connect(address, null, disconnectedListener);
                 }
             }
+            if (connectionStatus != Connection.SUCCESS) {
+                Log.d(TAG, "Unable to connect to " + address);
+            } else {
+                applySessionSettings();
+                // Successful client connection to server
+                mConnectedToServer = true;
+                didConnectToServer(address);
+                mConnectedServer = address;
+                if (mRelay) {
+                    startRelaying();
+                }
+                Log.d(TAG, "Connection successful");
+            }
+            mDiscovery.onConnectResult(address, connectionStatus == Connection.SUCCESS);
+        }
+    };
+
+    // The last server each game connected to, tried first next time.
+    private final DiscoveryEngine.HostStore mHostStore = new DiscoveryEngine.HostStore() {
+        public String getLastHost() {
+            return mContext.getSharedPreferences(HOST_PREFS_NAME, Context.MODE_PRIVATE).getString(mName, null);
+        }
+
+        public void putLastHost(String address) {
+            SharedPreferences prefs = mContext.getSharedPreferences(HOST_PREFS_NAME, Context.MODE_PRIVATE);
+            prefs.edit().putString(mName, address).apply();
         }
     };
     
-    private void doPublish() {
+    // Clients find servers, and relays, by the game name at the end of the
+    // device name.
+    private void advertiseName() {
         String name = myBt.getName();
         if (mOriginalName == null) {
             mOriginalName = name;
@@ -152,33 +576,27 @@ public class BluetoothConnectionManager {
         if (!name.endsWith(mName)) {
             myBt.setName(name + "-" + mName);
         }
+    }
+
+    private void doPublish() {
+        advertiseName();
         synchronized(self) {
-	        mConnection.startServer(4, connectedListener, maxConnectionsListener,
-	                dataReceivedListener, disconnectedListener, socketIOExceptionListener);
+	        mConnection.startServer(mMaxConnections, connectedListener, maxConnectionsListener,
+	                null, disconnectedListener, socketIOExceptionListener);
         }
+        applySessionSettings();
     	didPublish();
     }
-    
-    private void loopDiscovery() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                	if (!myBt.isDiscovering())
-                		myBt.startDiscovery();
-                    try {
-						Thread.sleep(10000);
-					} catch (InterruptedException e) {
-						Log.e(TAG, "Exception in sleep in loopDiscovery");
-					}
-                    if (mConnectedToServer || mConnection == null) {
-                    	break;
-                    }
-                }
-            }
-        }).start();    	
-    }
 
+    // A relay publishes too, so that clients out of the server's range, or
+    // past its limit, can join through it.
+    private void startRelaying() {
+        advertiseName();
+        synchronized(self) {
+            mConnection.startRelay(mMaxConnections, connectedListener, maxConnectionsListener);
+        }
+    }
+    
     private OnConnectionServiceReadyListener serviceReadyListener = new OnConnectionServiceReadyListener() {
         public void OnConnectionServiceReady() {
             myBt = BluetoothAdapter.getDefaultAdapter();
@@ -188,9 +606,16 @@ public class BluetoothConnectionManager {
             } else {
             	// Register the BroadcastReceiver
             	IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+            	filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
             	mContext.registerReceiver(mReceiver, filter); // Don't forget to unregister during onDestroy
             	mRegistered = true;
-                loopDiscovery();
+                Set<BluetoothDevice> bonded = myBt.getBondedDevices();
+                if (bonded != null) {
+                    for (BluetoothDevice device : bonded) {
+                        mDiscovery.addBondedHost(device.getAddress(), device.getName());
+                    }
+                }
+                mDiscovery.start();
             }
         }
     };
@@ -203,6 +628,12 @@ public class BluetoothConnectionManager {
     	Log.d(TAG, "start publishing");
     	synchronized(this) {
     		mConnection = new Connection(mContext, serviceReadyListener, false);
+    		mConnection.setOnBytesReceivedListener(bytesReceivedListener);
+    		mConnection.setOnMessageBatchReceivedListener(batchReceivedListener);
+    		mConnection.setOnLinkTimingListener(linkTimingListener);
+    		mConnection.setOnTickListener(tickListener);
+    		mConnection.setOnWritableListener(writableListener);
+    		mConnection.setOnChannelMessageReceivedListener(channelMessageListener);
     	}
     }
     
@@ -218,6 +649,12 @@ public class BluetoothConnectionManager {
     private void startSearching() { 
 	    synchronized(this) {
 	    	mConnection = new Connection(mContext, serviceReadyListener, true);	
+	    	mConnection.setOnBytesReceivedListener(bytesReceivedListener);
+	    	mConnection.setOnMessageBatchReceivedListener(batchReceivedListener);
+	    	mConnection.setOnLinkTimingListener(linkTimingListener);
+	    	mConnection.setOnTickListener(tickListener);
+	    	mConnection.setOnWritableListener(writableListener);
+	    	mConnection.setOnChannelMessageReceivedListener(channelMessageListener);
 	    }
     }
     
@@ -231,6 +668,7 @@ public class BluetoothConnectionManager {
     	mContext = ctx;
     	mName = name;
         mType = type ? 1 : 0;
+        mDiscovery = new DiscoveryEngine(name, mDiscoveryActions, mHostStore);
     }
     
     private static boolean isAvailable() {
@@ -244,10 +682,18 @@ public class BluetoothConnectionManager {
 
     private void shutdown() {
     	mConnectedToServer = false;
+        mDiscovery.stop();
         if (mConnection != null) {
             mConnection.shutdown();
             mConnection = null;
         }
+        mTimers.stop();
+        synchronized(mReceiveLock) {
+            mReadQueues.clear();
+        }
+        synchronized(mWriteLock) {
+            mHeldWrites.clear();
+        }
         if (mRegistered) {
         	mContext.unregisterReceiver(mReceiver);
         	mRegistered = false;
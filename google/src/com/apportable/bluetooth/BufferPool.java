@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Recycles the buffers that received messages are handed out in, so that a
+ * reader thread allocates nothing per message once the pool has warmed up.
+ * Buffers come in power-of-two sizes from MIN_POOLED_SIZE to
+ * MAX_POOLED_SIZE; a larger message gets a buffer of its own that release()
+ * leaves to the garbage collector.
+ *
+ * Whoever a Buffer is handed to owns it until calling release(), from any
+ * thread. A buffer that is never released is not leaked, only not reused.
+ */
+final class BufferPool {
+    public static final int MIN_POOLED_SIZE = 256;
+
+    public static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final int MIN_SHIFT = 8;
+
+    private static final int CLASS_COUNT = 9;
+
+    // Enough for a burst per reader thread without hoarding memory.
+    private static final int MAX_FREE_PER_CLASS = 32;
+
+    public static final class Buffer {
+        private final BufferPool mPool;
+
+        private final int mClass;
+
+        private final byte[] mData;
+
+        private int mLength;
+
+        private boolean mReleased;
+
+        Buffer(BufferPool pool, int sizeClass, byte[] data) {
+            mPool = pool;
+            mClass = sizeClass;
+            mData = data;
+        }
+
+        /**
+         * The message is the first getLength() bytes; the rest is stale.
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Sets how many bytes of getData() are the message; at most its
+         * capacity.
+         */
+        public void setLength(int length) {
+            if (length > mData.length) {
+                throw new IllegalArgumentException("Length " + length + " exceeds capacity " + mData.length);
+            }
+            mLength = length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mData, mLength);
+        }
+
+        /**
+         * Returns the buffer to its pool. It must not be touched afterwards.
+         */
+        public void release() {
+            mPool.recycle(this);
+        }
+    }
+
+    private final Buffer[][] mFree = new Buffer[CLASS_COUNT][MAX_FREE_PER_CLASS];
+
+    private final int[] mFreeCount = new int[CLASS_COUNT];
+
+    private long mAllocations;
+
+    /**
+     * A buffer of at least length bytes, with getLength() set to length.
+     */
+    public Buffer acquire(int length) {
+        int sizeClass = sizeClass(length);
+        Buffer buffer = null;
+        synchronized(this) {
+            if (sizeClass >= 0 && mFreeCount[sizeClass] > 0) {
+                int top = --mFreeCount[sizeClass];
+                buffer = mFree[sizeClass][top];
+                mFree[sizeClass][top] = null;
+                buffer.mReleased = false;
+            } else {
+                mAllocations++;
+            }
+        }
+        if (buffer == null) {
+            int size = sizeClass >= 0 ? MIN_POOLED_SIZE << sizeClass : length;
+            buffer = new Buffer(this, sizeClass, new byte[size]);
+        }
+        buffer.mLength = length;
+        return buffer;
+    }
+
+    /**
+     * A buffer holding a copy of src[offset, offset + length).
+     */
+    public Buffer copyOf(byte[] src, int offset, int length) {
+        Buffer buffer = acquire(length);
+        System.arraycopy(src, offset, buffer.mData, 0, length);
+        return buffer;
+    }
+
+    /**
+     * Buffers the pool has had to allocate because none were free.
+     */
+    public synchronized long getAllocations() {
+        return mAllocations;
+    }
+
+    private synchronized void recycle(Buffer buffer) {
+        if (buffer.mReleased) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        buffer.mReleased = true;
+        int sizeClass = buffer.mClass;
+        if (sizeClass >= 0 && mFreeCount[sizeClass] < MAX_FREE_PER_CLASS) {
+            mFree[sizeClass][mFreeCount[sizeClass]++] = buffer;
+        }
+    }
+
+    private static int sizeClass(int length) {
+        if (length > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        if (length <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+}
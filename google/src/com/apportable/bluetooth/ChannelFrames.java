@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Payload layout of FLAG_CHANNEL frames, which carry messages on the
+ * numbered channels opened with Connection.openChannel().
+ *
+ * <pre>
+ *   varint (channel << 2 | CONTINUED | MORE) | message or fragment
+ * </pre>
+ *
+ * Reliable messages longer than FRAGMENT_SIZE are split so that PeerWriter
+ * can slip higher-priority frames in between the fragments. MORE marks a
+ * fragment that has a successor; CONTINUED one that has a predecessor.
+ * OVERFLOW_DROP_OLDEST can drop the unsent rest of a message, so the
+ * receiver throws away fragments it cannot attach to a first fragment and
+ * partial messages that a new first fragment interrupts.
+ */
+final class ChannelFrames {
+    public static final int MORE = 0x01;
+
+    public static final int CONTINUED = 0x02;
+
+    // A higher-priority frame waits behind at most one fragment, about 30 ms
+    // at RFCOMM speeds.
+    public static final int FRAGMENT_SIZE = 1024;
+
+    private ChannelFrames() {
+    }
+
+    /**
+     * Payloads carrying message on channel, split into fragments if allowed
+     * and needed.
+     */
+    public static byte[][] split(int channel, byte[] message, boolean fragment) {
+        if (!fragment || message.length <= FRAGMENT_SIZE) {
+            return new byte[][] {payload(channel << 2, message, 0, message.length)};
+        }
+        int count = (message.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        byte[][] payloads = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int offset = i * FRAGMENT_SIZE;
+            int header = channel << 2;
+            if (i > 0) {
+                header |= CONTINUED;
+            }
+            if (i < count - 1) {
+                header |= MORE;
+            }
+            payloads[i] = payload(header, message, offset, Math.min(FRAGMENT_SIZE, message.length - offset));
+        }
+        return payloads;
+    }
+
+    private static byte[] payload(int header, byte[] message, int offset, int length) {
+        byte[] payload = new byte[WireFormat.varintSize(header) + length];
+        int start = WireFormat.writeVarint(payload, 0, header);
+        System.arraycopy(message, offset, payload, start, length);
+        return payload;
+    }
+
+    /**
+     * Puts fragmented messages from one peer back together, in buffers from
+     * a BufferPool.
+     */
+    static final class Reassembler {
+        private final BufferPool mPool;
+
+        // Per channel, the message being put together, if any.
+        private final BufferPool.Buffer[] mPartials = new BufferPool.Buffer[Connection.MAX_CHANNEL + 1];
+
+        private final SnapshotDelta.Cursor mCursor = new SnapshotDelta.Cursor();
+
+        private int mChannel;
+
+        public Reassembler(BufferPool pool) {
+            mPool = pool;
+        }
+
+        /**
+         * Channel of the message receive() last returned.
+         */
+        public int getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * Handles one FLAG_CHANNEL payload. Returns the complete message it
+         * carries or finishes, which the caller must release, or null if
+         * more fragments are needed.
+         */
+        public BufferPool.Buffer receive(byte[] buffer, int offset, int length) throws IOException {
+            SnapshotDelta.Cursor in = mCursor.reset(buffer, offset, length);
+            int header = in.readVarint();
+            int channel = header >>> 2;
+            if (channel > Connection.MAX_CHANNEL) {
+                throw new IOException("Bad channel " + channel);
+            }
+            boolean more = (header & MORE) != 0;
+            boolean continued = (header & CONTINUED) != 0;
+            BufferPool.Buffer partial = mPartials[channel];
+            if (!continued) {
+                if (partial != null) {
+                    // Whatever was in progress on this channel lost its tail.
+                    mPartials[channel] = null;
+                    partial.release();
+                }
+                BufferPool.Buffer message = mPool.copyOf(buffer, in.position(), in.remaining());
+                if (!more) {
+                    mChannel = channel;
+                    return message;
+                }
+                mPartials[channel] = message;
+                return null;
+            }
+            if (partial == null) {
+                // The first fragment was dropped; skip the rest.
+                return null;
+            }
+            partial = append(partial, buffer, in.position(), in.remaining());
+            if (more) {
+                mPartials[channel] = partial;
+                return null;
+            }
+            mPartials[channel] = null;
+            mChannel = channel;
+            return partial;
+        }
+
+        private BufferPool.Buffer append(BufferPool.Buffer partial, byte[] src, int offset, int length)
+                throws IOException {
+            int used = partial.getLength();
+            if (length > WireFormat.MAX_PAYLOAD_LENGTH - used) {
+                throw new IOException("Channel message exceeds limit");
+            }
+            if (partial.getData().length - used < length) {
+                BufferPool.Buffer grown = mPool.acquire(Math.max(used + length, partial.getData().length * 2));
+                System.arraycopy(partial.getData(), 0, grown.getData(), 0, used);
+                partial.release();
+                partial = grown;
+            }
+            System.arraycopy(src, offset, partial.getData(), used, length);
+            partial.setLength(used + length);
+            return partial;
+        }
+
+        /**
+         * Returns the buffers of unfinished messages to the pool.
+         */
+        public void clear() {
+            for (int i = 0; i < mPartials.length; i++) {
+                if (mPartials[i] != null) {
+                    mPartials[i].release();
+                    mPartials[i] = null;
+                }
+            }
+        }
+    }
+}
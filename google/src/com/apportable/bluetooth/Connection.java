@@ -24,9 +24,16 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * API for the Bluetooth Click, Link, Compete library. This library simplifies
  * the process of establishing Bluetooth connections and sending data in a way
@@ -40,8 +47,74 @@ public class Connection {
 
     public static final int FAILURE = 1;
 
+    /** The message was queued, but older queued messages were dropped to make room. */
+    public static final int QUEUE_OVERFLOW = 2;
+
+    /**
+     * The device has not granted credit for more data (see
+     * setReceiveWindow()), or its queue is full (OVERFLOW_BLOCK) while other
+     * sends of this session already wait for room; nothing was queued.
+     * OnWritableListener hears when it is worth trying again.
+     */
+    public static final int WOULD_BLOCK = 3;
+
     public static final int MAX_SUPPORTED = 7;
 
+    /** Write each message as soon as the peer's writer thread can. */
+    public static final int FLUSH_IMMEDIATE = 0;
+
+    /** Hold messages for up to the given number of microseconds and write them together. */
+    public static final int FLUSH_MAX_DELAY = 1;
+
+    /** Hold messages until the given number of bytes is pending (or 10 ms pass). */
+    public static final int FLUSH_MAX_BYTES = 2;
+
+    /** When a peer's send queue is full, wait for it to drain. */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /** When a peer's send queue is full, drop its oldest queued messages. */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /** When a peer's send queue is full, disconnect that peer. */
+    public static final int OVERFLOW_DISCONNECT = 2;
+
+    /** Send every message as is. */
+    public static final int COMPRESSION_OFF = 0;
+
+    /** Compress every message of at least the minimum size, when that makes it smaller. */
+    public static final int COMPRESSION_ON = 1;
+
+    /** Like COMPRESSION_ON, but back off for a peer while compression is not paying for itself. */
+    public static final int COMPRESSION_ADAPTIVE = 2;
+
+    /** Every message on the channel is delivered, in order. */
+    public static final int DELIVERY_RELIABLE = 0;
+
+    /** Only the newest message on the channel matters; a newer one replaces any still queued. */
+    public static final int DELIVERY_LATEST = 1;
+
+    public static final int MIN_PRIORITY = 0;
+
+    public static final int MAX_PRIORITY = 7;
+
+    /** Priority of messages sent without a channel, and of snapshots. */
+    public static final int DEFAULT_PRIORITY = 3;
+
+    /** Channels 1 to MAX_CHANNEL can be opened; channel 0 is sendMessage()'s. */
+    public static final int MAX_CHANNEL = 255;
+
+    /** Largest batch setReceiveBatching() accepts; a Binder transaction is limited to 1 MB. */
+    public static final int MAX_RECEIVE_BATCH_BYTES = 256 * 1024;
+
+    /** Largest replay buffer setSessionResume() accepts, per connection. */
+    public static final int MAX_REPLAY_BYTES = 4 * 1024 * 1024;
+
+    /** Highest rate setTickRate() accepts, in ticks per second. */
+    public static final int MAX_TICK_RATE = 120;
+
+    /** Largest window setReceiveWindow() accepts. */
+    public static final int MAX_RECEIVE_WINDOW = 4 * 1024 * 1024;
+
     public interface OnConnectionServiceReadyListener {
         public void OnConnectionServiceReady();
     }
@@ -58,6 +131,10 @@ public class Connection {
         public void OnMessageReceived(String device, String message);
     }
 
+    public interface OnBytesReceivedListener {
+        public void OnBytesReceived(String device, byte[] message);
+    }
+
     public interface OnConnectionLostListener {
         public void OnConnectionLost(String device);
     }
@@ -66,6 +143,87 @@ public class Connection {
         public void OnSocketIOException();
     }
 
+    /**
+     * Receives the latest game state sent with broadcastSnapshot(). seq
+     * increases with every snapshot the sender broadcasts; some may be
+     * skipped, never reordered.
+     */
+    public interface OnSnapshotReceivedListener {
+        public void OnSnapshotReceived(String device, int seq, byte[] snapshot);
+    }
+
+    /**
+     * Receives a batch of messages from one device, gathered while receive
+     * batching is on. Message i is the lengths[i] bytes of data that follow
+     * messages 0 to i - 1.
+     */
+    public interface OnMessageBatchReceivedListener {
+        public void OnMessageBatchReceived(String device, byte[] data, int[] lengths);
+    }
+
+    /**
+     * Receives messages sent on channels opened with openChannel(); messages
+     * sent without a channel still go to the message listeners.
+     */
+    public interface OnChannelMessageReceivedListener {
+        public void OnChannelMessageReceived(String device, int channel, byte[] message);
+    }
+
+    /**
+     * Called after each ping reply with the smoothed round-trip time, jitter
+     * and the peer's clock minus ours, all in microseconds. Clocks are
+     * System.nanoTime() / 1000 (CLOCK_MONOTONIC), so a peer timestamp t maps
+     * to t - clockOffsetMicros locally.
+     */
+    public interface OnLinkTimingListener {
+        public void OnLinkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros);
+    }
+
+    /**
+     * Called after each tick in tick mode, once what was sent during it has
+     * gone out. tick counts up from 0; a number is skipped when the service
+     * fell a whole tick behind.
+     */
+    public interface OnTickListener {
+        public void OnTick(long tick);
+    }
+
+    /**
+     * Called when a device that refused a message with WOULD_BLOCK grants
+     * more credit, so that sending to it can resume.
+     */
+    public interface OnWritableListener {
+        public void OnWritable(String device);
+    }
+
+    /**
+     * Progress of a file transfer to device (incoming false) or from it.
+     * Sending, bytes counts what device has acknowledged and reaches
+     * totalBytes once it has checked the whole file; receiving, it counts
+     * what has been written so far.
+     */
+    public interface OnTransferProgressListener {
+        public void OnTransferProgress(String device, int transferId, boolean incoming, long bytes,
+                long totalBytes);
+    }
+
+    /**
+     * A file sent with sendFile() arrived whole and passed its checksum.
+     * file is in the app's cache directory and is the listener's to move
+     * or delete; name is the one the sender gave.
+     */
+    public interface OnFileReceivedListener {
+        public void OnFileReceived(String device, int transferId, String name, File file);
+    }
+
+    /**
+     * A transfer was cancelled by the sender, or the receiver could not
+     * store the file or found it corrupt.
+     */
+    public interface OnTransferFailedListener {
+        public void OnTransferFailed(String device, int transferId, boolean incoming);
+    }
+
     private OnConnectionServiceReadyListener mOnConnectionServiceReadyListener;
 
     private OnIncomingConnectionListener mOnIncomingConnectionListener;
@@ -74,15 +232,37 @@ public class Connection {
 
     private OnMessageReceivedListener mOnMessageReceivedListener;
 
+    private OnBytesReceivedListener mOnBytesReceivedListener;
+
+    private OnMessageBatchReceivedListener mOnMessageBatchReceivedListener;
+
     private OnConnectionLostListener mOnConnectionLostListener;
     
     private OnSocketIOExceptionListener mOnSocketIOExceptionListener;
 
+    private OnLinkTimingListener mOnLinkTimingListener;
+
+    private OnTickListener mOnTickListener;
+
+    private OnWritableListener mOnWritableListener;
+
+    private OnTransferProgressListener mOnTransferProgressListener;
+
+    private OnFileReceivedListener mOnFileReceivedListener;
+
+    private OnTransferFailedListener mOnTransferFailedListener;
+
+    private OnSnapshotReceivedListener mOnSnapshotReceivedListener;
+
+    private OnChannelMessageReceivedListener mOnChannelMessageReceivedListener;
+
     private ServiceConnection mServiceConnection;
 
     private Context mContext;
 
-    private String mPackageName = "";
+    // srcApp of every service call: the package name, followed by
+    // ServiceSession.SESSION_SEPARATOR and the name for a named session.
+    private String mSessionKey = "";
 
     private boolean mStarted = false;
 
@@ -117,17 +297,108 @@ public class Connection {
             }
         }
 
+        public void messageBytesReceived(String device, byte[] message) throws RemoteException {
+            if (mOnBytesReceivedListener != null) {
+                mOnBytesReceivedListener.OnBytesReceived(device, message);
+            } else if (mOnMessageReceivedListener != null) {
+                mOnMessageReceivedListener.OnMessageReceived(device, new String(message));
+            }
+        }
+
+        public void messagesReceived(String device, byte[] data, int[] lengths) throws RemoteException {
+            if (mOnMessageBatchReceivedListener != null) {
+                mOnMessageBatchReceivedListener.OnMessageBatchReceived(device, data, lengths);
+                return;
+            }
+            int offset = 0;
+            for (int length : lengths) {
+                byte[] message = new byte[length];
+                System.arraycopy(data, offset, message, 0, length);
+                offset += length;
+                messageBytesReceived(device, message);
+            }
+        }
+
 		public void socketIOException() throws RemoteException {
             if (mOnSocketIOExceptionListener != null) {
                 mOnSocketIOExceptionListener.OnSocketIOException();
             }
 		}
+
+        public void snapshotReceived(String device, int seq, byte[] snapshot) throws RemoteException {
+            if (mOnSnapshotReceivedListener != null) {
+                mOnSnapshotReceivedListener.OnSnapshotReceived(device, seq, snapshot);
+            }
+        }
+
+        public void channelMessageReceived(String device, int channel, byte[] message) throws RemoteException {
+            if (mOnChannelMessageReceivedListener != null) {
+                mOnChannelMessageReceivedListener.OnChannelMessageReceived(device, channel, message);
+            }
+        }
+
+        public void linkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros)
+                throws RemoteException {
+            if (mOnLinkTimingListener != null) {
+                mOnLinkTimingListener.OnLinkTimingUpdated(device, rttMicros, jitterMicros, clockOffsetMicros);
+            }
+        }
+
+        public void tick(long tick) throws RemoteException {
+            if (mOnTickListener != null) {
+                mOnTickListener.OnTick(tick);
+            }
+        }
+
+        public void writable(String device) throws RemoteException {
+            if (mOnWritableListener != null) {
+                mOnWritableListener.OnWritable(device);
+            }
+        }
+
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes)
+                throws RemoteException {
+            if (mOnTransferProgressListener != null) {
+                mOnTransferProgressListener.OnTransferProgress(device, transferId, incoming, bytes, totalBytes);
+            }
+        }
+
+        public void fileReceived(String device, int transferId, String name, String path) throws RemoteException {
+            if (mOnFileReceivedListener != null) {
+                mOnFileReceivedListener.OnFileReceived(device, transferId, name, new File(path));
+            } else {
+                new File(path).delete();
+            }
+        }
+
+        public void transferFailed(String device, int transferId, boolean incoming) throws RemoteException {
+            if (mOnTransferFailedListener != null) {
+                mOnTransferFailedListener.OnTransferFailed(device, transferId, incoming);
+            }
+        }
     };
 
     public Connection(Context ctx, OnConnectionServiceReadyListener ocsrListener, boolean isClient) {
+        this(ctx, ocsrListener, isClient, null);
+    }
+
+    /**
+     * A Connection for the session called sessionName, which runs alongside
+     * the app's other sessions with its own connections, threads and
+     * listeners: a lobby next to a game, or a server and a client at once.
+     * Only devices running the same app with the same session name can
+     * connect to it; null is the app's default session, which is what the
+     * other constructor uses. The service runs up to four sessions at once.
+     * With OVERFLOW_BLOCK, at most two sends per session wait on a full
+     * queue at a time and further ones fail, so that a busy session cannot
+     * tie up the service for the others.
+     */
+    public Connection(Context ctx, OnConnectionServiceReadyListener ocsrListener, boolean isClient,
+            String sessionName) {
         mOnConnectionServiceReadyListener = ocsrListener;
         mContext = ctx;
-        mPackageName = ctx.getPackageName();
+        mSessionKey = sessionName == null ? ctx.getPackageName()
+                : ctx.getPackageName() + ServiceSession.SESSION_SEPARATOR + sessionName;
         mShutdown = false;
         mServiceConnection = new ServiceConnection() {
             public void onServiceConnected(ComponentName name, IBinder service) {
@@ -145,8 +416,8 @@ public class Connection {
                 synchronized (mStartLock) {
                     try {
                         mStarted = false;
-                        mIconnection.unregisterCallback(mPackageName);
-                        mIconnection.shutdown(mPackageName);
+                        mIconnection.unregisterCallback(mSessionKey);
+                        mIconnection.shutdown(mSessionKey);
                     } catch (RemoteException e) {
                         Log.e(TAG, "RemoteException in onServiceDisconnected", e);
                     }
@@ -179,8 +450,8 @@ public class Connection {
         mOnConnectionLostListener = oclListener;
         mOnSocketIOExceptionListener = msioListener;
         try {
-            int result = mIconnection.startServer(mPackageName, maxConnections);
-            mIconnection.registerCallback(mPackageName, mIccb);
+            int result = mIconnection.startServer(mSessionKey, maxConnections);
+            mIconnection.registerCallback(mSessionKey, mIccb);
             return result;
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in startServer", e);
@@ -188,9 +459,54 @@ public class Connection {
         return Connection.FAILURE;
     }
     
+    /**
+     * Makes this client a relay: it also accepts up to maxConnections
+     * clients of its own, and passes messages between them and the rest of
+     * the session, which grows past MAX_SUPPORTED clients that way. Call
+     * after connect(). Devices behind a relay are reported through
+     * oicListener and OnConnectionLostListener like direct connections,
+     * and sendMessage() reaches them, but channels and snapshots do not.
+     * Every device in the session should call setRelay(true) first.
+     */
+    public int startRelay(int maxConnections, OnIncomingConnectionListener oicListener,
+            OnMaxConnectionsReachedListener omcrListener) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        if (maxConnections > MAX_SUPPORTED) {
+            Log.e(TAG, "The maximum number of allowed connections is " + MAX_SUPPORTED);
+            return Connection.FAILURE;
+        }
+        mOnIncomingConnectionListener = oicListener;
+        mOnMaxConnectionsReachedListener = omcrListener;
+        try {
+            return mIconnection.startRelay(mSessionKey, maxConnections);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in startRelay", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Relay mode, which every device of a session with relays needs: each
+     * device announces its connections to the others, broadcasts reach the
+     * whole session, and relays pass messages on. Off by default.
+     */
+    public int setRelay(boolean enabled) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setRelay(mSessionKey, enabled);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setRelay", e);
+        }
+        return Connection.FAILURE;
+    }
+
     public void stopServer() {
     	try {
-			mIconnection.stopServer();
+			mIconnection.stopSessionServer(mSessionKey);
 		} catch (RemoteException e) {
             Log.e(TAG, "RemoteException in startServer", e);
 		}
@@ -204,8 +520,8 @@ public class Connection {
         mOnMessageReceivedListener = omrListener;
         mOnConnectionLostListener = oclListener;
         try {
-            int result = mIconnection.connect(mPackageName, device);
-            mIconnection.registerCallback(mPackageName, mIccb);
+            int result = mIconnection.connect(mSessionKey, device);
+            mIconnection.registerCallback(mSessionKey, mIccb);
             return result;
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in connect", e);
@@ -213,12 +529,50 @@ public class Connection {
         return Connection.FAILURE;
     }
 
+    /**
+     * Receive messages as raw bytes. When set, this takes precedence over the
+     * OnMessageReceivedListener passed to startServer or connect.
+     */
+    public void setOnBytesReceivedListener(OnBytesReceivedListener obrListener) {
+        mOnBytesReceivedListener = obrListener;
+    }
+
+    /**
+     * Receive whole batches when receive batching is on. Without this
+     * listener a batch is unpacked and each message goes to the other
+     * message listeners as if it had arrived on its own.
+     */
+    public void setOnMessageBatchReceivedListener(OnMessageBatchReceivedListener ombrListener) {
+        mOnMessageBatchReceivedListener = ombrListener;
+    }
+
+    /**
+     * Delivers messages received within windowMicros of each other as one
+     * batch per device, up to maxBytes (0 for 64 KB, at most
+     * MAX_RECEIVE_BATCH_BYTES) per batch. That costs one service call per
+     * batch instead of one per message, at up to windowMicros of added
+     * latency. Snapshots, channel messages and lost connections are never
+     * held back, and a device's pending batch is delivered before them. A
+     * window of 0, the default, turns batching off.
+     */
+    public int setReceiveBatching(int windowMicros, int maxBytes) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setReceiveBatching(mSessionKey, windowMicros, maxBytes);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setReceiveBatching", e);
+        }
+        return Connection.FAILURE;
+    }
+
     public int sendMessage(String device, String message) {
         if (!mStarted) {
             return Connection.FAILURE;
         }
         try {
-            return mIconnection.sendMessage(mPackageName, device, message);
+            return mIconnection.sendMessage(mSessionKey, device, message);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in sendMessage", e);
         }
@@ -230,25 +584,149 @@ public class Connection {
             return Connection.FAILURE;
         }
         try {
-            return mIconnection.broadcastMessage(mPackageName, message);
+            return mIconnection.broadcastMessage(mSessionKey, message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int sendMessage(String device, byte[] message) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.sendMessageBytes(mSessionKey, device, message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int broadcastMessage(byte[] message) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.broadcastMessageBytes(mSessionKey, message);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in broadcastMessage", e);
         }
         return Connection.FAILURE;
     }
 
+    /**
+     * Broadcasts a message and reports, per connected device, whether it was
+     * queued (SUCCESS), queued after dropping older messages
+     * (QUEUE_OVERFLOW), refused for now (WOULD_BLOCK), or could not be sent
+     * (FAILURE).
+     */
+    public Map<String, Integer> broadcastMessageWithResults(byte[] message) {
+        Map<String, Integer> report = new HashMap<String, Integer>();
+        if (!mStarted) {
+            return report;
+        }
+        try {
+            // A relay's server plus its own clients.
+            String[] devices = new String[MAX_SUPPORTED + 1];
+            int[] results = new int[MAX_SUPPORTED + 1];
+            int count = mIconnection.broadcastMessageBytesWithResults(mSessionKey, message, devices, results);
+            for (int i = 0; i < count; i++) {
+                report.put(devices[i], results[i]);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastMessageWithResults", e);
+        }
+        return report;
+    }
+
+    public int setOverflowPolicy(int policy, int maxQueuedBytes) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setOverflowPolicy(mSessionKey, policy, maxQueuedBytes);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setOverflowPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int setCompression(int mode, int minBytes) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setCompression(mSessionKey, mode, minBytes);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setCompression", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int setFlushPolicy(int policy, int value) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setFlushPolicy(mSessionKey, policy, value);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setFlushPolicy", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Lets a connection survive a dropout of up to graceMillis: the client
+     * reconnects to the same server by itself, each side replays the
+     * messages the other missed, and neither app sees connectionLost
+     * unless the grace period runs out. Messages sent in the meantime are
+     * queued. Each side holds up to maxReplayBytes (0 for 256 KB, at most
+     * MAX_REPLAY_BYTES) of messages the other has not acknowledged yet; a
+     * dropout that loses more ends the connection. Both sides should set
+     * the same grace period. A grace period of 0, the default, turns
+     * resuming off. ConnectionStats.getResumes() counts the dropouts
+     * bridged.
+     */
+    public int setSessionResume(int graceMillis, int maxReplayBytes) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setSessionResume(mSessionKey, graceMillis, maxReplayBytes);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setSessionResume", e);
+        }
+        return Connection.FAILURE;
+    }
+
     public String getConnections() {
         if (!mStarted) {
             return "";
         }
         try {
-            return mIconnection.getConnections(mPackageName);
+            return mIconnection.getConnections(mSessionKey);
         } catch (RemoteException e) {
             Log.e(TAG, "RemoteException in getConnections", e);
         }
         return "";
     }
 
+    /**
+     * Addresses of the connected devices, oldest connection first.
+     */
+    public String[] getConnectionList() {
+        if (!mStarted) {
+            return new String[0];
+        }
+        try {
+            return mIconnection.getConnectionList(mSessionKey);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in getConnectionList", e);
+        }
+        return new String[0];
+    }
+
     public int getVersion() {
         if (!mStarted) {
             return Connection.FAILURE;
@@ -261,6 +739,258 @@ public class Connection {
         return Connection.FAILURE;
     }
 
+    /**
+     * Milliseconds this session's most recent successful connect() took to
+     * find and open a socket on the server, or -1 if none has succeeded yet.
+     */
+    public long getLastConnectTime() {
+        if (!mStarted) {
+            return -1;
+        }
+        try {
+            return mIconnection.getLastConnectTime(mSessionKey);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in getLastConnectTime", e);
+        }
+        return -1;
+    }
+
+    public void setOnSnapshotReceivedListener(OnSnapshotReceivedListener osrListener) {
+        mOnSnapshotReceivedListener = osrListener;
+    }
+
+    /**
+     * Sends the whole game state to every connected device. Each device is
+     * sent only the bytes that changed since the last snapshot it
+     * acknowledged (the full state the first time, or after it lost track),
+     * so state can be sent often without paying for its full size each
+     * time. Arrives at OnSnapshotReceivedListener, not the message
+     * listeners. A device whose send queue is full skips this snapshot.
+     * Returns the number of devices it was sent to.
+     */
+    public int broadcastSnapshot(byte[] snapshot) {
+        if (!mStarted) {
+            return 0;
+        }
+        try {
+            return mIconnection.broadcastSnapshot(mSessionKey, snapshot);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastSnapshot", e);
+        }
+        return 0;
+    }
+
+    public void setOnChannelMessageReceivedListener(OnChannelMessageReceivedListener ocmrListener) {
+        mOnChannelMessageReceivedListener = ocmrListener;
+    }
+
+    /**
+     * Opens channel (1 to MAX_CHANNEL) for sending, or changes its settings.
+     * Its messages are sent ahead of any queued at a lower priority, and a
+     * large reliable message is sent in pieces so that it does not hold up
+     * higher-priority ones for long. With DELIVERY_LATEST a message still
+     * waiting to be sent is replaced by the next one on the channel. Plain
+     * sendMessage() and broadcastMessage() use DEFAULT_PRIORITY.
+     */
+    public int openChannel(int channel, int priority, int delivery) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.openChannel(mSessionKey, channel, priority, delivery);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in openChannel", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int sendChannelMessage(String device, int channel, byte[] message) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.sendChannelMessage(mSessionKey, device, channel, message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendChannelMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public int broadcastChannelMessage(int channel, byte[] message) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.broadcastChannelMessage(mSessionKey, channel, message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in broadcastChannelMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public void setOnLinkTimingListener(OnLinkTimingListener oltListener) {
+        mOnLinkTimingListener = oltListener;
+    }
+
+    /**
+     * Pings every connected device each intervalMillis, on a control channel
+     * that never reaches the message listeners, and reports the results
+     * through OnLinkTimingListener and getStats(). 0 turns pings off, which
+     * is the default.
+     */
+    public int setPingInterval(int intervalMillis) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setPingInterval(mSessionKey, intervalMillis);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setPingInterval", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public void setOnTickListener(OnTickListener otListener) {
+        mOnTickListener = otListener;
+    }
+
+    /**
+     * Tick mode at ticksPerSecond (up to MAX_TICK_RATE; 0, the default,
+     * turns it off): instead of going out as they are sent, messages to
+     * each device are held and written together at the next tick, at fixed
+     * times that do not drift, so the link carries one write per device
+     * per tick whatever the game's frame rate. Ping and session frames are
+     * not held. OnTickListener hears about each tick, which is the time to
+     * send the next one's updates. Overrides setFlushPolicy() while on.
+     */
+    public int setTickRate(int ticksPerSecond) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setTickRate(mSessionKey, ticksPerSecond);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setTickRate", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public void setOnWritableListener(OnWritableListener owListener) {
+        mOnWritableListener = owListener;
+    }
+
+    /**
+     * Flow control: lets each connected device get at most windowBytes (up
+     * to MAX_RECEIVE_WINDOW) of messages ahead of what this end has handled.
+     * A device that runs out of credit gets WOULD_BLOCK from sendMessage()
+     * instead of queueing more, and OnWritableListener once this end has
+     * caught up, so a fast sender can drop or merge updates rather than
+     * queue up latency. 0, the default, lets devices send as fast as they
+     * like. Devices hear of a change with the next message they send.
+     */
+    public int setReceiveWindow(int windowBytes) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.setReceiveWindow(mSessionKey, windowBytes);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in setReceiveWindow", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    public void setOnTransferProgressListener(OnTransferProgressListener otpListener) {
+        mOnTransferProgressListener = otpListener;
+    }
+
+    public void setOnFileReceivedListener(OnFileReceivedListener ofrListener) {
+        mOnFileReceivedListener = ofrListener;
+    }
+
+    public void setOnTransferFailedListener(OnTransferFailedListener otfListener) {
+        mOnTransferFailedListener = otfListener;
+    }
+
+    /**
+     * Sends file to a connected device, which gets it through
+     * OnFileReceivedListener; see sendFile(String, ParcelFileDescriptor,
+     * String). The receiver is given the file's name.
+     */
+    public int sendFile(String device, File file) {
+        ParcelFileDescriptor fd;
+        try {
+            fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "FileNotFoundException in sendFile", e);
+            return -1;
+        }
+        try {
+            return sendFile(device, fd, file.getName());
+        } finally {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException in sendFile", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the whole of an open file, such as a level or a replay, to a
+     * connected device, instead of pushing it through sendMessage() in one
+     * piece. The service maps the file and sends it in small chunks behind
+     * the game's messages, so that they are not held up, and the receiver
+     * checks it against a checksum before passing it on. If the connection
+     * is lost, the transfer carries on from where it stopped once the
+     * device connects again. file stays the caller's and may be closed
+     * once this returns. Returns the transfer id, which the transfer
+     * listeners report under, or -1 if the device is not connected or the
+     * file cannot be read.
+     */
+    public int sendFile(String device, ParcelFileDescriptor file, String name) {
+        if (!mStarted) {
+            return -1;
+        }
+        try {
+            return mIconnection.sendFile(mSessionKey, device, file, name);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in sendFile", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Stops sending a file; the receiver discards what it has of it.
+     */
+    public int cancelTransfer(int transferId) {
+        if (!mStarted) {
+            return Connection.FAILURE;
+        }
+        try {
+            return mIconnection.cancelTransfer(mSessionKey, transferId);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in cancelTransfer", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Counters and latency histograms for the current session, or null if the
+     * service is not bound or this app does not own the session.
+     */
+    public ConnectionStats getStats() {
+        if (!mStarted) {
+            return null;
+        }
+        try {
+            return mIconnection.getStats(mSessionKey);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException in getStats", e);
+        }
+        return null;
+    }
+
     public String getAddress() {
         if (!mStarted) {
             return "";
@@ -293,8 +1023,8 @@ public class Connection {
         try {
             mStarted = false;
             if (mIconnection != null) {
-            	mIconnection.unregisterCallback(mPackageName);
-                mIconnection.shutdown(mPackageName);
+            	mIconnection.unregisterCallback(mSessionKey);
+                mIconnection.shutdown(mSessionKey);
             }
             mContext.unbindService(mServiceConnection);
         } catch (RemoteException e) {
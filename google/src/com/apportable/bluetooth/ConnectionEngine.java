@@ -0,0 +1,1844 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The accept loop, per-peer readers and writers, and send/broadcast logic
+ * behind ConnectionService. It only talks to a Transport and a Callback, so
+ * it runs the same over RFCOMM on a phone or over PipeTransport/TcpTransport
+ * in a plain JVM.
+ */
+final class ConnectionEngine {
+    public static final String TAG = "com.apportable.bluetooth.ConnectionEngine";
+
+    // Allow up to 7 devices to connect to the server
+    public static final List<UUID> SLOT_UUIDS = Collections.unmodifiableList(Arrays.asList(
+            UUID.fromString("a60f35f0-b93a-11de-8a39-08002009c666"),
+            UUID.fromString("503c7430-bc23-11de-8a39-0800200c9a66"),
+            UUID.fromString("503c7431-bc23-11de-8a39-0800200c9a66"),
+            UUID.fromString("503c7432-bc23-11de-8a39-0800200c9a66"),
+            UUID.fromString("503c7433-bc23-11de-8a39-0800200c9a66"),
+            UUID.fromString("503c7434-bc23-11de-8a39-0800200c9a66"),
+            UUID.fromString("503c7435-bc23-11de-8a39-0800200c9a66")));
+
+    /**
+     * Slot UUIDs for a named session, so that it can listen next to the
+     * default session (SLOT_UUIDS) and other named ones. Derived from the
+     * name, so devices that use the same name find each other.
+     */
+    public static List<UUID> slotUuids(String sessionName) {
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int slot = 0; slot < Connection.MAX_SUPPORTED; slot++) {
+            uuids.add(UUID.nameUUIDFromBytes((sessionName + "/" + slot).getBytes(Charset.forName("UTF-8"))));
+        }
+        return Collections.unmodifiableList(uuids);
+    }
+
+    /**
+     * Engine events; mirrors IConnectionCallback without the Binder.
+     */
+    public interface Callback {
+        /**
+         * Also reports, in relay mode, a device that can now be reached
+         * through a relay; connectionLost() reports when it no longer can.
+         */
+        public void incomingConnection(String device);
+
+        public void maxConnectionsReached();
+
+        /**
+         * message comes from the engine's receive pool and is the callee's
+         * to release() once it is done with it.
+         */
+        public void messageReceived(String device, BufferPool.Buffer message);
+
+        public void connectionLost(String device);
+
+        public void socketIOException();
+
+        public void linkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros);
+
+        /**
+         * snapshot is also the baseline for the next delta and must not be
+         * modified.
+         */
+        public void snapshotReceived(String device, int seq, byte[] snapshot);
+
+        /**
+         * Like messageReceived(), message must be released.
+         */
+        public void channelMessageReceived(String device, int channel, BufferPool.Buffer message);
+
+        /**
+         * Tick mode: tick has just gone out, and what is sent from now on
+         * goes with the next one.
+         */
+        public void tick(long tick);
+
+        /**
+         * device granted more credit after a send to it was refused with
+         * Connection.WOULD_BLOCK.
+         */
+        public void writable(String device);
+
+        /**
+         * A file transfer to device (incoming false) or from it moved on;
+         * see FileTransfers.Listener.
+         */
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes);
+
+        /**
+         * file is the callee's, to move or delete.
+         */
+        public void transferReceived(String device, int transferId, String name, File file);
+
+        public void transferFailed(String device, int transferId, boolean incoming);
+    }
+
+    /**
+     * Bounds the threads a caller lets wait for room in a full queue
+     * (OVERFLOW_BLOCK). A send asks enter() only once it would have to
+     * wait, and calls leave() when the wait is over; a send enter() turns
+     * away gets Connection.WOULD_BLOCK for the peer, after refused().
+     */
+    public interface BlockingGate {
+        public boolean enter();
+
+        public void leave();
+
+        public void refused(String device);
+    }
+
+    /**
+     * How messages on a channel opened with openChannel() are sent.
+     */
+    private static final class Channel {
+        final int mPriority;
+
+        final int mDelivery;
+
+        Channel(int priority, int delivery) {
+            mPriority = priority;
+            mDelivery = delivery;
+        }
+    }
+
+    private final Transport mTransport;
+
+    private final List<UUID> mSlotUuids;
+
+    private final FastConnector mFastConnector;
+
+    private final IoExecutor mIoExecutor;
+
+    private volatile Callback mCallback;
+
+    private final PeerRegistry mPeers = new PeerRegistry();
+
+    private Future<?> mConnectionWaiterTask;
+
+    private volatile TransportServerSocket mServerSocket;
+
+    // Every address this engine has been connected to, to count reconnects.
+    private final HashSet<String> mKnownAddresses = new HashSet<String>();
+
+    private final AtomicLong mSocketIOExceptions = new AtomicLong();
+
+    private final AtomicLong mReconnects = new AtomicLong();
+
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+
+    private final AtomicLong mResumes = new AtomicLong();
+
+    private final AtomicLong mRelayedFrames = new AtomicLong();
+
+    private final AtomicLong mRelayDroppedFrames = new AtomicLong();
+
+    private final SnapshotChannel mSnapshots = new SnapshotChannel();
+
+    private final FileTransfers mTransfers = new FileTransfers(new FileTransfers.Listener() {
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.transferProgress(device, transferId, incoming, bytes, totalBytes);
+            }
+        }
+
+        public void transferReceived(String device, int transferId, String name, File file) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.transferReceived(device, transferId, name, file);
+            } else {
+                file.delete();
+            }
+        }
+
+        public void transferFailed(String device, int transferId, boolean incoming) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.transferFailed(device, transferId, incoming);
+            }
+        }
+    });
+
+    // Shared by the reader threads; messages are delivered in its buffers.
+    private final BufferPool mReceivePool = new BufferPool();
+
+    private final HashMap<Integer, Channel> mChannels = new HashMap<Integer, Channel>();
+
+    private final FrameCompressor mCompressor = new FrameCompressor();
+
+    private volatile int mCompressionMode = Connection.COMPRESSION_OFF;
+
+    private volatile int mCompressionMinBytes = 0;
+
+    private int mFlushPolicy = Connection.FLUSH_IMMEDIATE;
+
+    private int mFlushValue = 0;
+
+    private int mOverflowPolicy = Connection.OVERFLOW_BLOCK;
+
+    private int mMaxQueuedBytes = 0;
+
+    private volatile boolean isListening = false;
+
+    // The accept loop's state, guarded by mAcceptLock.
+    private final Object mAcceptLock = new Object();
+
+    private String mServiceName;
+
+    private int mNewSessionsLeft;
+
+    private int mNextSlot;
+
+    private boolean mMaxConnectionsReported;
+
+    // Server-side sessions waiting for their client to reconnect.
+    private int mSuspendedPeers;
+
+    private boolean mAccepting;
+
+    // 0 ends a session as soon as its socket fails.
+    private volatile int mResumeGraceMillis = 0;
+
+    // Sent frames kept for replay; none while resume is off.
+    private int mMaxReplayBytes = 0;
+
+    // Credit granted to each peer beyond what we have handled; 0 grants
+    // none, so that peers send as fast as they like. See FlowControl.
+    private volatile int mReceiveWindow = 0;
+
+    private final RelayRouter mRouter = new RelayRouter();
+
+    // Whether relayed frames are passed on and links announced; see setRelay().
+    private volatile boolean mRelay = false;
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    // How long a new connection gets to send its HELLO.
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private static final long RECONNECT_BACKOFF_MILLIS = 250;
+
+    // How long shutdown() waits for BYEs to go out before closing sockets.
+    private static final long BYE_TIMEOUT_MILLIS = 200;
+
+    private final Object mPingLock = new Object();
+
+    // 0 turns pings off.
+    private int mPingIntervalMillis = 0;
+
+    private boolean mPingLoopRunning = false;
+
+    private final Object mTickLock = new Object();
+
+    // 0 turns tick mode off. Written under both this and mTickLock.
+    private volatile int mTicksPerSecond = 0;
+
+    private boolean mTickLoopRunning = false;
+
+    // Number of the next tick, kept across rate changes; mTickLock.
+    private long mNextTick;
+
+    private volatile boolean mClosed = false;
+
+    public ConnectionEngine(Transport transport, FastConnector.SlotStore slotStore) {
+        this(transport, slotStore, newDefaultIoExecutor());
+    }
+
+    public ConnectionEngine(Transport transport, FastConnector.SlotStore slotStore, IoExecutor ioExecutor) {
+        this(transport, SLOT_UUIDS, slotStore, ioExecutor);
+    }
+
+    /**
+     * An engine that listens and connects on slotUuids instead of
+     * SLOT_UUIDS, so that several can share one transport.
+     */
+    public ConnectionEngine(Transport transport, List<UUID> slotUuids, FastConnector.SlotStore slotStore,
+            IoExecutor ioExecutor) {
+        mTransport = transport;
+        mSlotUuids = slotUuids;
+        mFastConnector = new FastConnector(transport, slotUuids, slotStore);
+        mIoExecutor = ioExecutor;
+    }
+
+    /**
+     * A reader and a writer per peer (a relay's MAX_SUPPORTED clients and
+     * its own server) plus the accept, ping and tick loops and a
+     * connection's handshake, at a raised priority since every game message
+     * waits on these threads.
+     */
+    static IoExecutor newDefaultIoExecutor() {
+        return new IoExecutor("bt-io", 2 * (Connection.MAX_SUPPORTED + 1) + 4, Thread.NORM_PRIORITY + 2, false);
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    private class BtStreamWatcher implements Runnable {
+        private final Peer peer;
+
+        private FrameReader reader;
+
+        // Frames received in this session, and since the last ACK was asked for.
+        private long received;
+
+        private int unackedFrames;
+
+        private int unackedBytes;
+
+        // Bytes handled in this session, and the last credit granted (0 for
+        // none yet); see FlowControl.
+        private long consumed;
+
+        private long granted;
+
+        public BtStreamWatcher(Peer connectedPeer, FrameReader frameReader) {
+            peer = connectedPeer;
+            reader = frameReader;
+        }
+
+        public void run() {
+            String address = peer.getAddress();
+            LinkStats stats = peer.getStats();
+            FrameCompressor.Decompressor decompressor = null;
+            // Kept across a resume, since the replay carries on where the
+            // old socket stopped.
+            ChannelFrames.Reassembler reassembler = null;
+            RelayRouter.Envelope envelope = null;
+            grantCredit();
+            try {
+                boolean ended = false;
+                while (!ended) {
+                    // Set while a frame is being handled, so that a frame we
+                    // cannot handle ends the session instead of being
+                    // replayed into the same error.
+                    boolean handling = false;
+                    try {
+                        for (; reader.next(); handling = false) {
+                            handling = true;
+                            int flags = reader.getFlags();
+                            byte[] buffer = reader.getBuffer();
+                            int offset = reader.getPayloadOffset();
+                            int length = reader.getPayloadLength();
+                            int wireLength = WireFormat.headerSize(length) + length;
+                            if ((flags & WireFormat.FLAG_COMPRESSED) != 0) {
+                                if (decompressor == null) {
+                                    decompressor = new FrameCompressor.Decompressor();
+                                }
+                                length = decompressor.decompress(buffer, offset, length);
+                                buffer = decompressor.getBuffer();
+                                offset = 0;
+                            }
+                            if ((flags & WireFormat.FLAG_CONTROL) != 0) {
+                                if (SessionResume.isBye(buffer, offset, length)) {
+                                    ended = true;
+                                    break;
+                                }
+                                handleControl(peer, buffer, offset, length);
+                                continue;
+                            }
+                            if ((flags & WireFormat.FLAG_SNAPSHOT) != 0) {
+                                handleSnapshot(peer, buffer, offset, length, wireLength);
+                            } else if ((flags & WireFormat.FLAG_CHANNEL) != 0) {
+                                if (reassembler == null) {
+                                    reassembler = new ChannelFrames.Reassembler(mReceivePool);
+                                }
+                                handleChannel(address, reassembler, buffer, offset, length, wireLength, stats);
+                            } else if ((flags & WireFormat.FLAG_RELAY) != 0) {
+                                if (envelope == null) {
+                                    envelope = new RelayRouter.Envelope();
+                                }
+                                handleRelay(peer, envelope, buffer, offset, length, wireLength);
+                            } else if ((flags & WireFormat.FLAG_TRANSFER) != 0) {
+                                mTransfers.receive(address, peer.getWriter(), buffer, offset, length);
+                                stats.onBytesReceived(wireLength);
+                            } else {
+                                long start = System.nanoTime();
+                                Callback callback = mCallback;
+                                if (callback != null) {
+                                    callback.messageReceived(address, mReceivePool.copyOf(buffer, offset, length));
+                                }
+                                stats.onMessageReceived(wireLength, (System.nanoTime() - start) / 1000);
+                            }
+                            countReceived(wireLength);
+                        }
+                    } catch (IOException e) {
+                        Log.i(TAG, "IOException in BtStreamWatcher - probably caused by normal disconnection", e);
+                        ended = handling;
+                    }
+                    if (!ended && !resume()) {
+                        break;
+                    }
+                }
+            } finally {
+                if (decompressor != null) {
+                    decompressor.end();
+                }
+                if (reassembler != null) {
+                    reassembler.clear();
+                }
+            }
+            // Getting out of the while loop means the session is over.
+            try {
+                peer.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException in BtStreamWatcher while disconnecting", e);
+            }
+            // A reconnect may already have replaced this peer; leave that one be.
+            mTransfers.peerLost(peer.getWriter());
+            List<String> unreachable = Collections.emptyList();
+            if (mPeers.remove(peer)) {
+                mSnapshots.removePeer(address);
+                unreachable = mRouter.removeRoutesThrough(address);
+                if (mRelay) {
+                    announce(RelayRouter.LEAVE, address);
+                    for (String device : unreachable) {
+                        announce(RelayRouter.LEAVE, device);
+                    }
+                }
+            }
+            mConnectionsLost.incrementAndGet();
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.connectionLost(address);
+                for (String device : unreachable) {
+                    callback.connectionLost(device);
+                }
+            }
+        }
+
+        private void countReceived(int wireLength) {
+            received++;
+            // Only a peer that can resume keeps frames for us to trim.
+            if (mResumeGraceMillis > 0) {
+                unackedFrames++;
+                unackedBytes += wireLength;
+                if (unackedFrames >= SessionResume.ACK_EVERY_FRAMES
+                        || unackedBytes >= SessionResume.ACK_EVERY_BYTES) {
+                    unackedFrames = 0;
+                    unackedBytes = 0;
+                    peer.getWriter().requestAck(received);
+                }
+            }
+            consumed += wireLength;
+            grantCredit();
+        }
+
+        // Also picks up a change to the window, with the next frame.
+        private void grantCredit() {
+            long limit = FlowControl.nextGrant(consumed, mReceiveWindow, granted);
+            if (limit != 0) {
+                granted = limit;
+                peer.getWriter().sendCredit(limit);
+            }
+        }
+
+        /**
+         * Bridges a dropout: suspends the writer and, within the grace
+         * period, moves the session to a new socket. Returns false if the
+         * session is over.
+         */
+        private boolean resume() {
+            long graceMillis = mResumeGraceMillis;
+            PeerWriter writer = peer.getWriter();
+            if (graceMillis <= 0 || peer.isClosed() || !writer.suspend()) {
+                return false;
+            }
+            String address = peer.getAddress();
+            closeQuietly(peer.getSocket());
+            Log.i(TAG, "Lost connection to " + address + "; resuming within " + graceMillis + " ms");
+            long deadline = System.currentTimeMillis() + graceMillis;
+            FrameReader resumed;
+            try {
+                resumed = peer.isClient() ? reconnect(deadline) : awaitReconnect(deadline);
+            } catch (InterruptedException e) {
+                Log.i(TAG, "Interrupted resuming session with " + address);
+                return false;
+            }
+            if (resumed == null) {
+                Log.i(TAG, "Could not resume session with " + address);
+                return false;
+            }
+            Log.i(TAG, "Resumed session with " + address);
+            reader = resumed;
+            unackedFrames = 0;
+            unackedBytes = 0;
+            mResumes.incrementAndGet();
+            return true;
+        }
+
+        private FrameReader reconnect(long deadline) throws InterruptedException {
+            String address = peer.getAddress();
+            PeerWriter writer = peer.getWriter();
+            while (System.currentTimeMillis() < deadline && !peer.isClosed()) {
+                TransportSocket socket = mFastConnector.connect(address);
+                if (socket != null) {
+                    try {
+                        FrameReader resumed = new FrameReader(socket.getInputStream());
+                        SessionResume.writeHandshake(socket,
+                                SessionResume.encodeHello(peer.getSessionId(), received, writer.getReplayFrom()));
+                        SessionResume.Handshake welcome = SessionResume.readHandshake(resumed, SessionResume.WELCOME);
+                        if (welcome.mSessionId == peer.getSessionId() && peer.attach(socket)
+                                && writer.resume(socket.getOutputStream(), welcome.mReceived)) {
+                            return resumed;
+                        }
+                        // The server has dropped the session, or one side no
+                        // longer has what the other missed.
+                        closeQuietly(socket);
+                        return null;
+                    } catch (IOException e) {
+                        Log.i(TAG, "IOException resuming session with " + address, e);
+                        closeQuietly(socket);
+                    }
+                }
+                Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+            }
+            return null;
+        }
+
+        private FrameReader awaitReconnect(long deadline) throws InterruptedException {
+            // The client comes back through the accept loop, which has to be
+            // running for that even if the server has stopped taking new
+            // clients.
+            synchronized(mAcceptLock) {
+                mSuspendedPeers++;
+                startAccepting();
+            }
+            try {
+                Peer.Offer offer = peer.awaitOffer(deadline);
+                if (offer == null) {
+                    return null;
+                }
+                TransportSocket socket = offer.mSocket;
+                PeerWriter writer = peer.getWriter();
+                SessionResume.Handshake hello = offer.mHello;
+                boolean resumable = writer.canReplayFrom(hello.mReceived) && hello.mReplayFrom <= received;
+                try {
+                    SessionResume.writeHandshake(socket,
+                            SessionResume.encodeWelcome(resumable ? peer.getSessionId() : 0, received));
+                    if (resumable && peer.attach(socket) && writer.resume(socket.getOutputStream(), hello.mReceived)) {
+                        return offer.mReader;
+                    }
+                } catch (IOException e) {
+                    Log.i(TAG, "IOException resuming session with " + peer.getAddress(), e);
+                }
+                closeQuietly(socket);
+                return null;
+            } finally {
+                TransportServerSocket serverSocket = null;
+                synchronized(mAcceptLock) {
+                    mSuspendedPeers--;
+                    if (!isListening && mSuspendedPeers == 0) {
+                        serverSocket = mServerSocket;
+                        mServerSocket = null;
+                    }
+                }
+                if (serverSocket != null) {
+                    // Nothing left to accept; unblock the accept loop.
+                    try {
+                        serverSocket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "IOException closing server socket", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.i(TAG, "IOException closing socket", e);
+        }
+    }
+
+    private void handleControl(Peer peer, byte[] buffer, int offset, int length) {
+        long now = LinkClock.nowMicros();
+        if (length == LinkClock.PING_LENGTH && buffer[offset] == LinkClock.PING) {
+            byte[] pong = LinkClock.encodePong(buffer, offset, now, LinkClock.nowMicros());
+            try {
+                // A pong that cannot be queued right away is just a lost sample.
+                peer.getWriter().enqueue(WireFormat.encode(WireFormat.FLAG_CONTROL, pong),
+                        PeerWriter.CONTROL_PRIORITY, false);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException sending pong", e);
+            }
+        } else if (length == LinkClock.PONG_LENGTH && buffer[offset] == LinkClock.PONG) {
+            LinkClock clock = peer.getStats().getClock();
+            if (clock.onPong(buffer, offset, now)) {
+                Callback callback = mCallback;
+                if (callback != null) {
+                    callback.linkTimingUpdated(peer.getAddress(), clock.getRttMicros(), clock.getJitterMicros(),
+                            clock.getClockOffsetMicros());
+                }
+            }
+        } else if (SessionResume.isAck(buffer, offset, length)) {
+            peer.getWriter().acknowledge(SessionResume.getAckReceived(buffer, offset));
+        } else if (FlowControl.isCredit(buffer, offset, length)) {
+            if (peer.getWriter().onCredit(FlowControl.getLimit(buffer, offset))) {
+                mTransfers.writable(peer.getAddress());
+                Callback callback = mCallback;
+                if (callback != null) {
+                    callback.writable(peer.getAddress());
+                }
+            }
+        } else {
+            Log.i(TAG, "Ignoring unknown control frame from " + peer.getAddress());
+        }
+    }
+
+    private void handleSnapshot(Peer peer, byte[] buffer, int offset, int length, int wireLength)
+            throws IOException {
+        long start = System.nanoTime();
+        String address = peer.getAddress();
+        SnapshotChannel.Received received = mSnapshots.receive(address, buffer, offset, length);
+        if (received == null) {
+            return;
+        }
+        try {
+            // A lost ack only means the next delta uses an older base.
+            peer.getWriter().enqueue(WireFormat.encode(WireFormat.FLAG_SNAPSHOT, received.mReply),
+                    PeerWriter.CONTROL_PRIORITY, false);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException acknowledging snapshot", e);
+        }
+        if (received.mSnapshot == null) {
+            Log.i(TAG, "Snapshot " + received.mSeq + " from " + address + " has no baseline; resyncing");
+            return;
+        }
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.snapshotReceived(address, received.mSeq, received.mSnapshot);
+        }
+        peer.getStats().onMessageReceived(wireLength, (System.nanoTime() - start) / 1000);
+    }
+
+    private void handleChannel(String address, ChannelFrames.Reassembler reassembler, byte[] buffer,
+            int offset, int length, int wireLength, LinkStats stats) throws IOException {
+        long start = System.nanoTime();
+        BufferPool.Buffer message = reassembler.receive(buffer, offset, length);
+        if (message == null) {
+            stats.onBytesReceived(wireLength);
+            return;
+        }
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.channelMessageReceived(address, reassembler.getChannel(), message);
+        } else {
+            message.release();
+        }
+        stats.onMessageReceived(wireLength, (System.nanoTime() - start) / 1000);
+    }
+
+    private void handleRelay(Peer peer, RelayRouter.Envelope envelope, byte[] buffer, int offset, int length,
+            int wireLength) throws IOException {
+        long start = System.nanoTime();
+        RelayRouter.decode(buffer, offset, length, envelope);
+        String from = peer.getAddress();
+        String origin = envelope.mOrigin.length() > 0 ? envelope.mOrigin : from;
+        LinkStats stats = peer.getStats();
+        if (!mRouter.firstSighting(origin, envelope.mId)) {
+            stats.onBytesReceived(wireLength);
+            return;
+        }
+        boolean passOn = mRelay && envelope.mTtl > 1;
+        Callback callback = mCallback;
+        if (envelope.mKind == RelayRouter.MESSAGE) {
+            if (envelope.mBroadcast || envelope.mDestination.length() == 0) {
+                if (callback != null) {
+                    callback.messageReceived(origin,
+                            mReceivePool.copyOf(buffer, envelope.mBodyOffset, envelope.mBodyLength));
+                }
+                stats.onMessageReceived(wireLength, (System.nanoTime() - start) / 1000);
+            } else {
+                stats.onBytesReceived(wireLength);
+            }
+            if (passOn && envelope.mBroadcast) {
+                relay(envelope, origin, buffer, from);
+            } else if (passOn && envelope.mDestination.length() > 0) {
+                relay(envelope, origin, buffer, null);
+            }
+            return;
+        }
+        stats.onBytesReceived(wireLength);
+        String device = RelayRouter.getDevice(buffer, envelope);
+        if (envelope.mKind == RelayRouter.JOIN) {
+            // A direct connection beats any route; and we cannot route to
+            // ourselves.
+            if (mPeers.get(device) != null || device.equals(mTransport.getAddress())
+                    || !mRouter.addRoute(device, from)) {
+                return;
+            }
+            if (passOn) {
+                relay(envelope, origin, buffer, from);
+            }
+            if (callback != null) {
+                callback.incomingConnection(device);
+            }
+        } else if (envelope.mKind == RelayRouter.LEAVE) {
+            if (!mRouter.removeRoute(device, from)) {
+                return;
+            }
+            if (passOn) {
+                relay(envelope, origin, buffer, from);
+            }
+            if (callback != null) {
+                callback.connectionLost(device);
+            }
+        } else {
+            Log.i(TAG, "Ignoring unknown relay frame from " + from);
+        }
+    }
+
+    /**
+     * Passes a relayed frame on, one hop closer to the end of its ttl: to
+     * every peer other than except if it is for everyone, or else towards
+     * its destination. Never blocks, since it runs on a reader thread; a peer
+     * whose queue is full misses the frame.
+     */
+    private void relay(RelayRouter.Envelope envelope, String origin, byte[] buffer, String except) {
+        int header = envelope.mKind | (envelope.mBroadcast ? RelayRouter.BROADCAST : 0);
+        if (envelope.mBroadcast) {
+            byte[] payload = RelayRouter.encode(header, envelope.mTtl - 1, envelope.mId, origin, "", buffer,
+                    envelope.mBodyOffset, envelope.mBodyLength);
+            flood(payload, except);
+            return;
+        }
+        String destination = envelope.mDestination;
+        Peer next = mPeers.get(destination);
+        if (next != null) {
+            // The last hop; the destination knows the frame is for it.
+            destination = "";
+        } else {
+            String nextHop = mRouter.getNextHop(destination);
+            next = nextHop != null ? mPeers.get(nextHop) : null;
+        }
+        if (next == null) {
+            mRelayDroppedFrames.incrementAndGet();
+            return;
+        }
+        byte[] payload = RelayRouter.encode(header, envelope.mTtl - 1, envelope.mId, origin, destination, buffer,
+                envelope.mBodyOffset, envelope.mBodyLength);
+        queueRelayed(next.getWriter(), new OutgoingFrame(WireFormat.FLAG_RELAY, payload));
+    }
+
+    private void flood(byte[] payload, String except) {
+        OutgoingFrame frame = new OutgoingFrame(WireFormat.FLAG_RELAY, payload);
+        for (Peer peer : mPeers.snapshot()) {
+            if (!peer.getAddress().equals(except)) {
+                queueRelayed(peer.getWriter(), frame);
+            }
+        }
+    }
+
+    private void queueRelayed(PeerWriter writer, OutgoingFrame frame) {
+        int result = Connection.FAILURE;
+        try {
+            result = writer.enqueue(frame.forPeer(writer), false);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException relaying a frame", e);
+        }
+        if (result == Connection.SUCCESS || result == Connection.QUEUE_OVERFLOW) {
+            mRelayedFrames.incrementAndGet();
+        } else {
+            mRelayDroppedFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Tells every peer that device joined or left the tree through us.
+     */
+    private void announce(int kind, String device) {
+        flood(RelayRouter.encodeAnnouncement(kind, mRouter.nextId(), device), device);
+    }
+
+    /**
+     * Tells peer about every other device it can reach through us.
+     */
+    private void announceTree(Peer peer) {
+        String address = peer.getAddress();
+        PeerWriter writer = peer.getWriter();
+        List<String> devices = new ArrayList<String>(Arrays.asList(mRouter.getRoutedDevices()));
+        devices.addAll(Arrays.asList(mPeers.getAddresses()));
+        for (String device : devices) {
+            if (!device.equals(address)) {
+                byte[] payload = RelayRouter.encodeAnnouncement(RelayRouter.JOIN, mRouter.nextId(), device);
+                queueRelayed(writer, new OutgoingFrame(WireFormat.FLAG_RELAY, payload));
+            }
+        }
+    }
+
+    private class PingLoop implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    synchronized(mPingLock) {
+                        if (mPingIntervalMillis <= 0 || mClosed) {
+                            mPingLoopRunning = false;
+                            return;
+                        }
+                        mPingLock.wait(mPingIntervalMillis);
+                        if (mPingIntervalMillis <= 0 || mClosed) {
+                            mPingLoopRunning = false;
+                            return;
+                        }
+                    }
+                    for (Peer peer : mPeers.snapshot()) {
+                        // Stamp each ping just before queueing it.
+                        byte[] ping = LinkClock.encodePing(LinkClock.nowMicros());
+                        peer.getWriter().enqueue(WireFormat.encode(WireFormat.FLAG_CONTROL, ping),
+                                PeerWriter.CONTROL_PRIORITY, false);
+                    }
+                }
+            } catch (InterruptedException e) {
+                synchronized(mPingLock) {
+                    mPingLoopRunning = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pings every peer each intervalMillis to track RTT, jitter and clock
+     * offset; 0 stops. The peer answers whether or not it pings too.
+     */
+    public int setPingInterval(int intervalMillis) {
+        synchronized(mPingLock) {
+            mPingIntervalMillis = intervalMillis;
+            mPingLock.notifyAll();
+            if (intervalMillis <= 0 || mPingLoopRunning || mClosed) {
+                return Connection.SUCCESS;
+            }
+            if (mIoExecutor.execute("bt-ping", new PingLoop()) == null) {
+                return Connection.FAILURE;
+            }
+            mPingLoopRunning = true;
+        }
+        return Connection.SUCCESS;
+    }
+
+    private class TickLoop implements Runnable {
+        public void run() {
+            TickScheduler scheduler = null;
+            try {
+                while (true) {
+                    long tick;
+                    synchronized(mTickLock) {
+                        while (true) {
+                            if (mTicksPerSecond <= 0 || mClosed) {
+                                mTickLoopRunning = false;
+                                return;
+                            }
+                            long now = System.nanoTime();
+                            if (scheduler == null || scheduler.getTicksPerSecond() != mTicksPerSecond) {
+                                scheduler = new TickScheduler(mTicksPerSecond, now, mNextTick);
+                            }
+                            long waitNanos = scheduler.nanosUntilNextTick(now);
+                            if (waitNanos <= 0) {
+                                break;
+                            }
+                            mTickLock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        }
+                        tick = scheduler.advance(System.nanoTime());
+                        mNextTick = scheduler.getNextTick();
+                    }
+                    for (Peer peer : mPeers.snapshot()) {
+                        peer.getWriter().tick();
+                    }
+                    Callback callback = mCallback;
+                    if (callback != null) {
+                        callback.tick(tick);
+                    }
+                }
+            } catch (InterruptedException e) {
+                synchronized(mTickLock) {
+                    mTickLoopRunning = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tick mode at ticksPerSecond; 0 turns it off, which sends what is held
+     * under the flush policy. While it is on, messages to each peer are held
+     * until the next tick and then written together, whatever the flush
+     * policy, and Callback.tick() follows each tick. Ticks are due at fixed
+     * times from when the mode starts, so a late one does not delay the
+     * rest; ones missed entirely are skipped.
+     */
+    public synchronized int setTickRate(int ticksPerSecond) {
+        for (Peer peer : mPeers.snapshot()) {
+            peer.getWriter().setTickMode(ticksPerSecond > 0);
+        }
+        synchronized(mTickLock) {
+            mTicksPerSecond = ticksPerSecond;
+            mTickLock.notifyAll();
+            if (ticksPerSecond <= 0 || mTickLoopRunning || mClosed) {
+                return Connection.SUCCESS;
+            }
+            if (mIoExecutor.execute("bt-tick", new TickLoop()) == null) {
+                mTicksPerSecond = 0;
+                for (Peer peer : mPeers.snapshot()) {
+                    peer.getWriter().setTickMode(false);
+                }
+                return Connection.FAILURE;
+            }
+            mTickLoopRunning = true;
+        }
+        return Connection.SUCCESS;
+    }
+
+    /**
+     * What the handshake on an accepted socket made of it. ConnectionWaiter
+     * gives the handshake HANDSHAKE_TIMEOUT_MILLIS to claim the socket and
+     * closes it otherwise.
+     */
+    private static final class Accepted {
+        static final int PENDING = 0;
+
+        static final int CLAIMED = 1;
+
+        static final int TIMED_OUT = 2;
+
+        static final int NEW_SESSION = 3;
+
+        static final int RESUMED = 4;
+
+        static final int REFUSED = 5;
+
+        private int mOutcome = PENDING;
+
+        synchronized boolean claim() {
+            if (mOutcome != PENDING) {
+                return false;
+            }
+            mOutcome = CLAIMED;
+            return true;
+        }
+
+        synchronized void finish(int outcome) {
+            if (mOutcome != TIMED_OUT) {
+                mOutcome = outcome;
+                notifyAll();
+            }
+        }
+
+        synchronized int await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (mOutcome == PENDING) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    mOutcome = TIMED_OUT;
+                    return mOutcome;
+                }
+                wait(remaining);
+            }
+            while (mOutcome == CLAIMED) {
+                wait();
+            }
+            return mOutcome;
+        }
+    }
+
+    /**
+     * Reads the HELLO on an accepted socket and either starts a new session
+     * on it or hands it to the suspended session it resumes.
+     */
+    private class AcceptHandshake implements Runnable {
+        private final TransportSocket socket;
+
+        private final Accepted accepted;
+
+        public AcceptHandshake(TransportSocket acceptedSocket, Accepted outcome) {
+            socket = acceptedSocket;
+            accepted = outcome;
+        }
+
+        public void run() {
+            String address = socket.getRemoteAddress();
+            int outcome = Accepted.REFUSED;
+            try {
+                FrameReader reader = new FrameReader(socket.getInputStream());
+                SessionResume.Handshake hello = SessionResume.readHandshake(reader, SessionResume.HELLO);
+                if (!accepted.claim()) {
+                    // ConnectionWaiter gave up on us and closed the socket.
+                    return;
+                }
+                if (hello.mSessionId != 0) {
+                    Peer peer = mPeers.get(address);
+                    if (peer != null && peer.getSessionId() == hello.mSessionId
+                            && peer.offer(new Peer.Offer(socket, reader, hello))) {
+                        outcome = Accepted.RESUMED;
+                        return;
+                    }
+                    Log.i(TAG, "No session to resume for " + address);
+                } else if (takeNewSession()) {
+                    try {
+                        long sessionId = SessionResume.newSessionId();
+                        SessionResume.writeHandshake(socket, SessionResume.encodeWelcome(sessionId, 0));
+                        startPeer(address, socket, reader, sessionId, false);
+                        outcome = Accepted.NEW_SESSION;
+                        return;
+                    } finally {
+                        if (outcome != Accepted.NEW_SESSION) {
+                            giveBackNewSession();
+                        }
+                    }
+                }
+                SessionResume.writeHandshake(socket, SessionResume.encodeWelcome(0, 0));
+            } catch (IOException e) {
+                Log.i(TAG, "IOException in handshake with " + address, e);
+            } finally {
+                accepted.finish(outcome);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Accepts new clients while the server is listening and has room, and
+     * reconnects to suspended sessions whether or not it is.
+     */
+    private class ConnectionWaiter implements Runnable {
+        public void run() {
+            while (true) {
+                String serviceName;
+                int slot;
+                boolean full = false;
+                synchronized(mAcceptLock) {
+                    boolean acceptNew = canAcceptNewSession();
+                    if (!acceptNew && isListening && !mMaxConnectionsReported) {
+                        mMaxConnectionsReported = true;
+                        full = true;
+                    }
+                    if (!hasSomethingToAccept()) {
+                        mAccepting = false;
+                    }
+                    serviceName = mServiceName;
+                    slot = Math.min(mNextSlot, Connection.MAX_SUPPORTED - 1);
+                }
+                Callback callback = mCallback;
+                if (full && callback != null) {
+                    callback.maxConnectionsReached();
+                }
+                if (!isAccepting()) {
+                    return;
+                }
+                TransportSocket myBSock;
+                TransportServerSocket myServerSocket = null;
+                try {
+                    myServerSocket = mTransport.listen(serviceName, mSlotUuids.get(slot));
+                    mServerSocket = myServerSocket;
+                    if (!hasSomethingToAccept()) {
+                        myServerSocket.close();
+                        mServerSocket = null;
+                        continue;
+                    }
+                    myBSock = myServerSocket.accept();
+                    myServerSocket.close(); // Close the socket now that the
+                    // connection has been made.
+                    mServerSocket = null;
+                } catch (IOException e) {
+                    if (myServerSocket != null && mServerSocket != myServerSocket) {
+                        // stopServer() closed the socket we were accepting
+                        // on; see whether there is still something to accept.
+                        continue;
+                    }
+                    mServerSocket = null;
+                    synchronized(mAcceptLock) {
+                        mAccepting = false;
+                    }
+                    mSocketIOExceptions.incrementAndGet();
+                    callback = mCallback;
+                    if (callback != null) {
+                        callback.socketIOException();   // Android 4.2 servers will fail here when out of available bt sockets
+                    }
+                    Log.i(TAG, "IOException in ConnectionEngine:ConnectionWaiter", e);
+                    return;
+                }
+
+                String address = myBSock.getRemoteAddress();
+                Accepted accepted = new Accepted();
+                int outcome;
+                try {
+                    if (mIoExecutor.execute("bt-read-" + address, new AcceptHandshake(myBSock, accepted)) == null) {
+                        Log.e(TAG, "No I/O thread available for " + address);
+                        closeQuietly(myBSock);
+                        continue;
+                    }
+                    outcome = accepted.await(HANDSHAKE_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    synchronized(mAcceptLock) {
+                        mAccepting = false;
+                    }
+                    closeQuietly(myBSock);
+                    return;
+                }
+                if (outcome == Accepted.TIMED_OUT) {
+                    Log.i(TAG, "No handshake from " + address);
+                    closeQuietly(myBSock);
+                } else if (outcome == Accepted.NEW_SESSION) {
+                    callback = mCallback;
+                    if (callback != null) {
+                        callback.incomingConnection(address);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean canAcceptNewSession() {
+        synchronized(mAcceptLock) {
+            return isListening && mNewSessionsLeft > 0 && mNextSlot < Connection.MAX_SUPPORTED;
+        }
+    }
+
+    /**
+     * Counts a new session against startServer()'s limit before the client
+     * is let in, so that a startServer() issued as soon as it is gone again
+     * is not undone.
+     */
+    private boolean takeNewSession() {
+        synchronized(mAcceptLock) {
+            if (!canAcceptNewSession()) {
+                return false;
+            }
+            mNewSessionsLeft--;
+            mNextSlot++;
+            return true;
+        }
+    }
+
+    private void giveBackNewSession() {
+        synchronized(mAcceptLock) {
+            mNewSessionsLeft++;
+            mNextSlot = Math.max(mNextSlot - 1, 0);
+        }
+    }
+
+    private boolean hasSomethingToAccept() {
+        synchronized(mAcceptLock) {
+            return !mClosed && (canAcceptNewSession() || mSuspendedPeers > 0);
+        }
+    }
+
+    private boolean isAccepting() {
+        synchronized(mAcceptLock) {
+            return mAccepting;
+        }
+    }
+
+    /**
+     * Starts the accept loop unless it is running. Call with mAcceptLock
+     * held.
+     */
+    private boolean startAccepting() {
+        if (mAccepting || mServiceName == null || mClosed) {
+            return true;
+        }
+        Future<?> task = mIoExecutor.execute("bt-accept-" + mServiceName, new ConnectionWaiter());
+        if (task == null) {
+            return false;
+        }
+        mAccepting = true;
+        mConnectionWaiterTask = task;
+        return true;
+    }
+
+    private final PeerWriter.OnWriteFailedListener mOnWriteFailedListener = new PeerWriter.OnWriteFailedListener() {
+        public void OnWriteFailed(String device, IOException e) {
+            Log.i(TAG, "IOException in PeerWriter - Dest:" + device, e);
+            // Closing the socket makes the BtStreamWatcher for this device
+            // fall out of its read loop and clean up.
+            Peer peer = mPeers.get(device);
+            if (peer != null) {
+                try {
+                    peer.getSocket().close();
+                } catch (IOException e1) {
+                    Log.e(TAG, "IOException closing socket after write failure", e1);
+                }
+            }
+        }
+    };
+
+    private synchronized void startPeer(String address, TransportSocket myBSock, FrameReader reader, long sessionId,
+            boolean client) throws IOException {
+        LinkStats stats = new LinkStats(address);
+        PeerWriter writer = new PeerWriter(address, myBSock.getOutputStream(), mOnWriteFailedListener, stats);
+        writer.setFlushPolicy(mFlushPolicy, mFlushValue);
+        writer.setTickMode(mTicksPerSecond > 0);
+        writer.setOverflowPolicy(mOverflowPolicy, mMaxQueuedBytes);
+        writer.setMaxReplayBytes(mMaxReplayBytes);
+        Peer peer = new Peer(address, sessionId, client, myBSock, writer, stats);
+        Peer previous = mPeers.put(peer);
+        if (previous != null) {
+            // A stale connection to the same device; its watcher cleans up.
+            Log.i(TAG, "Replacing stale connection to " + address);
+            previous.close();
+        }
+        if (mRelay) {
+            // Queued ahead of anything the new peer's messages could cause.
+            announce(RelayRouter.JOIN, address);
+            announceTree(peer);
+        }
+        Future<?> writerTask = mIoExecutor.execute("bt-write-" + address, writer);
+        Future<?> watcherTask = mIoExecutor.execute("bt-read-" + address, new BtStreamWatcher(peer, reader));
+        if (writerTask == null || watcherTask == null) {
+            // Undo what we can; a watcher that did start cleans up when the
+            // socket closes.
+            peer.close();
+            if (watcherTask == null) {
+                mPeers.remove(peer);
+            }
+            throw new IOException("No I/O thread available for " + address);
+        }
+        peer.setTasks(writerTask, watcherTask);
+        if (!mKnownAddresses.add(address)) {
+            mReconnects.incrementAndGet();
+        }
+        mTransfers.peerStarted(address, writer);
+    }
+
+    public int startServer(String serviceName, int maxConnections) {
+        synchronized(mAcceptLock) {
+            isListening = true;
+            mServiceName = serviceName;
+            mNewSessionsLeft = maxConnections;
+            mNextSlot = 0;
+            mMaxConnectionsReported = false;
+            if (!startAccepting()) {
+                isListening = false;
+                return Connection.FAILURE;
+            }
+        }
+        return Connection.SUCCESS;
+    }
+
+    public void stopServer() {
+        TransportServerSocket serverSocket;
+        synchronized(mAcceptLock) {
+            isListening = false;
+            // Clients of suspended sessions still need to get back in.
+            serverSocket = mSuspendedPeers == 0 ? mServerSocket : null;
+            if (serverSocket != null) {
+                mServerSocket = null;
+            }
+        }
+        // Unblock the accept() so the waiter's thread goes back to the pool
+        // instead of waiting for a client that may never come.
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException closing server socket in stopServer", e);
+            }
+        }
+    }
+
+    public int connect(String device) {
+        TransportSocket myBSock = mFastConnector.connect(device);
+        if (myBSock == null) {
+            mSocketIOExceptions.incrementAndGet();
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.socketIOException(); // Android 4.2 clients will fail here when out of available bt sockets
+            }
+            return Connection.FAILURE;
+        }
+
+        try {
+            FrameReader reader = new FrameReader(myBSock.getInputStream());
+            SessionResume.writeHandshake(myBSock, SessionResume.encodeHello(0, 0, 0));
+            SessionResume.Handshake welcome = SessionResume.readHandshake(reader, SessionResume.WELCOME);
+            if (welcome.mSessionId == 0) {
+                throw new IOException("Server refused the connection");
+            }
+            startPeer(device, myBSock, reader, welcome.mSessionId, true);
+        } catch (IOException e) {
+            Log.i(TAG, "IOException in connect", e);
+            closeQuietly(myBSock);
+            return Connection.FAILURE;
+        }
+        return Connection.SUCCESS;
+    }
+
+    public long getLastConnectMillis() {
+        return mFastConnector.getLastConnectMillis();
+    }
+
+    /**
+     * One payload on its way to one or more peers. The plain and compressed
+     * frames are each built at most once, when a peer first needs them.
+     */
+    private final class OutgoingFrame {
+        private final int mFlags;
+
+        private final byte[] mPayload;
+
+        private byte[] mPlainFrame;
+
+        private byte[] mCompressedFrame;
+
+        private int mCompressedLength;
+
+        private long mCompressNanos = -1;
+
+        OutgoingFrame(int flags, byte[] payload) {
+            mFlags = flags;
+            mPayload = payload;
+        }
+
+        byte[] forPeer(PeerWriter writer) {
+            FrameCompressor.PeerPolicy policy = writer.getCompressionPolicy();
+            if (policy.shouldCompress(mCompressionMode, mCompressionMinBytes, mPayload.length)) {
+                if (mCompressNanos < 0) {
+                    long start = System.nanoTime();
+                    byte[] compressed = mCompressor.compress(mPayload, 0, mPayload.length);
+                    mCompressNanos = System.nanoTime() - start;
+                    mCompressedLength = mPayload.length;
+                    if (compressed != null) {
+                        mCompressedLength = compressed.length;
+                        mCompressedFrame = WireFormat.encode(mFlags | WireFormat.FLAG_COMPRESSED, compressed);
+                    }
+                }
+                policy.record(mPayload.length, mCompressedLength, mCompressNanos);
+                if (mCompressedFrame != null) {
+                    return mCompressedFrame;
+                }
+            }
+            if (mPlainFrame == null) {
+                mPlainFrame = WireFormat.encode(mFlags, mPayload);
+            }
+            return mPlainFrame;
+        }
+    }
+
+    /**
+     * Sends message to a connected device or, failing that, to a device
+     * reached through a relay.
+     */
+    public int sendMessage(String destination, byte[] message) {
+        return sendMessage(destination, message, null);
+    }
+
+    /**
+     * sendMessage() that waits for room only if gate lets it; a null gate
+     * always does.
+     */
+    public int sendMessage(String destination, byte[] message, BlockingGate gate) {
+        Peer peer = mPeers.get(destination);
+        OutgoingFrame outgoing;
+        if (peer != null) {
+            outgoing = new OutgoingFrame(0, message);
+        } else {
+            String nextHop = mRouter.getNextHop(destination);
+            peer = nextHop != null ? mPeers.get(nextHop) : null;
+            if (peer == null) {
+                return Connection.FAILURE;
+            }
+            outgoing = new OutgoingFrame(WireFormat.FLAG_RELAY, RelayRouter.encode(RelayRouter.MESSAGE,
+                    RelayRouter.DEFAULT_TTL, mRouter.nextId(), "", destination, message, 0, message.length));
+        }
+        PeerWriter writer = peer.getWriter();
+        byte[][] frames = new byte[][] {outgoing.forPeer(writer)};
+        try {
+            return enqueue(writer, frames, Connection.DEFAULT_PRIORITY, PeerWriter.NO_KEY, gate);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in sendMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    /**
+     * Opens channel, or changes how it is sent. Messages on it go out at
+     * priority, and with DELIVERY_LATEST a message still queued for a peer
+     * is replaced by a newer one. Only the sender needs to open a channel.
+     */
+    public synchronized void openChannel(int channel, int priority, int delivery) {
+        mChannels.put(channel, new Channel(priority, delivery));
+    }
+
+    private synchronized Channel getChannel(int channel) {
+        return mChannels.get(channel);
+    }
+
+    private OutgoingFrame[] channelFrames(int channel, Channel config, byte[] message) {
+        byte[][] payloads = ChannelFrames.split(channel, message, config.mDelivery == Connection.DELIVERY_RELIABLE);
+        OutgoingFrame[] frames = new OutgoingFrame[payloads.length];
+        for (int i = 0; i < payloads.length; i++) {
+            frames[i] = new OutgoingFrame(WireFormat.FLAG_CHANNEL, payloads[i]);
+        }
+        return frames;
+    }
+
+    private static int latestKey(int channel, Channel config) {
+        return config.mDelivery == Connection.DELIVERY_LATEST ? channel : PeerWriter.NO_KEY;
+    }
+
+    private static byte[][] framesForPeer(OutgoingFrame[] outgoing, PeerWriter writer) {
+        byte[][] frames = new byte[outgoing.length][];
+        for (int i = 0; i < outgoing.length; i++) {
+            frames[i] = outgoing[i].forPeer(writer);
+        }
+        return frames;
+    }
+
+    public int sendChannelMessage(String destination, int channel, byte[] message) {
+        return sendChannelMessage(destination, channel, message, null);
+    }
+
+    public int sendChannelMessage(String destination, int channel, byte[] message, BlockingGate gate) {
+        Channel config = getChannel(channel);
+        Peer peer = mPeers.get(destination);
+        if (config == null || peer == null) {
+            return Connection.FAILURE;
+        }
+        PeerWriter writer = peer.getWriter();
+        byte[][] frames = framesForPeer(channelFrames(channel, config, message), writer);
+        try {
+            return enqueue(writer, frames, config.mPriority, latestKey(channel, config), gate);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in sendChannelMessage", e);
+        }
+        return Connection.FAILURE;
+    }
+
+    // Queues frames without waiting, and waits for room only if gate lets it.
+    private static int enqueue(PeerWriter writer, byte[][] frames, int priority, int latestKey, BlockingGate gate)
+            throws InterruptedException {
+        int result = writer.enqueue(frames, priority, latestKey, false);
+        if (result != PeerWriter.FULL) {
+            return result;
+        }
+        if (gate != null && !gate.enter()) {
+            gate.refused(writer.getAddress());
+            return Connection.WOULD_BLOCK;
+        }
+        try {
+            return writer.enqueue(frames, priority, latestKey, true);
+        } finally {
+            if (gate != null) {
+                gate.leave();
+            }
+        }
+    }
+
+    /**
+     * Encodes message once and hands the frame to every peer's writer. Peers
+     * whose queue has room are served first so that a peer applying
+     * OVERFLOW_BLOCK only delays the caller, never the other peers. In relay
+     * mode the relays pass it on to the rest of the tree. Returns the number
+     * of peers and, if devices/results are given, what happened for each.
+     */
+    public int broadcastMessage(byte[] message, String[] devices, int[] results) {
+        return broadcastMessage(message, devices, results, null);
+    }
+
+    /**
+     * broadcastMessage() that waits for full queues only if gate lets it,
+     * once for all of them.
+     */
+    public int broadcastMessage(byte[] message, String[] devices, int[] results, BlockingGate gate) {
+        OutgoingFrame outgoing;
+        if (mRelay) {
+            outgoing = new OutgoingFrame(WireFormat.FLAG_RELAY, RelayRouter.encode(
+                    RelayRouter.MESSAGE | RelayRouter.BROADCAST, RelayRouter.DEFAULT_TTL, mRouter.nextId(), "", "",
+                    message, 0, message.length));
+        } else {
+            outgoing = new OutgoingFrame(0, message);
+        }
+        return broadcast(new OutgoingFrame[] {outgoing}, Connection.DEFAULT_PRIORITY, PeerWriter.NO_KEY, devices,
+                results, gate);
+    }
+
+    /**
+     * broadcastMessage() on a channel; returns -1 if it is not open.
+     */
+    public int broadcastChannelMessage(int channel, byte[] message, String[] devices, int[] results) {
+        return broadcastChannelMessage(channel, message, devices, results, null);
+    }
+
+    public int broadcastChannelMessage(int channel, byte[] message, String[] devices, int[] results,
+            BlockingGate gate) {
+        Channel config = getChannel(channel);
+        if (config == null) {
+            return -1;
+        }
+        return broadcast(channelFrames(channel, config, message), config.mPriority, latestKey(channel, config),
+                devices, results, gate);
+    }
+
+    private int broadcast(OutgoingFrame[] outgoing, int priority, int latestKey, String[] devices, int[] results,
+            BlockingGate gate) {
+        Peer[] peers = mPeers.snapshot();
+        PeerWriter[] writers = new PeerWriter[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            writers[i] = peers[i].getWriter();
+        }
+        byte[][][] frames = new byte[writers.length][][];
+        for (int i = 0; i < writers.length; i++) {
+            frames[i] = framesForPeer(outgoing, writers[i]);
+        }
+        int[] outcome = new int[writers.length];
+        boolean anyFull = false;
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                outcome[i] = writers[i].enqueue(frames[i], priority, latestKey, false);
+                anyFull |= outcome[i] == PeerWriter.FULL;
+            }
+            if (anyFull && gate != null && !gate.enter()) {
+                for (int i = 0; i < writers.length; i++) {
+                    if (outcome[i] == PeerWriter.FULL) {
+                        gate.refused(writers[i].getAddress());
+                        outcome[i] = Connection.WOULD_BLOCK;
+                    }
+                }
+            } else if (anyFull) {
+                try {
+                    for (int i = 0; i < writers.length; i++) {
+                        if (outcome[i] == PeerWriter.FULL) {
+                            outcome[i] = writers[i].enqueue(frames[i], priority, latestKey, true);
+                        }
+                    }
+                } finally {
+                    if (gate != null) {
+                        gate.leave();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in broadcastMessage", e);
+            for (int i = 0; i < writers.length; i++) {
+                if (outcome[i] == PeerWriter.FULL) {
+                    outcome[i] = Connection.FAILURE;
+                }
+            }
+        }
+        int count = 0;
+        if (devices != null && results != null) {
+            count = Math.min(writers.length, Math.min(devices.length, results.length));
+            for (int i = 0; i < count; i++) {
+                devices[i] = writers[i].getAddress();
+                results[i] = outcome[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends snapshot to every peer on the snapshot channel, as a delta
+     * against the last snapshot the peer acknowledged where possible. The
+     * engine keeps snapshot as a baseline, so the caller must not modify it
+     * afterwards. Only the latest state matters, so a peer whose queue is
+     * full skips this snapshot instead of blocking the caller. Returns the
+     * number of peers it was queued for.
+     */
+    public int broadcastSnapshot(byte[] snapshot) {
+        Peer[] peers = mPeers.snapshot();
+        String[] addresses = new String[peers.length];
+        PeerWriter[] writers = new PeerWriter[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            addresses[i] = peers[i].getAddress();
+            writers[i] = peers[i].getWriter();
+        }
+        int seq = mSnapshots.add(snapshot);
+        byte[][] payloads = mSnapshots.encode(seq, addresses);
+        // Peers on the same baseline share a payload; encode it once.
+        IdentityHashMap<byte[], OutgoingFrame> outgoing = new IdentityHashMap<byte[], OutgoingFrame>();
+        int sent = 0;
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                OutgoingFrame frame = outgoing.get(payloads[i]);
+                if (frame == null) {
+                    frame = new OutgoingFrame(WireFormat.FLAG_SNAPSHOT, payloads[i]);
+                    outgoing.put(payloads[i], frame);
+                }
+                int result = writers[i].enqueue(frame.forPeer(writers[i]), false);
+                if (result == Connection.SUCCESS || result == Connection.QUEUE_OVERFLOW) {
+                    sent++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in broadcastSnapshot", e);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the whole of file to a connected device in chunks, from a
+     * read-only mapping, so the caller may close file once this returns.
+     * The chunks go in the lowest lane, so messages at any priority are
+     * written first, and a transfer whose session ends carries on when
+     * the device connects again (see FileTransfers). Returns the transfer
+     * id, which progress is reported under, or -1 if device is not
+     * connected or file cannot be mapped.
+     */
+    public int sendFile(String device, FileChannel file, String name) {
+        Peer peer = mPeers.get(device);
+        if (peer == null) {
+            return -1;
+        }
+        try {
+            return mTransfers.send(device, peer.getWriter(), file, name);
+        } catch (IOException e) {
+            Log.e(TAG, "IOException mapping file for " + device, e);
+        }
+        return -1;
+    }
+
+    /**
+     * Stops an outgoing transfer; returns false if it has already ended.
+     */
+    public boolean cancelTransfer(int transferId) {
+        return mTransfers.cancel(transferId);
+    }
+
+    /**
+     * Where files received from peers are written; without a directory
+     * they are refused.
+     */
+    public void setTransferDirectory(File directory) {
+        mTransfers.setDirectory(directory);
+    }
+
+    /**
+     * Connected addresses, each followed by a comma.
+     */
+    public String getConnections() {
+        StringBuilder connections = new StringBuilder();
+        for (Peer peer : mPeers.snapshot()) {
+            connections.append(peer.getAddress()).append(',');
+        }
+        return connections.toString();
+    }
+
+    public String[] getConnectionList() {
+        return mPeers.getAddresses();
+    }
+
+    public ConnectionStats getStats() {
+        Peer[] connected = mPeers.snapshot();
+        ConnectionStats.Peer[] peers = new ConnectionStats.Peer[connected.length];
+        for (int i = 0; i < peers.length; i++) {
+            PeerWriter writer = connected[i].getWriter();
+            peers[i] = connected[i].getStats().snapshot(writer.getQueuedBytes(), writer.getDroppedFrames());
+        }
+        return new ConnectionStats(mSocketIOExceptions.get(), mReconnects.get(), mConnectionsLost.get(),
+                mResumes.get(), mRelayedFrames.get(), mRelayDroppedFrames.get(), peers);
+    }
+
+    public void setCompression(int mode, int minBytes) {
+        mCompressionMode = mode;
+        mCompressionMinBytes = minBytes;
+    }
+
+    // Synchronized with startPeer() so that a peer connecting meanwhile
+    // gets the new policy either way.
+    public synchronized void setFlushPolicy(int policy, int value) {
+        mFlushPolicy = policy;
+        mFlushValue = value;
+        for (Peer peer : mPeers.snapshot()) {
+            peer.getWriter().setFlushPolicy(policy, value);
+        }
+    }
+
+    public synchronized void setOverflowPolicy(int policy, int maxQueuedBytes) {
+        mOverflowPolicy = policy;
+        mMaxQueuedBytes = maxQueuedBytes;
+        for (Peer peer : mPeers.snapshot()) {
+            peer.getWriter().setOverflowPolicy(policy, maxQueuedBytes);
+        }
+    }
+
+    /**
+     * Keeps a session whose socket fails for up to graceMillis (0 turns
+     * this off): the client reconnects to the same address, the server
+     * takes it back, and both replay what the other missed, so neither app
+     * sees connectionLost. Sends queue up meanwhile. Each side keeps up to
+     * maxReplayBytes (0 for the default) of sent frames the other has not
+     * acknowledged; a dropout that needs more ends the session. While
+     * resume is off nothing is kept and no ACKs are sent, so both ends
+     * should turn it on.
+     */
+    public synchronized void setSessionResume(int graceMillis, int maxReplayBytes) {
+        mResumeGraceMillis = graceMillis;
+        if (graceMillis <= 0) {
+            mMaxReplayBytes = 0;
+        } else {
+            mMaxReplayBytes = maxReplayBytes > 0 ? maxReplayBytes : PeerWriter.DEFAULT_MAX_REPLAY_BYTES;
+        }
+        for (Peer peer : mPeers.snapshot()) {
+            peer.getWriter().setMaxReplayBytes(mMaxReplayBytes);
+        }
+    }
+
+    /**
+     * Flow control: grants each peer windowBytes of credit beyond what this
+     * end has handled, so that a peer sending faster than we keep up gets
+     * Connection.WOULD_BLOCK instead of filling the link and its queue. 0
+     * (the default) lifts the limit. Peers hear of a change with the next
+     * frame they send us.
+     */
+    public void setReceiveWindow(int windowBytes) {
+        mReceiveWindow = windowBytes;
+    }
+
+    /**
+     * Relay mode: passes relayed frames on between peers, announces every
+     * peer to the others, and sends broadcasts so that relays pass them on.
+     * With startServer() on a client this makes it a relay for clients of
+     * its own, which the rest of the tree reaches through it. Every device
+     * in a session should use the same mode; devices reached through a
+     * relay see only messages, not channels or snapshots.
+     */
+    public synchronized void setRelay(boolean enabled) {
+        if (enabled == mRelay) {
+            return;
+        }
+        mRelay = enabled;
+        if (enabled) {
+            for (Peer peer : mPeers.snapshot()) {
+                announceTree(peer);
+            }
+        }
+    }
+
+    /**
+     * Devices reached through a relay rather than connected directly.
+     */
+    public String[] getRoutedDevices() {
+        return mRouter.getRoutedDevices();
+    }
+
+    public void shutdown() {
+        if (!shutdown(SHUTDOWN_TIMEOUT_MILLIS)) {
+            Log.e(TAG, "Connection threads still running after " + SHUTDOWN_TIMEOUT_MILLIS + " ms");
+        }
+    }
+
+    /**
+     * Closes every connection and waits up to timeoutMillis for their reader
+     * and writer tasks to finish. Returns false if some are still running.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        Peer[] peers;
+        synchronized(this) {
+            // Not while startPeer() is between registering a peer and
+            // recording its tasks.
+            peers = mPeers.clear();
+        }
+        // Tell each peer the session is over on purpose, so that it does not
+        // wait to resume it.
+        List<Future<?>> writerTasks = new ArrayList<Future<?>>();
+        byte[] bye = WireFormat.encode(WireFormat.FLAG_CONTROL, SessionResume.encodeBye());
+        for (Peer peer : peers) {
+            peer.getWriter().closeAfter(bye);
+            if (peer.getWriterTask() != null) {
+                writerTasks.add(peer.getWriterTask());
+            }
+        }
+        IoExecutor.await(writerTasks, Math.min(timeoutMillis, BYE_TIMEOUT_MILLIS));
+        for (Peer peer : peers) {
+            mSnapshots.removePeer(peer.getAddress());
+            if (peer.getWatcherTask() != null) {
+                tasks.add(peer.getWatcherTask());
+                tasks.add(peer.getWriterTask());
+            }
+            try {
+                peer.close();
+            } catch (IOException e) {
+                Log.i(TAG, "IOException in shutdown", e);
+            }
+        }
+        mTransfers.clear();
+        // Losing connect probes, which end with their connect attempts.
+        tasks.addAll(mFastConnector.getProbes());
+        return IoExecutor.await(tasks, timeoutMillis);
+    }
+
+    /**
+     * Stops the server and every connection, then the I/O threads. The
+     * engine cannot be used afterwards.
+     */
+    public void close() {
+        synchronized(mPingLock) {
+            mClosed = true;
+            mPingLock.notifyAll();
+        }
+        synchronized(mTickLock) {
+            mTickLock.notifyAll();
+        }
+        stopServer();
+        shutdown();
+        Future<?> waiter = mConnectionWaiterTask;
+        if (waiter != null) {
+            IoExecutor.await(Collections.<Future<?>>singletonList(waiter), SHUTDOWN_TIMEOUT_MILLIS);
+        }
+        if (!mIoExecutor.shutdown(SHUTDOWN_TIMEOUT_MILLIS)) {
+            Log.e(TAG, "I/O threads still running after " + SHUTDOWN_TIMEOUT_MILLIS + " ms");
+        }
+        if (!mFastConnector.close(SHUTDOWN_TIMEOUT_MILLIS)) {
+            Log.e(TAG, "Connect probes still running after " + SHUTDOWN_TIMEOUT_MILLIS + " ms");
+        }
+        mCompressor.end();
+    }
+}
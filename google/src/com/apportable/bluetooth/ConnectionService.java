@@ -21,23 +21,25 @@ import com.apportable.bluetooth.IConnectionCallback;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.UUID;
+import java.util.List;
 
 /**
  * Service for simplifying the process of establishing Bluetooth connections and
@@ -47,186 +49,113 @@ import java.util.UUID;
 public class ConnectionService extends Service {
     public static final String TAG = "com.apportable.bluetooth.ConnectionClientService";
 
-    private ArrayList<UUID> mUuid;
+    private static final String SLOT_PREFS_NAME = "com.apportable.bluetooth.slots";
 
-    private ConnectionService mSelf;
-
-    private String mApp; // Assume only one app can use this at a time; may
-
-    // change this later
+    // Under the cache directory; each session has its own directory in it.
+    private static final String TRANSFER_DIRECTORY = "bluetooth-transfers";
 
-    private IConnectionCallback mCallback;
+    // Sessions the service runs at once. Each has its own I/O threads.
+    private static final int MAX_SESSIONS = 4;
 
-    private ArrayList<String> mBtDeviceAddresses;
-
-    private HashMap<String, BluetoothSocket> mBtSockets;
+    private ConnectionService mSelf;
 
-    private HashMap<String, Thread> mBtStreamWatcherThreads;
+    private Transport mTransport;
 
-    private BluetoothAdapter mBtAdapter;
-    
-    private volatile boolean isListening = false;
+    // srcApp -> its session; see ServiceSession for the keys.
+    private final HashMap<String, ServiceSession> mSessions = new HashMap<String, ServiceSession>();
 
     public ConnectionService() {
         mSelf = this;
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
-        mApp = "";
-        mBtSockets = new HashMap<String, BluetoothSocket>();
-        mBtDeviceAddresses = new ArrayList<String>();
-        mBtStreamWatcherThreads = new HashMap<String, Thread>();
-        mUuid = new ArrayList<UUID>();
-        // Allow up to 7 devices to connect to the server
-        mUuid.add(UUID.fromString("a60f35f0-b93a-11de-8a39-08002009c666"));
-        mUuid.add(UUID.fromString("503c7430-bc23-11de-8a39-0800200c9a66"));
-        mUuid.add(UUID.fromString("503c7431-bc23-11de-8a39-0800200c9a66"));
-        mUuid.add(UUID.fromString("503c7432-bc23-11de-8a39-0800200c9a66"));
-        mUuid.add(UUID.fromString("503c7433-bc23-11de-8a39-0800200c9a66"));
-        mUuid.add(UUID.fromString("503c7434-bc23-11de-8a39-0800200c9a66"));
-        mUuid.add(UUID.fromString("503c7435-bc23-11de-8a39-0800200c9a66"));
     }
 
     @Override
-    public IBinder onBind(Intent arg0) {
-        return mBinder;
+    public void onCreate() {
+        super.onCreate();
+        mTransport = new RfcommTransport(this, BluetoothAdapter.getDefaultAdapter());
     }
 
-    private class BtStreamWatcher implements Runnable {
-        private String address;
-
-        public BtStreamWatcher(String deviceAddress) {
-            address = deviceAddress;
+    @Override
+    public void onDestroy() {
+        List<ServiceSession> sessions;
+        synchronized(mSessions) {
+            sessions = new ArrayList<ServiceSession>(mSessions.values());
+            mSessions.clear();
+        }
+        for (ServiceSession session : sessions) {
+            session.close();
         }
+        super.onDestroy();
+    }
 
-        public void run() {
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
-            BluetoothSocket bSock = mBtSockets.get(address);
-            try {
-                InputStream instream = bSock.getInputStream();
-                int bytesRead = -1;
-                String message = "";
-                while (true) {
-                    message = "";
-                    bytesRead = instream.read(buffer);
-                    if (bytesRead != -1) {
-                        while ((bytesRead == bufferSize) && (buffer[bufferSize - 1] != 0)) {
-                            message = message + new String(buffer, 0, bytesRead);
-                            bytesRead = instream.read(buffer);
-                        }
-                        message = message + new String(buffer, 0, bytesRead - 1); // Remove
-                        // the
-                        // stop
-                        // marker
-                        mCallback.messageReceived(address, message);
-                    }
-                }
-            } catch (IOException e) {
-                Log.i(TAG, "IOException in BtStreamWatcher - probably caused by normal disconnection", e);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in BtStreamWatcher while reading data", e);
+    @Override
+    public IBinder onBind(Intent arg0) {
+        return mBinder;
+    }
+
+    /**
+     * Remembers the slot that worked per server address. A named session
+     * listens on other UUIDs than the default one, so it keeps its own.
+     */
+    private FastConnector.SlotStore newSlotStore(String srcApp) {
+        final String prefix = ServiceSession.isNamed(srcApp) ? srcApp + "|" : "";
+        return new FastConnector.SlotStore() {
+            public int getSlot(String address) {
+                return getSharedPreferences(SLOT_PREFS_NAME, Context.MODE_PRIVATE).getInt(prefix + address, -1);
             }
-            // Getting out of the while loop means the connection is dead.
-            try {
-                synchronized(ConnectionService.this) {
-                    BluetoothSocket myBsock = mBtSockets.get(address);
-                    if (myBsock != null) {
-                        myBsock.close();
-                    }
-                    mBtDeviceAddresses.remove(address);
-                    mBtSockets.remove(address);
-                    mBtStreamWatcherThreads.remove(address);
-                    if (mCallback != null) {
-                        mCallback.connectionLost(address);
-                    }
-                }
-            } catch (NullPointerException e) {
-                Log.e(TAG, "NullPointerException in BtStreamWatcher while disconnecting", e);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in BtStreamWatcher while disconnecting", e);
-            } catch (IOException e) {
-                Log.e(TAG, "IOException in BtStreamWatcher while disconnecting", e);
+
+            public void putSlot(String address, int slot) {
+                SharedPreferences prefs = getSharedPreferences(SLOT_PREFS_NAME, Context.MODE_PRIVATE);
+                prefs.edit().putInt(prefix + address, slot).apply();
             }
-        }
+        };
     }
 
-    private class ConnectionWaiter implements Runnable {
-        private String srcApp;
-
-        private int maxConnections;
+    private File transferDirectory(String srcApp) {
+        return new File(new File(getCacheDir(), TRANSFER_DIRECTORY), srcApp.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
 
-        public ConnectionWaiter(String theApp, int connections) {
-            srcApp = theApp;
-            maxConnections = connections;
+    private ServiceSession getSession(String srcApp) {
+        synchronized(mSessions) {
+            return mSessions.get(srcApp);
         }
+    }
 
-        public void run() {
-            try {
-                for (int i = 0; i < Connection.MAX_SUPPORTED && maxConnections > 0; i++) {
-                	if (!isListening) return;
-                    BluetoothServerSocket myServerSocket = mBtAdapter
-                            .listenUsingRfcommWithServiceRecord(srcApp, mUuid.get(i));
-                	if (!isListening) return;
-                    BluetoothSocket myBSock = myServerSocket.accept();
-                	if (!isListening) return;
-                    myServerSocket.close(); // Close the socket now that the
-                    // connection has been made.
-
-                    String address = myBSock.getRemoteDevice().getAddress();
-                    mBtSockets.put(address, myBSock);
-                    mBtDeviceAddresses.add(address);
-                    Thread mBtStreamWatcherThread = new Thread(new BtStreamWatcher(address));
-                    mBtStreamWatcherThread.start();
-                    mBtStreamWatcherThreads.put(address, mBtStreamWatcherThread);
-                    maxConnections = maxConnections - 1;
-                    if (mCallback != null) {
-                        mCallback.incomingConnection(address);
-                    }
-                }
-                if (mCallback != null) {
-                    mCallback.maxConnectionsReached();
-                }
-            } catch (IOException e) {
-            	try {
-					mCallback.socketIOException();   // Android 4.2 servers will fail here when out of available bt sockets
-				} catch (RemoteException e1) {
-					Log.e(TAG, "Nested RemoteException in ConnectionService:ConnectionWaiter", e1);
-				}
-                Log.i(TAG, "IOException in ConnectionService:ConnectionWaiter", e);
-            } catch (RemoteException e) {
-                Log.e(TAG, "RemoteException in ConnectionService:ConnectionWaiter", e);
+    /**
+     * A new session for srcApp, or null if it has one already or the
+     * service runs MAX_SESSIONS.
+     */
+    private ServiceSession openSession(String srcApp) {
+        synchronized(mSessions) {
+            if (srcApp == null || srcApp.length() == 0 || mSessions.containsKey(srcApp)
+                    || mSessions.size() >= MAX_SESSIONS) {
+                return null;
             }
+            ServiceSession session = new ServiceSession(srcApp, mTransport, newSlotStore(srcApp),
+                    transferDirectory(srcApp));
+            mSessions.put(srcApp, session);
+            return session;
         }
     }
 
-    private BluetoothSocket getConnectedSocket(BluetoothDevice myBtServer, UUID uuidToTry) {
-        BluetoothSocket myBSock;
-        try {
-            myBSock = myBtServer.createRfcommSocketToServiceRecord(uuidToTry);
-            myBSock.connect();
-            return myBSock;
-        } catch (IOException e) {
-            Log.i(TAG, "IOException in getConnectedSocket", e);
-            if (mCallback != null) {
-	            try {
-					mCallback.socketIOException(); // Android 4.2 clients will fail here when out of available bt sockets
-				} catch (RemoteException e1) {
-	                Log.e(TAG, "RemoteException in getConnectedSocket", e);
-				}
-            }
-        }
-        return null;
+    private void closeSession(ServiceSession session) {
+        synchronized(mSessions) {
+            if (mSessions.get(session.getKey()) == session) {
+                mSessions.remove(session.getKey());
+            }
+        }
+        session.close();
     }
 
     private final IConnection.Stub mBinder = new IConnection.Stub() {
-    	Thread mThread;
         public int startServer(String srcApp, int maxConnections) throws RemoteException {
-            if (mApp.length() > 0) {
+            ServiceSession session = openSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (session.getEngine().startServer(srcApp, maxConnections) != Connection.SUCCESS) {
+                closeSession(session);
                 return Connection.FAILURE;
             }
-            mApp = srcApp;
-            isListening = true;
-            mThread = (new Thread(new ConnectionWaiter(srcApp, maxConnections)));
-            mThread.start();
             Intent i = new Intent();
             i.setClass(mSelf, StartDiscoverableModeActivity.class);
             i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -235,60 +164,107 @@ public class ConnectionService extends Service {
         }
         
         public void stopServer() {
-        	isListening = false;
+            List<ServiceSession> sessions;
+            synchronized(mSessions) {
+                sessions = new ArrayList<ServiceSession>(mSessions.values());
+            }
+            for (ServiceSession session : sessions) {
+                session.getEngine().stopServer();
+            }
         }
 
-        public int connect(String srcApp, String device) throws RemoteException {
-            if (mApp.length() > 0) {
+        public int stopSessionServer(String srcApp) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
                 return Connection.FAILURE;
             }
-            mApp = srcApp;
-            BluetoothDevice myBtServer = mBtAdapter.getRemoteDevice(device);
-            BluetoothSocket myBSock = null;
-
-            for (int i = 0; i < Connection.MAX_SUPPORTED && myBSock == null; i++) {
-                for (int j = 0; j < 3 && myBSock == null; j++) {
-                    myBSock = getConnectedSocket(myBtServer, mUuid.get(i));
-                    if (myBSock == null) {
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "InterruptedException in connect", e);
-                        }
-                    }
-                }
+            session.getEngine().stopServer();
+            return Connection.SUCCESS;
+        }
+
+        public int startRelay(String srcApp, int maxConnections) throws RemoteException {
+            // Only the client that owns the session can relay for it.
+            ServiceSession session = getSession(srcApp);
+            if (session == null || maxConnections < 1 || maxConnections > Connection.MAX_SUPPORTED) {
+                return Connection.FAILURE;
             }
-            if (myBSock == null) {
+            if (session.getEngine().startServer(srcApp, maxConnections) != Connection.SUCCESS) {
                 return Connection.FAILURE;
             }
+            session.getEngine().setRelay(true);
+            Intent i = new Intent();
+            i.setClass(mSelf, StartDiscoverableModeActivity.class);
+            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(i);
+            return Connection.SUCCESS;
+        }
 
-            mBtSockets.put(device, myBSock);
-            mBtDeviceAddresses.add(device);
-            Thread mBtStreamWatcherThread = new Thread(new BtStreamWatcher(device));
-            mBtStreamWatcherThread.start();
-            mBtStreamWatcherThreads.put(device, mBtStreamWatcherThread);
+        public int setRelay(String srcApp, boolean enabled) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setRelay(enabled);
             return Connection.SUCCESS;
         }
 
-        public int broadcastMessage(String srcApp, String message) throws RemoteException {
-            if (!mApp.equals(srcApp)) {
+        public int connect(String srcApp, String device) throws RemoteException {
+            ServiceSession session = openSession(srcApp);
+            if (session == null) {
                 return Connection.FAILURE;
             }
-            for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                sendMessage(srcApp, mBtDeviceAddresses.get(i), message);
+            if (session.getEngine().connect(device) != Connection.SUCCESS) {
+                // Leave the session free so that the app can try another host.
+                closeSession(session);
+                return Connection.FAILURE;
             }
             return Connection.SUCCESS;
         }
 
+        public int broadcastMessage(String srcApp, String message) throws RemoteException {
+            return broadcastMessageBytes(srcApp, message.getBytes());
+        }
+
+        public int broadcastMessageBytes(String srcApp, byte[] message) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().broadcastMessage(message, null, null, session.getBlockingGate());
+            return Connection.SUCCESS;
+        }
+
+        public int broadcastMessageBytesWithResults(String srcApp, byte[] message, String[] devices,
+                int[] results) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return 0;
+            }
+            return session.getEngine().broadcastMessage(message, devices, results, session.getBlockingGate());
+        }
+
         public String getConnections(String srcApp) throws RemoteException {
-            if (!mApp.equals(srcApp)) {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
                 return "";
             }
-            String connections = "";
-            for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                connections = connections + mBtDeviceAddresses.get(i) + ",";
+            return session.getEngine().getConnections();
+        }
+
+        public String[] getConnectionList(String srcApp) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return new String[0];
+            }
+            return session.getEngine().getConnectionList();
+        }
+
+        public long getLastConnectTime(String srcApp) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return -1;
             }
-            return connections;
+            return session.getEngine().getLastConnectMillis();
         }
 
         public int getVersion() throws RemoteException {
@@ -303,66 +279,215 @@ public class ConnectionService extends Service {
         }
 
         public int registerCallback(String srcApp, IConnectionCallback cb) throws RemoteException {
-            if (!mApp.equals(srcApp)) {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
                 return Connection.FAILURE;
             }
-            mCallback = cb;
+            session.setCallback(cb);
             return Connection.SUCCESS;
         }
 
         public int sendMessage(String srcApp, String destination, String message) throws RemoteException {
-//        	Log.d(TAG, "in write " + srcApp + "--" + mApp + "--" + destination + "--" + message);
-            if (!mApp.equals(srcApp)) {
+            return sendMessageBytes(srcApp, destination, message.getBytes());
+        }
+
+        public int sendMessageBytes(String srcApp, String destination, byte[] message) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
                 return Connection.FAILURE;
             }
-            try {
-                BluetoothSocket myBsock = mBtSockets.get(destination);
-                if (myBsock != null) {
-                    OutputStream outStream = myBsock.getOutputStream();
-                    byte[] stringAsBytes = (message + " ").getBytes();
-                    stringAsBytes[stringAsBytes.length - 1] = 0; // Add a stop
-                    // marker
-                    outStream.write(stringAsBytes);
-                    return Connection.SUCCESS;
-                }
-            } catch (IOException e) {
-                Log.i(TAG, "IOException in sendMessage - Dest:" + destination + ", Msg:" + message,
-                        e);
-            }
-            return Connection.FAILURE;
+            return session.getEngine().sendMessage(destination, message, session.getBlockingGate());
         }
 
         public void shutdown(String srcApp) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session != null) {
+                closeSession(session);
+            }
+        }
+
+        public ConnectionStats getStats(String srcApp) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return null;
+            }
+            return session.getEngine().getStats();
+        }
+
+        public int broadcastSnapshot(String srcApp, byte[] snapshot) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return 0;
+            }
+            return session.getEngine().broadcastSnapshot(snapshot);
+        }
+
+        public int openChannel(String srcApp, int channel, int priority, int delivery) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (channel < 1 || channel > Connection.MAX_CHANNEL
+                    || priority < Connection.MIN_PRIORITY || priority > Connection.MAX_PRIORITY
+                    || delivery < Connection.DELIVERY_RELIABLE || delivery > Connection.DELIVERY_LATEST) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().openChannel(channel, priority, delivery);
+            return Connection.SUCCESS;
+        }
+
+        public int sendChannelMessage(String srcApp, String destination, int channel, byte[] message)
+                throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            return session.getEngine().sendChannelMessage(destination, channel, message, session.getBlockingGate());
+        }
+
+        public int broadcastChannelMessage(String srcApp, int channel, byte[] message) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (session.getEngine().broadcastChannelMessage(channel, message, null, null,
+                    session.getBlockingGate()) < 0) {
+                return Connection.FAILURE;
+            }
+            return Connection.SUCCESS;
+        }
+
+        public int setPingInterval(String srcApp, int intervalMillis) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null || intervalMillis < 0) {
+                return Connection.FAILURE;
+            }
+            return session.getEngine().setPingInterval(intervalMillis);
+        }
+
+        public int setFlushPolicy(String srcApp, int policy, int value) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (policy < Connection.FLUSH_IMMEDIATE || policy > Connection.FLUSH_MAX_BYTES || value < 0) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setFlushPolicy(policy, value);
+            return Connection.SUCCESS;
+        }
+
+        public int setOverflowPolicy(String srcApp, int policy, int maxQueuedBytes) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (policy < Connection.OVERFLOW_BLOCK || policy > Connection.OVERFLOW_DISCONNECT
+                    || maxQueuedBytes < 0) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setOverflowPolicy(policy, maxQueuedBytes);
+            return Connection.SUCCESS;
+        }
+
+        public int setCompression(String srcApp, int mode, int minBytes) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (mode < Connection.COMPRESSION_OFF || mode > Connection.COMPRESSION_ADAPTIVE || minBytes < 0) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setCompression(mode, minBytes);
+            return Connection.SUCCESS;
+        }
+
+        public int setReceiveBatching(String srcApp, int windowMicros, int maxBytes) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (windowMicros < 0 || maxBytes < 0 || maxBytes > Connection.MAX_RECEIVE_BATCH_BYTES) {
+                return Connection.FAILURE;
+            }
+            return session.getReceiveBatcher().setPolicy(windowMicros, maxBytes);
+        }
+
+        public int setSessionResume(String srcApp, int graceMillis, int maxReplayBytes) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
+                return Connection.FAILURE;
+            }
+            if (graceMillis < 0 || maxReplayBytes < 0 || maxReplayBytes > Connection.MAX_REPLAY_BYTES) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setSessionResume(graceMillis, maxReplayBytes);
+            return Connection.SUCCESS;
+        }
+
+        public int setTickRate(String srcApp, int ticksPerSecond) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null || ticksPerSecond < 0 || ticksPerSecond > Connection.MAX_TICK_RATE) {
+                return Connection.FAILURE;
+            }
+            return session.getEngine().setTickRate(ticksPerSecond);
+        }
+
+        public int setReceiveWindow(String srcApp, int windowBytes) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null || windowBytes < 0 || windowBytes > Connection.MAX_RECEIVE_WINDOW) {
+                return Connection.FAILURE;
+            }
+            session.getEngine().setReceiveWindow(windowBytes);
+            return Connection.SUCCESS;
+        }
+
+        public int sendFile(String srcApp, String device, ParcelFileDescriptor file, String name)
+                throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null || file == null) {
+                return -1;
+            }
             try {
-                synchronized(ConnectionService.this) {
-                    for (int i = 0; i < mBtDeviceAddresses.size(); i++) {
-                        BluetoothSocket myBsock = mBtSockets.get(mBtDeviceAddresses.get(i));
-                        myBsock.close();
-                    }
-                    mBtSockets = new HashMap<String, BluetoothSocket>();
-                    mBtStreamWatcherThreads = new HashMap<String, Thread>();
-                    mBtDeviceAddresses = new ArrayList<String>();
-                    mApp = "";
+                // Closing the stream would close file, which is the caller's.
+                FileInputStream in = new FileInputStream(file.getFileDescriptor());
+                return session.getEngine().sendFile(device, in.getChannel(), name != null ? name : "");
+            } finally {
+                // A remote caller's file is a copy made for this call; a
+                // local caller gets its own back.
+                if (Binder.getCallingPid() != Process.myPid()) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "IOException closing file in sendFile", e);
+                    }
                 }
-            } catch (IOException e) {
-                Log.i(TAG, "IOException in shutdown", e);
             }
         }
 
+        public int cancelTransfer(String srcApp, int transferId) throws RemoteException {
+            ServiceSession session = getSession(srcApp);
+            if (session == null || !session.getEngine().cancelTransfer(transferId)) {
+                return Connection.FAILURE;
+            }
+            return Connection.SUCCESS;
+        }
+
         public int unregisterCallback(String srcApp) throws RemoteException {
-            if (!mApp.equals(srcApp)) {
+            ServiceSession session = getSession(srcApp);
+            if (session == null) {
                 return Connection.FAILURE;
             }
-            mCallback = null;
+            session.setCallback(null);
             return Connection.SUCCESS;
         }
 
         public String getAddress() throws RemoteException {
-            return mBtAdapter.getAddress();
+            return mTransport.getAddress();
         }
         
         public String getName() throws RemoteException {
-            return mBtAdapter.getName();
+            return mTransport.getName();
         }
     };
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Point-in-time statistics for the current session, returned by
+ * Connection.getStats(). Byte counts are payload plus framing as sent on the
+ * socket, and sent counts include ping frames; times are in microseconds.
+ */
+public final class ConnectionStats implements Parcelable {
+    private final long mSocketIOExceptions;
+
+    private final long mReconnects;
+
+    private final long mConnectionsLost;
+
+    private final long mResumes;
+
+    private final long mRelayedFrames;
+
+    private final long mRelayDroppedFrames;
+
+    private final Peer[] mPeers;
+
+    ConnectionStats(long socketIOExceptions, long reconnects, long connectionsLost, long resumes,
+            long relayedFrames, long relayDroppedFrames, Peer[] peers) {
+        mSocketIOExceptions = socketIOExceptions;
+        mReconnects = reconnects;
+        mConnectionsLost = connectionsLost;
+        mResumes = resumes;
+        mRelayedFrames = relayedFrames;
+        mRelayDroppedFrames = relayDroppedFrames;
+        mPeers = peers;
+    }
+
+    private ConnectionStats(Parcel in) {
+        mSocketIOExceptions = in.readLong();
+        mReconnects = in.readLong();
+        mConnectionsLost = in.readLong();
+        mResumes = in.readLong();
+        mRelayedFrames = in.readLong();
+        mRelayDroppedFrames = in.readLong();
+        mPeers = new Peer[in.readInt()];
+        for (int i = 0; i < mPeers.length; i++) {
+            mPeers[i] = new Peer(in);
+        }
+    }
+
+    /**
+     * Times accept or connect failed at the socket level; on Android 4.2
+     * this usually means the stack ran out of RFCOMM channels.
+     */
+    public long getSocketIOExceptions() {
+        return mSocketIOExceptions;
+    }
+
+    /**
+     * Connections to a device address that had been connected before.
+     */
+    public long getReconnects() {
+        return mReconnects;
+    }
+
+    public long getConnectionsLost() {
+        return mConnectionsLost;
+    }
+
+    /**
+     * Dropouts bridged by session resume, which the app never saw as lost
+     * connections. See Connection.setSessionResume().
+     */
+    public long getResumes() {
+        return mResumes;
+    }
+
+    /**
+     * Frames relay mode sent on behalf of other devices, or to announce
+     * which devices can be reached. See Connection.setRelay().
+     */
+    public long getRelayedFrames() {
+        return mRelayedFrames;
+    }
+
+    /**
+     * Relayed frames that could not be passed on: no route to their
+     * destination, or the next hop's queue was full.
+     */
+    public long getRelayDroppedFrames() {
+        return mRelayDroppedFrames;
+    }
+
+    /**
+     * One entry per currently connected device.
+     */
+    public Peer[] getPeers() {
+        return mPeers;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(mSocketIOExceptions);
+        out.writeLong(mReconnects);
+        out.writeLong(mConnectionsLost);
+        out.writeLong(mResumes);
+        out.writeLong(mRelayedFrames);
+        out.writeLong(mRelayDroppedFrames);
+        out.writeInt(mPeers.length);
+        for (Peer peer : mPeers) {
+            peer.writeToParcel(out);
+        }
+    }
+
+    public static final Parcelable.Creator<ConnectionStats> CREATOR = new Parcelable.Creator<ConnectionStats>() {
+        public ConnectionStats createFromParcel(Parcel in) {
+            return new ConnectionStats(in);
+        }
+
+        public ConnectionStats[] newArray(int size) {
+            return new ConnectionStats[size];
+        }
+    };
+
+    public static final class Peer {
+        private final String mAddress;
+
+        private final long mConnectedAtMillis;
+
+        private final long mBytesSent;
+
+        private final long mMessagesSent;
+
+        private final long mWrites;
+
+        private final long mBytesReceived;
+
+        private final long mMessagesReceived;
+
+        private final int mQueuedBytes;
+
+        private final long mDroppedMessages;
+
+        private final long mRtt;
+
+        private final long mJitter;
+
+        private final long mClockOffset;
+
+        private final Histogram mSendLatency;
+
+        private final Histogram mDispatchLatency;
+
+        Peer(String address, long connectedAtMillis, long bytesSent, long messagesSent, long writes,
+                long bytesReceived, long messagesReceived, int queuedBytes, long droppedMessages,
+                long rtt, long jitter, long clockOffset, Histogram sendLatency, Histogram dispatchLatency) {
+            mAddress = address;
+            mConnectedAtMillis = connectedAtMillis;
+            mBytesSent = bytesSent;
+            mMessagesSent = messagesSent;
+            mWrites = writes;
+            mBytesReceived = bytesReceived;
+            mMessagesReceived = messagesReceived;
+            mQueuedBytes = queuedBytes;
+            mDroppedMessages = droppedMessages;
+            mRtt = rtt;
+            mJitter = jitter;
+            mClockOffset = clockOffset;
+            mSendLatency = sendLatency;
+            mDispatchLatency = dispatchLatency;
+        }
+
+        private Peer(Parcel in) {
+            mAddress = in.readString();
+            mConnectedAtMillis = in.readLong();
+            mBytesSent = in.readLong();
+            mMessagesSent = in.readLong();
+            mWrites = in.readLong();
+            mBytesReceived = in.readLong();
+            mMessagesReceived = in.readLong();
+            mQueuedBytes = in.readInt();
+            mDroppedMessages = in.readLong();
+            mRtt = in.readLong();
+            mJitter = in.readLong();
+            mClockOffset = in.readLong();
+            mSendLatency = new Histogram(in.createLongArray());
+            mDispatchLatency = new Histogram(in.createLongArray());
+        }
+
+        private void writeToParcel(Parcel out) {
+            out.writeString(mAddress);
+            out.writeLong(mConnectedAtMillis);
+            out.writeLong(mBytesSent);
+            out.writeLong(mMessagesSent);
+            out.writeLong(mWrites);
+            out.writeLong(mBytesReceived);
+            out.writeLong(mMessagesReceived);
+            out.writeInt(mQueuedBytes);
+            out.writeLong(mDroppedMessages);
+            out.writeLong(mRtt);
+            out.writeLong(mJitter);
+            out.writeLong(mClockOffset);
+            out.writeLongArray(mSendLatency.mCounts);
+            out.writeLongArray(mDispatchLatency.mCounts);
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public long getConnectedAtMillis() {
+            return mConnectedAtMillis;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        public long getMessagesSent() {
+            return mMessagesSent;
+        }
+
+        /**
+         * Batches written and flushed to the socket; messagesSent / writes
+         * shows how well sends coalesce.
+         */
+        public long getWrites() {
+            return mWrites;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        public long getMessagesReceived() {
+            return mMessagesReceived;
+        }
+
+        /**
+         * Bytes waiting in the send queue when the snapshot was taken.
+         */
+        public int getQueuedBytes() {
+            return mQueuedBytes;
+        }
+
+        /**
+         * Messages discarded by OVERFLOW_DROP_OLDEST.
+         */
+        public long getDroppedMessages() {
+            return mDroppedMessages;
+        }
+
+        /**
+         * Smoothed round-trip time from pings, or -1 if pings are off or no
+         * reply has arrived yet. See Connection.setPingInterval().
+         */
+        public long getRtt() {
+            return mRtt;
+        }
+
+        public long getJitter() {
+            return mJitter;
+        }
+
+        /**
+         * The peer's monotonic clock minus ours.
+         */
+        public long getClockOffset() {
+            return mClockOffset;
+        }
+
+        /**
+         * From a message being queued until the write carrying it was
+         * flushed, recorded once per write for its oldest message.
+         */
+        public Histogram getSendLatency() {
+            return mSendLatency;
+        }
+
+        /**
+         * From a message being fully read until the receive listener
+         * returned.
+         */
+        public Histogram getDispatchLatency() {
+            return mDispatchLatency;
+        }
+    }
+
+    /**
+     * Latency distribution in microseconds, accurate to about 6%.
+     */
+    public static final class Histogram {
+        private final long[] mCounts;
+
+        Histogram(long[] counts) {
+            mCounts = counts;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (long c : mCounts) {
+                count += c;
+            }
+            return count;
+        }
+
+        /**
+         * Smallest value that percentile (0-100) of the recorded values are
+         * at or below, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return LatencyHistogram.highestValueIn(i);
+                }
+            }
+            return LatencyHistogram.highestValueIn(mCounts.length - 1);
+        }
+
+        public long getMax() {
+            return mCounts.length == 0 ? 0 : LatencyHistogram.highestValueIn(mCounts.length - 1);
+        }
+    }
+}
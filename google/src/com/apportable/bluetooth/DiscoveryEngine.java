@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds and connects to a server advertising serviceName, as a state
+ * machine fed with radio events. It keeps an index of every host it has
+ * seen, with when and how strongly, and uses it to:
+ *
+ * 1. connect straight to the last server that worked and to hosts seen
+ *    with a matching name, if seen or connected to within HOST_TTL_MILLIS,
+ *    and to bonded hosts with a matching name, without scanning first;
+ * 2. otherwise scan, and connect as soon as a matching host with a good
+ *    signal shows up; for a weak one keep listening for
+ *    SELECTION_WINDOW_MILLIS so that the strongest of several is chosen,
+ *    not whichever answered the inquiry first;
+ * 3. on a failed connect, try the next best host before scanning again,
+ *    and hold the failed one back for a while.
+ *
+ * Events come in from any thread. Actions (scan, connect) are taken by
+ * whoever calls poll(), which start() does on a daemon thread of its own
+ * until connected; the host-side simulation drives poll() with a virtual
+ * clock instead.
+ */
+final class DiscoveryEngine {
+    public static final String TAG = "com.apportable.bluetooth.DiscoveryEngine";
+
+    // How long a host seen in a scan is assumed to still be there.
+    static final long HOST_TTL_MILLIS = 5 * 60 * 1000;
+
+    // Inquiry responses from nearby devices mostly arrive within the first
+    // couple of seconds of a scan.
+    static final long SELECTION_WINDOW_MILLIS = 2000;
+
+    // A host this strong is connected to without waiting for others.
+    static final int GOOD_RSSI = -70;
+
+    static final long RESCAN_DELAY_MILLIS = 1000;
+
+    // Each failed connect holds the host back this much longer, unless a
+    // scan sees it again in the meantime.
+    static final long FAILURE_BACKOFF_MILLIS = 10000;
+
+    // An absent host costs a page timeout (~5 s) per attempt, so only the
+    // likeliest few are tried before scanning.
+    static final int MAX_DIRECT_ATTEMPTS = 2;
+
+    static final int UNKNOWN_RSSI = Short.MIN_VALUE;
+
+    static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * What the engine asks of the radio. Called without the engine's lock
+     * held.
+     */
+    public interface Actions {
+        public void startScan();
+
+        public void cancelScan();
+
+        /**
+         * Starts connecting to address. The result goes to
+         * onConnectResult(), before this returns or later from any thread.
+         */
+        public void connect(String address);
+    }
+
+    /**
+     * Remembers the last server connected to, across runs if the
+     * implementation persists it.
+     */
+    public interface HostStore {
+        public String getLastHost();
+
+        public void putLastHost(String address);
+    }
+
+    static final class Host {
+        final String mAddress;
+
+        String mName;
+
+        // Smoothed over scans; UNKNOWN_RSSI until a scan has seen it.
+        int mRssi = UNKNOWN_RSSI;
+
+        // 0 for bonded hosts not seen in a scan yet.
+        long mLastSeenMillis;
+
+        boolean mBonded;
+
+        int mFailures;
+
+        long mFailedAtMillis;
+
+        long mRetryAtMillis;
+
+        Host(String address) {
+            mAddress = address;
+        }
+    }
+
+    private enum State {
+        IDLE, DIRECT, SCANNING, CONNECTED
+    }
+
+    private final String mServiceName;
+
+    private final Actions mActions;
+
+    private final HostStore mHostStore;
+
+    private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+
+    private State mState = State.IDLE;
+
+    private final ArrayList<String> mDirect = new ArrayList<String>();
+
+    private boolean mScanning;
+
+    private boolean mConnecting;
+
+    private long mSelectAtMillis = NEVER;
+
+    private long mRescanAtMillis = NEVER;
+
+    private long mStartMillis;
+
+    private long mConnectMillis = -1;
+
+    private Thread mDriver;
+
+    public DiscoveryEngine(String serviceName, Actions actions, HostStore hostStore) {
+        mServiceName = serviceName;
+        mActions = actions;
+        mHostStore = hostStore != null ? hostStore : new MemoryHostStore();
+    }
+
+    static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private boolean matches(String name) {
+        return name != null && name.endsWith(mServiceName);
+    }
+
+    /**
+     * Starts looking for a server on a thread of its own, which ends once
+     * connected; a no-op if already looking or connected.
+     */
+    public void start() {
+        synchronized(this) {
+            if (mDriver != null || mState != State.IDLE) {
+                return;
+            }
+            begin(nowMillis());
+            mDriver = new Thread(new Runnable() {
+                public void run() {
+                    drive();
+                }
+            }, "bt-discovery");
+            mDriver.setDaemon(true);
+            mDriver.start();
+        }
+    }
+
+    private void drive() {
+        while (true) {
+            poll(nowMillis());
+            synchronized(this) {
+                if (mDriver != Thread.currentThread()) {
+                    return;
+                }
+                if (mState == State.CONNECTED) {
+                    // Nothing more to do until onDisconnected() and start().
+                    mDriver = null;
+                    return;
+                }
+                // Checked under the lock, so an event that arrived since
+                // poll() is not missed.
+                long dueAt = nextPollMillis();
+                long waitMillis = dueAt - nowMillis();
+                if (waitMillis > 0) {
+                    try {
+                        wait(dueAt == NEVER ? 0 : waitMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops looking and cancels a scan in progress. A connect in progress
+     * still reports its result.
+     */
+    public void stop() {
+        boolean scanning;
+        synchronized(this) {
+            scanning = mScanning;
+            mScanning = false;
+            mState = State.IDLE;
+            mDirect.clear();
+            mDriver = null;
+            notifyAll();
+        }
+        if (scanning) {
+            mActions.cancelScan();
+        }
+    }
+
+    /**
+     * Milliseconds from start() to the connect that succeeded, or -1.
+     */
+    public synchronized long getTimeToConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public void addBondedHost(String address, String name) {
+        synchronized(this) {
+            Host host = host(address);
+            host.mBonded = true;
+            if (name != null) {
+                host.mName = name;
+            }
+        }
+    }
+
+    public void onDeviceFound(String address, String name, int rssi) {
+        onDeviceFound(address, name, rssi, nowMillis());
+    }
+
+    public void onScanFinished() {
+        onScanFinished(nowMillis());
+    }
+
+    public void onConnectResult(String address, boolean connected) {
+        onConnectResult(address, connected, nowMillis());
+    }
+
+    /**
+     * Forgets that the connection to the server is up, after it drops.
+     */
+    public synchronized void onDisconnected() {
+        if (mState == State.CONNECTED) {
+            mState = State.IDLE;
+        }
+    }
+
+    synchronized void begin(long now) {
+        mState = State.DIRECT;
+        mStartMillis = now;
+        mConnectMillis = -1;
+        mSelectAtMillis = NEVER;
+        mRescanAtMillis = NEVER;
+        mDirect.clear();
+        // A stored host not seen lately may be gone, and an attempt on it
+        // costs a page timeout before the scan even starts; a scan finds it
+        // as soon as anything else if it is there.
+        String last = mHostStore.getLastHost();
+        Host lastHost = last != null ? mHosts.get(last) : null;
+        if (lastHost != null && recent(lastHost, now) && now >= lastHost.mRetryAtMillis) {
+            mDirect.add(last);
+        }
+        // Then hosts recently seen advertising the service, strongest first,
+        // then bonded ones whose cached name matches.
+        ArrayList<Host> seen = new ArrayList<Host>();
+        ArrayList<Host> bonded = new ArrayList<Host>();
+        for (Host host : mHosts.values()) {
+            if (host.mAddress.equals(last) || !matches(host.mName) || now < host.mRetryAtMillis) {
+                continue;
+            }
+            if (recent(host, now)) {
+                seen.add(host);
+            } else if (host.mBonded) {
+                bonded.add(host);
+            }
+        }
+        while (!seen.isEmpty()) {
+            Host best = seen.get(0);
+            for (Host host : seen) {
+                if (better(host, best)) {
+                    best = host;
+                }
+            }
+            seen.remove(best);
+            mDirect.add(best.mAddress);
+        }
+        for (Host host : bonded) {
+            mDirect.add(host.mAddress);
+        }
+        while (mDirect.size() > MAX_DIRECT_ATTEMPTS) {
+            mDirect.remove(mDirect.size() - 1);
+        }
+        notifyAll();
+    }
+
+    synchronized void onDeviceFound(String address, String name, int rssi, long now) {
+        Host host = host(address);
+        if (name != null) {
+            host.mName = name;
+        }
+        if (rssi != UNKNOWN_RSSI) {
+            host.mRssi = host.mRssi == UNKNOWN_RSSI ? rssi : (3 * host.mRssi + rssi) / 4;
+        }
+        host.mLastSeenMillis = now;
+        if (mState != State.SCANNING || !usable(host, now)) {
+            return;
+        }
+        if (address.equals(mHostStore.getLastHost()) || (host.mRssi != UNKNOWN_RSSI && host.mRssi >= GOOD_RSSI)) {
+            // The server that worked last time, or one close enough that
+            // another is unlikely to do better.
+            mSelectAtMillis = now;
+        } else if (mSelectAtMillis == NEVER) {
+            mSelectAtMillis = now + SELECTION_WINDOW_MILLIS;
+        }
+        notifyAll();
+    }
+
+    synchronized void onScanFinished(long now) {
+        // Also reported for scans cancelled on purpose, which are already
+        // accounted for.
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mState == State.SCANNING) {
+            mSelectAtMillis = now;
+            mRescanAtMillis = now + RESCAN_DELAY_MILLIS;
+        }
+        notifyAll();
+    }
+
+    synchronized void onConnectResult(String address, boolean connected, long now) {
+        mConnecting = false;
+        Host host = host(address);
+        if (connected) {
+            host.mLastSeenMillis = now;
+            host.mFailures = 0;
+            host.mRetryAtMillis = 0;
+            if (mState != State.IDLE) {
+                mState = State.CONNECTED;
+            }
+            mConnectMillis = now - mStartMillis;
+            mHostStore.putLastHost(address);
+            Log.i(TAG, "Connected to " + address + " " + mConnectMillis + " ms after starting");
+        } else {
+            host.mFailures++;
+            host.mFailedAtMillis = now;
+            host.mRetryAtMillis = now + host.mFailures * FAILURE_BACKOFF_MILLIS;
+            if (mState == State.SCANNING) {
+                // Try the next best host, or scan again if there is none.
+                mSelectAtMillis = now;
+                if (!mScanning && mRescanAtMillis == NEVER) {
+                    mRescanAtMillis = now;
+                }
+            }
+            Log.i(TAG, "Unable to connect to " + address + " (" + host.mFailures + " failures)");
+        }
+        notifyAll();
+    }
+
+    /**
+     * When poll() next has something to do; NEVER until another event.
+     */
+    synchronized long nextPollMillis() {
+        if (mConnecting || mState == State.IDLE || mState == State.CONNECTED) {
+            return NEVER;
+        }
+        if (mState == State.DIRECT) {
+            return 0;
+        }
+        return Math.min(mSelectAtMillis, mScanning ? NEVER : mRescanAtMillis);
+    }
+
+    /**
+     * Takes whatever action is due at now.
+     */
+    void poll(long now) {
+        String connectTo = null;
+        boolean cancelScan = false;
+        boolean startScan = false;
+        synchronized(this) {
+            if (mConnecting || mState == State.IDLE || mState == State.CONNECTED) {
+                return;
+            }
+            if (mState == State.DIRECT) {
+                if (!mDirect.isEmpty()) {
+                    connectTo = mDirect.remove(0);
+                } else {
+                    mState = State.SCANNING;
+                    mRescanAtMillis = now;
+                }
+            }
+            if (mState == State.SCANNING) {
+                if (now >= mSelectAtMillis) {
+                    mSelectAtMillis = NEVER;
+                    Host best = best(now);
+                    if (best != null) {
+                        connectTo = best.mAddress;
+                        cancelScan = mScanning;
+                        mScanning = false;
+                    }
+                }
+                if (connectTo == null && !mScanning && now >= mRescanAtMillis) {
+                    startScan = true;
+                    mScanning = true;
+                    mRescanAtMillis = NEVER;
+                }
+            }
+            if (connectTo != null) {
+                mConnecting = true;
+            }
+        }
+        if (cancelScan) {
+            mActions.cancelScan();
+        }
+        if (startScan) {
+            mActions.startScan();
+        }
+        if (connectTo != null) {
+            mActions.connect(connectTo);
+        }
+    }
+
+    private Host host(String address) {
+        Host host = mHosts.get(address);
+        if (host == null) {
+            host = new Host(address);
+            mHosts.put(address, host);
+        }
+        return host;
+    }
+
+    private static boolean recent(Host host, long now) {
+        return host.mLastSeenMillis > 0 && now - host.mLastSeenMillis <= HOST_TTL_MILLIS;
+    }
+
+    private boolean usable(Host host, long now) {
+        return matches(host.mName) && recent(host, now)
+                && (now >= host.mRetryAtMillis || host.mLastSeenMillis > host.mFailedAtMillis);
+    }
+
+    // Fewer failures, then stronger signal, then seen more recently.
+    private static boolean better(Host a, Host b) {
+        if (a.mFailures != b.mFailures) {
+            return a.mFailures < b.mFailures;
+        }
+        if (a.mRssi != b.mRssi) {
+            return a.mRssi > b.mRssi;
+        }
+        return a.mLastSeenMillis > b.mLastSeenMillis;
+    }
+
+    private Host best(long now) {
+        String last = mHostStore.getLastHost();
+        Host best = null;
+        for (Host host : mHosts.values()) {
+            if (!usable(host, now)) {
+                continue;
+            }
+            if (host.mAddress.equals(last)) {
+                return host;
+            }
+            if (best == null || better(host, best)) {
+                best = host;
+            }
+        }
+        return best;
+    }
+
+    private static final class MemoryHostStore implements HostStore {
+        private String mLastHost;
+
+        public synchronized String getLastHost() {
+            return mLastHost;
+        }
+
+        public synchronized void putLastHost(String address) {
+            mLastHost = address;
+        }
+    }
+}
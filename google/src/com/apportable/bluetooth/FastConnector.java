@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the slot a server is currently listening on. The server only
+ * registers a service record for its next free slot, so instead of walking all
+ * of them in order this tries, in turn:
+ *
+ * 1. the slot that last worked for this server address,
+ * 2. the slots the server advertises right now (SDP on RFCOMM),
+ * 3. every remaining slot concurrently, a few rounds with a short backoff.
+ *
+ * The concurrent probes run on a pool of their own. A probe that loses
+ * keeps its thread until its connect attempt returns; getProbes() and
+ * close() let the engine wait for them.
+ */
+final class FastConnector {
+    public static final String TAG = "com.apportable.bluetooth.FastConnector";
+
+    private static final long SDP_TIMEOUT_MILLIS = 1500;
+
+    private static final int PROBE_ROUNDS = 3;
+
+    private static final long PROBE_BACKOFF_MILLIS = 50;
+
+    /**
+     * Remembers the last slot that worked per server address, across runs
+     * if the implementation persists it.
+     */
+    public interface SlotStore {
+        public int getSlot(String address);
+
+        public void putSlot(String address, int slot);
+    }
+
+    private final Transport mTransport;
+
+    private final List<UUID> mUuids;
+
+    private final SlotStore mSlotStore;
+
+    private final IoExecutor mProbeExecutor;
+
+    // Probes started and not yet seen to finish.
+    private final ArrayList<Future<?>> mProbes = new ArrayList<Future<?>>();
+
+    private volatile long mLastConnectMillis = -1;
+
+    public FastConnector(Transport transport, List<UUID> uuids, SlotStore slotStore) {
+        mTransport = transport;
+        mUuids = uuids;
+        mSlotStore = slotStore != null ? slotStore : new MemorySlotStore();
+        // Room for a round while the losers of the last connect() finish.
+        mProbeExecutor = new IoExecutor("bt-probe", 2 * uuids.size(), Thread.NORM_PRIORITY + 2, false);
+    }
+
+    /**
+     * Milliseconds the last successful connect() took, or -1.
+     */
+    public long getLastConnectMillis() {
+        return mLastConnectMillis;
+    }
+
+    public TransportSocket connect(String address) {
+        long start = System.nanoTime();
+        boolean[] tried = new boolean[mUuids.size()];
+
+        int slot = mSlotStore.getSlot(address);
+        TransportSocket socket = null;
+        if (slot >= 0 && slot < mUuids.size()) {
+            tried[slot] = true;
+            socket = tryConnect(address, mUuids.get(slot));
+        }
+        if (socket == null) {
+            for (UUID service : mTransport.getAdvertisedServices(address, SDP_TIMEOUT_MILLIS)) {
+                int advertised = mUuids.indexOf(service);
+                if (advertised >= 0 && !tried[advertised]) {
+                    tried[advertised] = true;
+                    slot = advertised;
+                    socket = tryConnect(address, service);
+                    if (socket != null) {
+                        break;
+                    }
+                }
+            }
+        }
+        try {
+            for (int round = 0; socket == null && round < PROBE_ROUNDS; round++) {
+                if (round > 0) {
+                    Thread.sleep(PROBE_BACKOFF_MILLIS);
+                }
+                Probe winner = probeConcurrently(address, round == 0 ? tried : new boolean[mUuids.size()]);
+                if (winner != null) {
+                    slot = winner.mSlot;
+                    socket = winner.mSocket;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in connect", e);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        if (socket == null) {
+            Log.i(TAG, "Unable to connect to " + address + " after " + elapsedMillis + " ms");
+            return null;
+        }
+        mLastConnectMillis = elapsedMillis;
+        mSlotStore.putSlot(address, slot);
+        Log.i(TAG, "Connected to " + address + " on slot " + slot + " in " + elapsedMillis + " ms");
+        return socket;
+    }
+
+    private TransportSocket tryConnect(String address, UUID uuid) {
+        try {
+            return mTransport.connect(address, uuid);
+        } catch (IOException e) {
+            Log.i(TAG, "IOException connecting to " + uuid);
+        }
+        return null;
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException closing losing probe", e);
+            }
+        }
+    }
+
+    private static final class Probe {
+        final int mSlot;
+
+        final TransportSocket mSocket;
+
+        Probe(int slot, TransportSocket socket) {
+            mSlot = slot;
+            mSocket = socket;
+        }
+    }
+
+    /**
+     * Tries every slot not marked in skip at the same time. The first socket to
+     * connect wins; any later winners are closed.
+     */
+    private Probe probeConcurrently(final String address, boolean[] skip) throws InterruptedException {
+        final Object lock = new Object();
+        final Probe[] winner = new Probe[1];
+        final int[] pending = new int[1];
+        synchronized (lock) {
+            for (int i = 0; i < mUuids.size(); i++) {
+                if (skip[i]) {
+                    continue;
+                }
+                final int slot = i;
+                Future<?> probe = mProbeExecutor.execute("bt-probe-" + slot, new Runnable() {
+                    public void run() {
+                        TransportSocket socket = tryConnect(address, mUuids.get(slot));
+                        synchronized (lock) {
+                            if (socket != null && winner[0] == null) {
+                                winner[0] = new Probe(slot, socket);
+                            } else {
+                                closeQuietly(socket);
+                            }
+                            pending[0]--;
+                            lock.notifyAll();
+                        }
+                    }
+                });
+                if (probe != null) {
+                    pending[0]++;
+                    addProbe(probe);
+                }
+            }
+            while (winner[0] == null && pending[0] > 0) {
+                lock.wait();
+            }
+            return winner[0];
+        }
+    }
+
+    private void addProbe(Future<?> probe) {
+        synchronized (mProbes) {
+            for (int i = mProbes.size() - 1; i >= 0; i--) {
+                if (mProbes.get(i).isDone()) {
+                    mProbes.remove(i);
+                }
+            }
+            mProbes.add(probe);
+        }
+    }
+
+    /**
+     * The probes still trying to connect, most of them losers of an earlier
+     * connect().
+     */
+    public List<Future<?>> getProbes() {
+        List<Future<?>> running = new ArrayList<Future<?>>();
+        synchronized (mProbes) {
+            for (Future<?> probe : mProbes) {
+                if (!probe.isDone()) {
+                    running.add(probe);
+                }
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Stops the probe threads, waiting up to timeoutMillis for connect
+     * attempts in progress to return. Later connect() calls only try the
+     * remembered and advertised slots.
+     */
+    public boolean close(long timeoutMillis) {
+        return mProbeExecutor.shutdown(timeoutMillis);
+    }
+
+    private static final class MemorySlotStore implements SlotStore {
+        private final HashMap<String, Integer> mSlots = new HashMap<String, Integer>();
+
+        public synchronized int getSlot(String address) {
+            Integer slot = mSlots.get(address);
+            return slot != null ? slot : -1;
+        }
+
+        public synchronized void putSlot(String address, int slot) {
+            mSlots.put(address, slot);
+        }
+    }
+}
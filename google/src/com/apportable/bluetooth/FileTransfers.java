@@ -0,0 +1,852 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * File transfers (FLAG_TRANSFER frames) to and from the peers of one engine.
+ *
+ * The sender maps the file and copies each CHUNK_SIZE chunk straight from
+ * the mapping into its frame, so a transfer holds a window of chunks in
+ * memory however large the file is. Chunks go out in the lowest lane, a few
+ * queued at a time as one message, which PeerWriter writes a chunk per
+ * batch, so game messages share each write with at most one chunk and the
+ * transfer gets whatever the game leaves of the link. At most
+ * WINDOW_CHUNKS are in flight beyond what the receiver has acknowledged,
+ * which bounds what a game message can find ahead of it once written.
+ *
+ * The receiver writes the chunks in order to a file in the transfer
+ * directory, acknowledges every ACK_EVERY_CHUNKS, and checks the CRC-32 of
+ * the whole file against the OFFER before it reports the file and answers
+ * DONE. A chunk beyond the next one it needs means chunks were dropped
+ * (OVERFLOW_DROP_OLDEST drops the lowest lane first), and RESEND asks for
+ * them again. Every RESEND opens a new round, which the chunks carry, so
+ * that the chunks sent before it do not ask again. When no chunk after the
+ * dropped ones gets through, nothing tells the receiver; a sender that has
+ * heard nothing for STALL_MILLIS, and whose chunks have left the queue or
+ * lost some of their number to it, offers the transfer again in a new
+ * round and goes on from what the receiver answers that it holds.
+ *
+ * Transfers outlive the connection. When the session with a device ends
+ * its transfers wait, and when it connects again the sender offers each
+ * one again; the receiver, which kept what it had, answers with how many
+ * chunks that is, and the sender carries on from there. A dropout bridged
+ * by session resume needs none of this.
+ *
+ * <pre>
+ *   OFFER  | 1 | varint id | varint round | size (8 bytes) | CRC-32 (4 bytes) | varint chunk size | name (UTF-8)
+ *   CHUNK  | 2 | varint id | varint round | varint index | bytes
+ *   ACK    | 3 | varint id | varint chunks held
+ *   RESEND | 4 | varint id | varint round | varint chunks held
+ *   DONE   | 5 | varint id
+ *   FAIL   | 6 | varint id
+ *   CANCEL | 7 | varint id
+ * </pre>
+ *
+ * The receiver answers an OFFER with an ACK, or a RESEND when it has
+ * already moved to a later round, and FAIL when it cannot store the file
+ * or finds it corrupt; the sender gives up a transfer with CANCEL.
+ * Only directly connected devices can be sent files.
+ */
+final class FileTransfers {
+    public static final String TAG = "com.apportable.bluetooth.FileTransfers";
+
+    public static final int OFFER = 1;
+
+    public static final int CHUNK = 2;
+
+    public static final int ACK = 3;
+
+    public static final int RESEND = 4;
+
+    public static final int DONE = 5;
+
+    public static final int FAIL = 6;
+
+    public static final int CANCEL = 7;
+
+    // Like a channel fragment, about 30 ms of link at RFCOMM speeds.
+    public static final int CHUNK_SIZE = 1024;
+
+    // Chunks in flight have left the lanes and are ahead of any game
+    // message sent after them. Four cover the round trip of an RFCOMM link
+    // at about 32 KB/s; more would only queue in socket buffers.
+    public static final int WINDOW_CHUNKS = 4;
+
+    public static final int ACK_EVERY_CHUNKS = 2;
+
+    // How soon a frame the send queue had no room for is tried again.
+    static final long RETRY_MILLIS = 50;
+
+    // How long chunks in flight may go unacknowledged before the sender
+    // offers the transfer again; many round trips, even behind game traffic.
+    static final long STALL_MILLIS = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String FILE_PREFIX = "transfer-";
+
+    public interface Listener {
+        /**
+         * bytes of totalBytes have reached device (incoming false), which
+         * comes to totalBytes once device has checked the file, or have been
+         * received from it.
+         */
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes);
+
+        /**
+         * A file from device arrived whole. file is the callee's, to move or
+         * delete.
+         */
+        public void transferReceived(String device, int transferId, String name, File file);
+
+        public void transferFailed(String device, int transferId, boolean incoming);
+    }
+
+    private static final class Outgoing {
+        final String mDevice;
+
+        final int mId;
+
+        final ByteBuffer mData;
+
+        final int mCrc;
+
+        final int mChunks;
+
+        final String mName;
+
+        // The writer of the current session with mDevice, or null between
+        // sessions.
+        PeerWriter mWriter;
+
+        // The next chunk to queue, and how many the receiver holds.
+        int mNext;
+
+        int mAcked;
+
+        int mRound;
+
+        TimerWheel.Timeout mRetry;
+
+        // Armed while chunks are in flight, with the writer's dropped frame
+        // count at the time.
+        TimerWheel.Timeout mStall;
+
+        long mDropped;
+
+        Outgoing(String device, int id, ByteBuffer data, int crc, String name) {
+            mDevice = device;
+            mId = id;
+            mData = data;
+            mCrc = crc;
+            mChunks = (data.capacity() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            mName = name;
+        }
+    }
+
+    private static final class Incoming {
+        final String mDevice;
+
+        final int mId;
+
+        final String mName;
+
+        final long mSize;
+
+        final int mCrc;
+
+        final int mChunkSize;
+
+        final int mChunks;
+
+        final File mFile;
+
+        final RandomAccessFile mOutput;
+
+        final CRC32 mChecksum = new CRC32();
+
+        int mHeld;
+
+        int mRound;
+
+        Incoming(String device, int id, String name, long size, int crc, int chunkSize, File file,
+                RandomAccessFile output) {
+            mDevice = device;
+            mId = id;
+            mName = name;
+            mSize = size;
+            mCrc = crc;
+            mChunkSize = chunkSize;
+            mChunks = (int) ((size + chunkSize - 1) / chunkSize);
+            mFile = file;
+            mOutput = output;
+        }
+
+        boolean matches(long size, int crc, int chunkSize) {
+            return mSize == size && mCrc == crc && mChunkSize == chunkSize;
+        }
+    }
+
+    /**
+     * A listener call to make once the lock is released.
+     */
+    private static final class Event {
+        final String mDevice;
+
+        final int mId;
+
+        final boolean mIncoming;
+
+        final long mBytes;
+
+        final long mTotalBytes;
+
+        final String mName;
+
+        final File mFile;
+
+        final boolean mFailed;
+
+        Event(String device, int id, boolean incoming, long bytes, long totalBytes, String name, File file,
+                boolean failed) {
+            mDevice = device;
+            mId = id;
+            mIncoming = incoming;
+            mBytes = bytes;
+            mTotalBytes = totalBytes;
+            mName = name;
+            mFile = file;
+            mFailed = failed;
+        }
+    }
+
+    private final Listener mListener;
+
+    private final TimerWheel mRetries = new TimerWheel("bt-transfers");
+
+    private final HashMap<Integer, Outgoing> mOutgoing = new HashMap<Integer, Outgoing>();
+
+    // By device and id; see incomingKey().
+    private final HashMap<String, Incoming> mIncoming = new HashMap<String, Incoming>();
+
+    // CRC-32 of the files received whole, by the same key, so that an offer
+    // repeated because DONE was lost with the session is not sent again.
+    private final HashMap<String, Integer> mFinished = new HashMap<String, Integer>();
+
+    private int mLastId = 0;
+
+    private File mDirectory;
+
+    public FileTransfers(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Where received files go; without one, offers are refused. Files left
+     * there by an earlier engine are deleted.
+     */
+    public synchronized void setDirectory(File directory) {
+        mDirectory = directory;
+        if (directory == null) {
+            return;
+        }
+        directory.mkdirs();
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the whole of file and starts sending it to device over writer.
+     * Returns the transfer id. The mapping stays valid if the caller closes
+     * file.
+     */
+    public int send(String device, PeerWriter writer, FileChannel file, String name) throws IOException {
+        long size = file.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large to map: " + size + " bytes");
+        }
+        ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int crc = checksum(data);
+        synchronized(this) {
+            int id = ++mLastId;
+            Outgoing transfer = new Outgoing(device, id, data, crc, name);
+            mOutgoing.put(id, transfer);
+            start(transfer, writer);
+            return id;
+        }
+    }
+
+    // Copies through a small buffer, which CRC32 takes on every API level.
+    private static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        ByteBuffer in = data.duplicate();
+        while (in.hasRemaining()) {
+            int length = Math.min(buffer.length, in.remaining());
+            in.get(buffer, 0, length);
+            crc.update(buffer, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeOffer(Outgoing transfer) {
+        byte[] nameBytes = transfer.mName.getBytes(UTF_8);
+        long size = transfer.mData.capacity();
+        int crc = transfer.mCrc;
+        byte[] payload = new byte[1 + WireFormat.varintSize(transfer.mId) + WireFormat.varintSize(transfer.mRound)
+                + 8 + 4 + WireFormat.varintSize(CHUNK_SIZE) + nameBytes.length];
+        payload[0] = OFFER;
+        int offset = WireFormat.writeVarint(payload, 1, transfer.mId);
+        offset = WireFormat.writeVarint(payload, offset, transfer.mRound);
+        LinkClock.putLong(payload, offset, size);
+        offset += 8;
+        putInt(payload, offset, crc);
+        offset = WireFormat.writeVarint(payload, offset + 4, CHUNK_SIZE);
+        System.arraycopy(nameBytes, 0, payload, offset, nameBytes.length);
+        return payload;
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        int value = 0;
+        for (int i = 3; i >= 0; i--) {
+            value = (value << 8) | (src[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static byte[] encode(int type, int id, int... values) {
+        int length = 1 + WireFormat.varintSize(id);
+        for (int value : values) {
+            length += WireFormat.varintSize(value);
+        }
+        byte[] payload = new byte[length];
+        payload[0] = (byte) type;
+        int offset = WireFormat.writeVarint(payload, 1, id);
+        for (int value : values) {
+            offset = WireFormat.writeVarint(payload, offset, value);
+        }
+        return payload;
+    }
+
+    // Offers transfer on writer and streams from the last chunk the
+    // receiver acknowledged; its answer may move that on.
+    private void start(Outgoing transfer, PeerWriter writer) {
+        transfer.mWriter = writer;
+        transfer.mNext = transfer.mAcked;
+        sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encodeOffer(transfer)));
+        pump(transfer);
+    }
+
+    /**
+     * Arms transfer's stall timeout if chunks are in flight and it is not
+     * armed already.
+     */
+    private void watch(final Outgoing transfer) {
+        if (transfer.mStall != null || transfer.mWriter == null || transfer.mNext == transfer.mAcked) {
+            return;
+        }
+        transfer.mDropped = transfer.mWriter.getDroppedFrames();
+        transfer.mStall = mRetries.schedule(new Runnable() {
+            public void run() {
+                synchronized(FileTransfers.this) {
+                    transfer.mStall = null;
+                    if (mOutgoing.get(transfer.mId) == transfer && transfer.mWriter != null) {
+                        stalled(transfer);
+                    }
+                }
+            }
+        }, STALL_MILLIS);
+    }
+
+    private void unwatch(Outgoing transfer) {
+        if (transfer.mStall != null) {
+            transfer.mStall.cancel();
+            transfer.mStall = null;
+        }
+    }
+
+    // Chunks still queued behind game messages, with none dropped, will get
+    // there; otherwise the ones not acknowledged are gone or went unheard.
+    private void stalled(Outgoing transfer) {
+        PeerWriter writer = transfer.mWriter;
+        if (writer.getDroppedFrames() == transfer.mDropped && writer.getQueuedBytes() > 0) {
+            watch(transfer);
+            return;
+        }
+        Log.i(TAG, "Transfer " + transfer.mId + " to " + transfer.mDevice + " stalled at chunk "
+                + transfer.mAcked + "; offering it again");
+        transfer.mRound++;
+        start(transfer, writer);
+    }
+
+    /**
+     * Queues transfer's chunks up to the window. A refusal for lack of
+     * credit waits for writable(), and one for lack of room in the queue is
+     * tried again in RETRY_MILLIS.
+     */
+    private void pump(final Outgoing transfer) {
+        PeerWriter writer = transfer.mWriter;
+        while (writer != null && transfer.mNext < transfer.mChunks
+                && transfer.mNext - transfer.mAcked < WINDOW_CHUNKS) {
+            int count = Math.min(transfer.mChunks - transfer.mNext,
+                    Math.min(ACK_EVERY_CHUNKS, WINDOW_CHUNKS - (transfer.mNext - transfer.mAcked)));
+            byte[][] frames = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                frames[i] = encodeChunk(transfer, transfer.mNext + i);
+            }
+            int result;
+            try {
+                result = writer.enqueue(frames, Connection.MIN_PRIORITY, PeerWriter.NO_KEY, false);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException queueing chunks", e);
+                return;
+            }
+            if (result == Connection.SUCCESS || result == Connection.QUEUE_OVERFLOW) {
+                transfer.mNext += count;
+            } else {
+                if (result == PeerWriter.FULL && transfer.mRetry == null) {
+                    transfer.mRetry = mRetries.schedule(new Runnable() {
+                        public void run() {
+                            synchronized(FileTransfers.this) {
+                                transfer.mRetry = null;
+                                if (mOutgoing.get(transfer.mId) == transfer) {
+                                    pump(transfer);
+                                }
+                            }
+                        }
+                    }, RETRY_MILLIS);
+                }
+                break;
+            }
+        }
+        watch(transfer);
+    }
+
+    private static byte[] encodeChunk(Outgoing transfer, int index) {
+        int offset = index * CHUNK_SIZE;
+        int length = Math.min(CHUNK_SIZE, transfer.mData.capacity() - offset);
+        int payloadLength = 1 + WireFormat.varintSize(transfer.mId) + WireFormat.varintSize(transfer.mRound)
+                + WireFormat.varintSize(index) + length;
+        byte[] frame = new byte[WireFormat.headerSize(payloadLength) + payloadLength];
+        int position = WireFormat.writeHeader(frame, 0, WireFormat.FLAG_TRANSFER, payloadLength);
+        frame[position] = CHUNK;
+        position = WireFormat.writeVarint(frame, position + 1, transfer.mId);
+        position = WireFormat.writeVarint(frame, position, transfer.mRound);
+        position = WireFormat.writeVarint(frame, position, index);
+        transfer.mData.position(offset);
+        transfer.mData.get(frame, position, length);
+        return frame;
+    }
+
+    // Frames other than chunks go ahead of app messages and need no credit.
+    private void sendControl(final PeerWriter writer, final byte[] frame) {
+        int result;
+        try {
+            result = writer.enqueue(frame, PeerWriter.CONTROL_PRIORITY, false);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException sending transfer frame", e);
+            return;
+        }
+        if (result == PeerWriter.FULL) {
+            mRetries.schedule(new Runnable() {
+                public void run() {
+                    sendControl(writer, frame);
+                }
+            }, RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Stops sending transfer transferId; the receiver drops what it has.
+     * Returns false if there is no such transfer, or it has finished.
+     */
+    public boolean cancel(int transferId) {
+        synchronized(this) {
+            Outgoing transfer = mOutgoing.remove(transferId);
+            if (transfer == null) {
+                return false;
+            }
+            if (transfer.mRetry != null) {
+                transfer.mRetry.cancel();
+            }
+            unwatch(transfer);
+            if (transfer.mWriter != null) {
+                sendControl(transfer.mWriter,
+                        WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(CANCEL, transferId)));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Handles a FLAG_TRANSFER payload from device, answering over writer.
+     */
+    public void receive(String device, PeerWriter writer, byte[] buffer, int offset, int length)
+            throws IOException {
+        SnapshotDelta.Cursor in = new SnapshotDelta.Cursor(buffer, offset, length);
+        int type = in.readByte();
+        int id = in.readVarint();
+        ArrayList<Event> events = new ArrayList<Event>();
+        synchronized(this) {
+            switch (type) {
+            case OFFER:
+                onOffer(device, writer, id, buffer, in, events);
+                break;
+            case CHUNK:
+                onChunk(device, writer, id, buffer, in, events);
+                break;
+            case ACK:
+                onAck(device, id, in.readVarint(), events);
+                break;
+            case RESEND:
+                int round = in.readVarint();
+                onResend(device, id, round, in.readVarint());
+                break;
+            case DONE:
+                onDone(device, id, events);
+                break;
+            case FAIL:
+                onFail(device, id, events);
+                break;
+            case CANCEL:
+                onCancel(device, id, events);
+                break;
+            default:
+                throw new IOException("Unknown transfer frame type " + type);
+            }
+        }
+        fire(events);
+    }
+
+    private static String incomingKey(String device, int id) {
+        return device + '/' + id;
+    }
+
+    private void onOffer(String device, PeerWriter writer, int id, byte[] buffer, SnapshotDelta.Cursor in,
+            ArrayList<Event> events) throws IOException {
+        int round = in.readVarint();
+        if (in.remaining() < 12) {
+            throw new IOException("Malformed transfer offer");
+        }
+        long size = LinkClock.getLong(buffer, in.position());
+        int crc = getInt(buffer, in.position() + 8);
+        in.reset(buffer, in.position() + 12, in.remaining() - 12);
+        int chunkSize = in.readVarint();
+        String name = new String(buffer, in.position(), in.remaining(), UTF_8);
+        if (size < 0 || size > Integer.MAX_VALUE || chunkSize <= 0
+                || chunkSize > WireFormat.MAX_PAYLOAD_LENGTH / 2) {
+            throw new IOException("Malformed transfer offer");
+        }
+        String key = incomingKey(device, id);
+        Integer finished = mFinished.get(key);
+        if (finished != null && finished == crc) {
+            sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(DONE, id)));
+            return;
+        }
+        Incoming transfer = mIncoming.get(key);
+        if (transfer != null && !transfer.matches(size, crc, chunkSize)) {
+            // The sender restarted and reused the id.
+            discard(transfer);
+            transfer = null;
+        }
+        if (transfer == null) {
+            transfer = create(device, id, name, size, crc, chunkSize);
+            if (transfer == null) {
+                sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(FAIL, id)));
+                events.add(new Event(device, id, true, 0, size, name, null, true));
+                return;
+            }
+            mIncoming.put(key, transfer);
+        }
+        if (transfer.mHeld == transfer.mChunks) {
+            finish(transfer, writer, events);
+            return;
+        }
+        // The sender starts from what it hears here, in round, unless a
+        // RESEND it never got has already moved on to a later one.
+        if (transfer.mRound > round) {
+            sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER,
+                    encode(RESEND, id, transfer.mRound, transfer.mHeld)));
+        } else {
+            transfer.mRound = round;
+            sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(ACK, id, transfer.mHeld)));
+        }
+    }
+
+    private Incoming create(String device, int id, String name, long size, int crc, int chunkSize) {
+        if (mDirectory == null) {
+            Log.i(TAG, "Refusing transfer " + id + " from " + device + "; no transfer directory");
+            return null;
+        }
+        File file = new File(mDirectory, FILE_PREFIX + device.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + id);
+        try {
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            output.setLength(0);
+            return new Incoming(device, id, name, size, crc, chunkSize, file, output);
+        } catch (IOException e) {
+            Log.e(TAG, "IOException creating " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void onChunk(String device, PeerWriter writer, int id, byte[] buffer, SnapshotDelta.Cursor in,
+            ArrayList<Event> events) throws IOException {
+        int round = in.readVarint();
+        int index = in.readVarint();
+        Incoming transfer = mIncoming.get(incomingKey(device, id));
+        if (transfer == null || index < transfer.mHeld || round < transfer.mRound) {
+            // Cancelled, a repeat, or sent before the last RESEND.
+            return;
+        }
+        if (index > transfer.mHeld) {
+            transfer.mRound = round + 1;
+            sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER,
+                    encode(RESEND, id, transfer.mRound, transfer.mHeld)));
+            return;
+        }
+        long position = (long) index * transfer.mChunkSize;
+        int length = in.remaining();
+        if (length != Math.min(transfer.mChunkSize, transfer.mSize - position)) {
+            throw new IOException("Malformed transfer chunk");
+        }
+        try {
+            transfer.mOutput.seek(position);
+            transfer.mOutput.write(buffer, in.position(), length);
+        } catch (IOException e) {
+            Log.e(TAG, "IOException writing " + transfer.mFile, e);
+            fail(transfer, writer, events);
+            return;
+        }
+        transfer.mChecksum.update(buffer, in.position(), length);
+        transfer.mHeld++;
+        if (transfer.mHeld == transfer.mChunks) {
+            finish(transfer, writer, events);
+        } else if (transfer.mHeld % ACK_EVERY_CHUNKS == 0) {
+            sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(ACK, id, transfer.mHeld)));
+            events.add(new Event(device, id, true, position + length, transfer.mSize, null, null, false));
+        }
+    }
+
+    private void finish(Incoming transfer, PeerWriter writer, ArrayList<Event> events) {
+        mIncoming.remove(incomingKey(transfer.mDevice, transfer.mId));
+        try {
+            transfer.mOutput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException closing " + transfer.mFile, e);
+            fail(transfer, writer, events);
+            return;
+        }
+        if ((int) transfer.mChecksum.getValue() != transfer.mCrc) {
+            Log.i(TAG, "Transfer " + transfer.mId + " from " + transfer.mDevice + " failed its checksum");
+            fail(transfer, writer, events);
+            return;
+        }
+        mFinished.put(incomingKey(transfer.mDevice, transfer.mId), transfer.mCrc);
+        sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(DONE, transfer.mId)));
+        events.add(new Event(transfer.mDevice, transfer.mId, true, transfer.mSize, transfer.mSize, transfer.mName,
+                transfer.mFile, false));
+    }
+
+    private void fail(Incoming transfer, PeerWriter writer, ArrayList<Event> events) {
+        discard(transfer);
+        sendControl(writer, WireFormat.encode(WireFormat.FLAG_TRANSFER, encode(FAIL, transfer.mId)));
+        events.add(new Event(transfer.mDevice, transfer.mId, true, transfer.mHeld, transfer.mSize, transfer.mName,
+                null, true));
+    }
+
+    private void discard(Incoming transfer) {
+        mIncoming.remove(incomingKey(transfer.mDevice, transfer.mId));
+        try {
+            transfer.mOutput.close();
+        } catch (IOException e) {
+            Log.i(TAG, "IOException closing " + transfer.mFile, e);
+        }
+        transfer.mFile.delete();
+    }
+
+    // Outgoing transfers are only looked up for the device they go to.
+    private Outgoing getOutgoing(String device, int id) {
+        Outgoing transfer = mOutgoing.get(id);
+        return transfer != null && transfer.mDevice.equals(device) ? transfer : null;
+    }
+
+    private void onAck(String device, int id, int held, ArrayList<Event> events) throws IOException {
+        Outgoing transfer = getOutgoing(device, id);
+        if (transfer == null) {
+            return;
+        }
+        if (held > transfer.mChunks) {
+            throw new IOException("Malformed transfer ack");
+        }
+        if (held < transfer.mAcked) {
+            // The receiver started over, having lost what it had.
+            transfer.mAcked = held;
+            transfer.mNext = held;
+            unwatch(transfer);
+        } else if (held > transfer.mAcked) {
+            transfer.mAcked = held;
+            unwatch(transfer);
+            long size = transfer.mData.capacity();
+            events.add(new Event(device, id, false, Math.min((long) held * CHUNK_SIZE, size), size, null, null,
+                    false));
+        }
+        // The receiver may hold more than we have sent in this session.
+        transfer.mNext = Math.max(transfer.mNext, held);
+        pump(transfer);
+    }
+
+    private void onResend(String device, int id, int round, int held) throws IOException {
+        Outgoing transfer = getOutgoing(device, id);
+        if (transfer == null || round <= transfer.mRound) {
+            return;
+        }
+        if (held > transfer.mChunks) {
+            throw new IOException("Malformed transfer resend");
+        }
+        transfer.mRound = round;
+        transfer.mAcked = held;
+        transfer.mNext = held;
+        unwatch(transfer);
+        pump(transfer);
+    }
+
+    private void onDone(String device, int id, ArrayList<Event> events) {
+        Outgoing transfer = getOutgoing(device, id);
+        if (transfer == null) {
+            return;
+        }
+        remove(transfer);
+        long size = transfer.mData.capacity();
+        events.add(new Event(device, id, false, size, size, null, null, false));
+    }
+
+    private void onFail(String device, int id, ArrayList<Event> events) {
+        Outgoing transfer = getOutgoing(device, id);
+        if (transfer != null) {
+            remove(transfer);
+            events.add(new Event(device, id, false, transfer.mAcked, transfer.mData.capacity(), null, null, true));
+        }
+    }
+
+    private void onCancel(String device, int id, ArrayList<Event> events) {
+        Incoming transfer = mIncoming.get(incomingKey(device, id));
+        if (transfer != null) {
+            discard(transfer);
+            events.add(new Event(device, id, true, transfer.mHeld, transfer.mSize, transfer.mName, null, true));
+        }
+    }
+
+    private void remove(Outgoing transfer) {
+        mOutgoing.remove(transfer.mId);
+        if (transfer.mRetry != null) {
+            transfer.mRetry.cancel();
+        }
+        unwatch(transfer);
+    }
+
+    /**
+     * A session with device started on writer: offers it every transfer
+     * still waiting for it.
+     */
+    public synchronized void peerStarted(String device, PeerWriter writer) {
+        for (Outgoing transfer : mOutgoing.values()) {
+            if (transfer.mDevice.equals(device)) {
+                start(transfer, writer);
+            }
+        }
+    }
+
+    /**
+     * The session on writer ended; its transfers wait for the next one.
+     */
+    public synchronized void peerLost(PeerWriter writer) {
+        for (Outgoing transfer : mOutgoing.values()) {
+            if (transfer.mWriter == writer) {
+                transfer.mWriter = null;
+                unwatch(transfer);
+            }
+        }
+    }
+
+    /**
+     * device granted credit after a refusal, which may have been a chunk's.
+     */
+    public synchronized void writable(String device) {
+        for (Outgoing transfer : mOutgoing.values()) {
+            if (transfer.mDevice.equals(device)) {
+                pump(transfer);
+            }
+        }
+    }
+
+    /**
+     * Drops every transfer, deleting the partly received files, without
+     * telling the listener.
+     */
+    public synchronized void clear() {
+        for (Outgoing transfer : mOutgoing.values()) {
+            if (transfer.mRetry != null) {
+                transfer.mRetry.cancel();
+            }
+            unwatch(transfer);
+        }
+        mOutgoing.clear();
+        for (Incoming transfer : new ArrayList<Incoming>(mIncoming.values())) {
+            discard(transfer);
+        }
+        mFinished.clear();
+        mRetries.stop();
+    }
+
+    private void fire(ArrayList<Event> events) {
+        for (Event event : events) {
+            if (event.mFailed) {
+                mListener.transferFailed(event.mDevice, event.mId, event.mIncoming);
+            } else if (event.mFile != null) {
+                mListener.transferReceived(event.mDevice, event.mId, event.mName, event.mFile);
+            } else {
+                mListener.transferProgress(event.mDevice, event.mId, event.mIncoming, event.mBytes,
+                        event.mTotalBytes);
+            }
+        }
+    }
+}
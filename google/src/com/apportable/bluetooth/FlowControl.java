@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+/**
+ * FLAG_CONTROL frames that keep a sender from getting further ahead of a
+ * slow receiver than the receiver allows.
+ *
+ * Both ends count the bytes of every frame that is not FLAG_CONTROL, as
+ * written on the wire, from the start of the session; like SessionResume's
+ * frame numbers the count is implicit and survives a resume. A receiver
+ * with a window grants credit up to the bytes it has handled plus the
+ * window, and grants again as it works through them. The sender accepts a
+ * message only while what it has queued and written stays under the
+ * latest grant, and refuses the rest with Connection.WOULD_BLOCK until the
+ * next one arrives. A message is accepted whole, so the last one in may
+ * overshoot the grant.
+ *
+ * Until a peer grants anything, and once it grants UNLIMITED, sending to it
+ * is not limited.
+ *
+ * <pre>
+ *   CREDIT   type | limit                                 1 + 8 bytes
+ * </pre>
+ */
+final class FlowControl {
+    public static final int CREDIT = 7;
+
+    public static final int CREDIT_LENGTH = 1 + 8;
+
+    /** A limit that turns flow control off for the sender. */
+    public static final long UNLIMITED = -1;
+
+    // A receiver grants again once it can extend the limit by this fraction
+    // of its window, so that a busy link costs a CREDIT every quarter window
+    // rather than one per frame.
+    public static final int GRANT_FRACTION = 4;
+
+    private FlowControl() {
+    }
+
+    public static byte[] encodeCredit(long limit) {
+        byte[] payload = new byte[CREDIT_LENGTH];
+        payload[0] = CREDIT;
+        LinkClock.putLong(payload, 1, limit);
+        return payload;
+    }
+
+    public static boolean isCredit(byte[] buffer, int offset, int length) {
+        return length == CREDIT_LENGTH && buffer[offset] == CREDIT;
+    }
+
+    public static long getLimit(byte[] buffer, int offset) {
+        return LinkClock.getLong(buffer, offset + 1);
+    }
+
+    /**
+     * The limit a receiver that has handled consumed bytes grants with
+     * window, or 0 if its last grant, granted, is recent enough to stand.
+     * granted is 0 before the first grant.
+     */
+    public static long nextGrant(long consumed, int window, long granted) {
+        if (window <= 0) {
+            return granted > 0 ? UNLIMITED : 0;
+        }
+        long limit = consumed + window;
+        if (granted <= 0 || limit - granted >= Math.max(1, window / GRANT_FRACTION)) {
+            return limit;
+        }
+        return 0;
+    }
+}
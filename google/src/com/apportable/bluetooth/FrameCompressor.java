@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression for FLAG_COMPRESSED frames: raw DEFLATE at
+ * BEST_SPEED, primed with a preset dictionary of strings common in game
+ * messages (keyed archives, JSON) so that even short messages shrink.
+ *
+ * <pre>
+ *   varint uncompressed length | deflate stream
+ * </pre>
+ *
+ * Both ends must use the same DICTIONARY; changing it needs a new
+ * WireFormat.VERSION.
+ */
+final class FrameCompressor {
+    // Later bytes are cheaper to reference, so the most common strings go last.
+    static final byte[] DICTIONARY = ascii(
+            // NSKeyedArchiver binary plists, the usual NSData payload from
+            // native game code.
+            "bplist00X$versionX$objectsY$archiverT$topNSKeyedArchiverTrootU$null"
+            + "$class$classname$classesNSObjectNSDictionaryNSMutableDictionary"
+            + "NSArrayNSMutableArrayNSStringNSMutableStringNSNumberNSDataNSValueNS.keysNS.objects"
+            // JSON-style messages.
+            + "{\"type\":\"\",\"id\":\"seq\":\"time\":\"player\":\"state\":\"position\":\"velocity\":"
+            + "\"rotation\":\"score\":\"health\":\"x\":\"y\":\"z\":0.000000,true,false,null}]");
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    private byte[] mOut = new byte[1024];
+
+    /**
+     * Compressed form of payload[offset, offset + length), or null if it
+     * would not be smaller.
+     */
+    public synchronized byte[] compress(byte[] payload, int offset, int length) {
+        int header = WireFormat.varintSize(length);
+        int limit = header + length - 1;
+        if (mOut.length < limit) {
+            mOut = new byte[limit];
+        }
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(payload, offset, length);
+        mDeflater.finish();
+        int pos = header;
+        while (!mDeflater.finished() && pos < limit) {
+            pos += mDeflater.deflate(mOut, pos, limit - pos);
+        }
+        if (!mDeflater.finished()) {
+            return null;
+        }
+        WireFormat.writeVarint(mOut, 0, length);
+        byte[] compressed = new byte[pos];
+        System.arraycopy(mOut, 0, compressed, 0, pos);
+        return compressed;
+    }
+
+    public synchronized void end() {
+        mDeflater.end();
+    }
+
+    /**
+     * Inflates FLAG_COMPRESSED payloads for one reader thread into a reused
+     * buffer.
+     */
+    static final class Decompressor {
+        private final Inflater mInflater = new Inflater(true);
+
+        private byte[] mBuffer = new byte[1024];
+
+        private final SnapshotDelta.Cursor mCursor = new SnapshotDelta.Cursor();
+
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * Inflates into getBuffer() and returns the length.
+         */
+        public int decompress(byte[] src, int offset, int length) throws IOException {
+            SnapshotDelta.Cursor in = mCursor.reset(src, offset, length);
+            int rawLength = in.readVarint();
+            if (rawLength > WireFormat.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Compressed frame of " + rawLength + " bytes exceeds limit");
+            }
+            if (mBuffer.length < rawLength) {
+                mBuffer = new byte[Math.max(rawLength, mBuffer.length * 2)];
+            }
+            mInflater.reset();
+            mInflater.setDictionary(DICTIONARY);
+            mInflater.setInput(src, in.position(), in.remaining());
+            int pos = 0;
+            try {
+                while (pos < rawLength) {
+                    int n = mInflater.inflate(mBuffer, pos, rawLength - pos);
+                    if (n == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                        break;
+                    }
+                    pos += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame: " + e.getMessage());
+            }
+            if (pos != rawLength) {
+                throw new IOException("Compressed frame inflated to " + pos + " of " + rawLength + " bytes");
+            }
+            return rawLength;
+        }
+
+        public void end() {
+            mInflater.end();
+        }
+    }
+
+    /**
+     * Decides, per peer, whether compressing is paying off. In
+     * COMPRESSION_ADAPTIVE mode it watches windows of compressed messages
+     * and stops compressing for a while when a window saved under 10% of
+     * its bytes, or took longer to compress than the saved bytes take to
+     * send over RFCOMM.
+     */
+    static final class PeerPolicy {
+        private static final int WINDOW = 32;
+
+        // Messages sent uncompressed before trying again.
+        private static final int BACKOFF = 512;
+
+        // Roughly what RFCOMM delivers in practice: 256 kbit/s.
+        private static final long LINK_NANOS_PER_BYTE = 31250;
+
+        private long mRawBytes;
+
+        private long mCompressedBytes;
+
+        private long mNanos;
+
+        private int mSamples;
+
+        private int mSkipped = -1;
+
+        public synchronized boolean shouldCompress(int mode, int minBytes, int length) {
+            if (mode == Connection.COMPRESSION_OFF || length < minBytes) {
+                return false;
+            }
+            if (mode == Connection.COMPRESSION_ON || mSkipped < 0) {
+                return true;
+            }
+            if (++mSkipped < BACKOFF) {
+                return false;
+            }
+            mSkipped = -1;
+            return true;
+        }
+
+        /**
+         * Records one attempt; compressedLength is rawLength if it did not
+         * shrink.
+         */
+        public synchronized void record(int rawLength, int compressedLength, long nanos) {
+            mRawBytes += rawLength;
+            mCompressedBytes += compressedLength;
+            mNanos += nanos;
+            if (++mSamples < WINDOW) {
+                return;
+            }
+            long saved = mRawBytes - mCompressedBytes;
+            if (saved * 10 < mRawBytes || mNanos > saved * LINK_NANOS_PER_BYTE) {
+                mSkipped = 0;
+            }
+            mRawBytes = 0;
+            mCompressedBytes = 0;
+            mNanos = 0;
+            mSamples = 0;
+        }
+    }
+}
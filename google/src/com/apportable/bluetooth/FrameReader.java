@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes WireFormat frames from a stream. Bytes are read straight into a
+ * single growable buffer and frames are parsed in place, so a message costs one
+ * copy out of the buffer no matter how many reads it took to arrive.
+ */
+final class FrameReader {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final InputStream mInput;
+
+    private byte[] mBuffer;
+
+    private int mStart;
+
+    private int mEnd;
+
+    private int mFlags;
+
+    private int mPayloadOffset;
+
+    private int mPayloadLength;
+
+    public FrameReader(InputStream input) {
+        this(input, INITIAL_BUFFER_SIZE);
+    }
+
+    public FrameReader(InputStream input, int initialBufferSize) {
+        mInput = input;
+        mBuffer = new byte[initialBufferSize];
+    }
+
+    /**
+     * Blocks until a full frame is buffered. Returns false on a clean end of
+     * stream between frames.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int available = mEnd - mStart;
+            if (available >= 3) {
+                if ((mBuffer[mStart] & 0xFF) != WireFormat.VERSION) {
+                    throw new IOException("Unsupported wire format version "
+                            + (mBuffer[mStart] & 0xFF));
+                }
+                int pos = mStart + 2;
+                int length = 0;
+                int shift = 0;
+                boolean headerComplete = false;
+                while (pos < mEnd) {
+                    int b = mBuffer[pos++];
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        headerComplete = true;
+                        break;
+                    }
+                    shift += 7;
+                    if (shift > 28) {
+                        throw new IOException("Malformed frame length");
+                    }
+                }
+                if (headerComplete) {
+                    if (length < 0 || length > WireFormat.MAX_PAYLOAD_LENGTH) {
+                        throw new IOException("Frame of " + length + " bytes exceeds limit");
+                    }
+                    int frameLength = (pos - mStart) + length;
+                    if (available >= frameLength) {
+                        mFlags = mBuffer[mStart + 1] & 0xFF;
+                        mPayloadOffset = pos;
+                        mPayloadLength = length;
+                        mStart += frameLength;
+                        return true;
+                    }
+                    ensureCapacity(frameLength);
+                }
+            }
+            if (!fill()) {
+                if (mEnd != mStart) {
+                    throw new IOException("Stream ended in the middle of a frame");
+                }
+                return false;
+            }
+        }
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * The buffer holding the current payload. Only valid until the next call
+     * to next().
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    public byte[] copyPayload() {
+        byte[] payload = new byte[mPayloadLength];
+        System.arraycopy(mBuffer, mPayloadOffset, payload, 0, mPayloadLength);
+        return payload;
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (mBuffer.length - mStart >= frameLength) {
+            return;
+        }
+        int buffered = mEnd - mStart;
+        byte[] target = mBuffer;
+        if (mBuffer.length < frameLength) {
+            int size = mBuffer.length;
+            while (size < frameLength) {
+                size <<= 1;
+            }
+            target = new byte[size];
+        }
+        System.arraycopy(mBuffer, mStart, target, 0, buffered);
+        mBuffer = target;
+        mStart = 0;
+        mEnd = buffered;
+    }
+
+    private boolean fill() throws IOException {
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        } else if (mEnd == mBuffer.length) {
+            ensureCapacity(mBuffer.length - mStart + 1);
+        }
+        int bytesRead = mInput.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (bytesRead == -1) {
+            return false;
+        }
+        mEnd += bytesRead;
+        return true;
+    }
+}
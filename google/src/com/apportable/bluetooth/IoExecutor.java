@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking socket work (accept loop, per-peer readers and writers)
+ * for a ConnectionEngine. Every task runs on a named thread at the configured
+ * priority, idle threads are kept for reuse when a server is republished, and
+ * shutdown() stops and joins them.
+ *
+ * With preferVirtual set, tasks run on virtual threads if the runtime has
+ * them (looked up reflectively, so this still loads on Android), and the
+ * thread bound no longer applies.
+ */
+final class IoExecutor {
+    public static final String TAG = "com.apportable.bluetooth.IoExecutor";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ExecutorService mExecutor;
+
+    private final boolean mVirtual;
+
+    public IoExecutor(final String name, int maxThreads, final int priority, boolean preferVirtual) {
+        ExecutorService executor = preferVirtual ? newVirtualExecutor(name) : null;
+        mVirtual = executor != null;
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            // No queue: a blocking reader that cannot get a thread should
+            // fail now rather than sit behind other readers forever.
+            executor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setPriority(priority);
+                            return thread;
+                        }
+                    });
+        }
+        mExecutor = executor;
+    }
+
+    private static ExecutorService newVirtualExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (Exception e) {
+            Log.i(TAG, "Virtual threads not available, using platform threads");
+        }
+        return null;
+    }
+
+    public boolean isVirtual() {
+        return mVirtual;
+    }
+
+    /**
+     * Runs task with the thread renamed to taskName for its duration. Returns
+     * null if the pool is full or shut down.
+     */
+    public Future<?> execute(final String taskName, final Runnable task) {
+        try {
+            return mExecutor.submit(new Runnable() {
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    String poolName = thread.getName();
+                    thread.setName(taskName);
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Uncaught exception in " + taskName, e);
+                    } finally {
+                        thread.setName(poolName);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "No thread available for " + taskName, e);
+        }
+        return null;
+    }
+
+    /**
+     * Waits up to timeoutMillis in total for tasks to finish. Returns false
+     * if any are still running.
+     */
+    public static boolean await(Collection<Future<?>> tasks, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Future<?> task : tasks) {
+            try {
+                task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "ExecutionException in await", e);
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting work, interrupts running tasks and waits up to
+     * timeoutMillis for their threads to exit. Callers close sockets first;
+     * blocking socket reads do not react to interrupts.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        mExecutor.shutdownNow();
+        try {
+            return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
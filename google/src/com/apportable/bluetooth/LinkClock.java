@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+/**
+ * Round-trip time, jitter and clock offset to one peer, estimated from
+ * FLAG_CONTROL ping/pong frames.
+ *
+ * A ping carries the sender's send time t0. The pong echoes t0 and adds the
+ * peer's receive time t1 and reply time t2; the pong arrives at t3. As in
+ * NTP, rtt = (t3 - t0) - (t2 - t1) and offset = ((t1 - t0) + (t2 - t3)) / 2.
+ * Smoothed RTT follows RFC 6298 and jitter RFC 3550. The offset comes from
+ * the lowest-RTT sample of the last few, since queueing delay makes the
+ * path asymmetric and that sample has the least of it.
+ *
+ * All times are microseconds on System.nanoTime()'s clock, which on Android
+ * is CLOCK_MONOTONIC. The offset is the peer's clock minus ours.
+ */
+final class LinkClock {
+    public static final int PING = 1;
+
+    public static final int PONG = 2;
+
+    public static final int PING_LENGTH = 1 + 8;
+
+    public static final int PONG_LENGTH = 1 + 3 * 8;
+
+    private static final int OFFSET_WINDOW = 8;
+
+    private final long[] mWindowRtt = new long[OFFSET_WINDOW];
+
+    private final long[] mWindowOffset = new long[OFFSET_WINDOW];
+
+    private int mWindowCount;
+
+    private int mWindowNext;
+
+    private long mSrtt = -1;
+
+    private long mJitter;
+
+    private long mLastRtt = -1;
+
+    private long mOffset;
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    public static byte[] encodePing(long t0) {
+        byte[] payload = new byte[PING_LENGTH];
+        payload[0] = PING;
+        putLong(payload, 1, t0);
+        return payload;
+    }
+
+    /**
+     * Builds the reply to a ping that arrived at t1.
+     */
+    public static byte[] encodePong(byte[] ping, int offset, long t1, long t2) {
+        byte[] payload = new byte[PONG_LENGTH];
+        payload[0] = PONG;
+        System.arraycopy(ping, offset + 1, payload, 1, 8);
+        putLong(payload, 9, t1);
+        putLong(payload, 17, t2);
+        return payload;
+    }
+
+    /**
+     * Folds in a pong that arrived at t3. Returns false if the sample was
+     * unusable.
+     */
+    public synchronized boolean onPong(byte[] pong, int offset, long t3) {
+        long t0 = getLong(pong, offset + 1);
+        long t1 = getLong(pong, offset + 9);
+        long t2 = getLong(pong, offset + 17);
+        long rtt = (t3 - t0) - (t2 - t1);
+        if (rtt < 0) {
+            return false;
+        }
+        if (mSrtt < 0) {
+            mSrtt = rtt;
+        } else {
+            mSrtt += (rtt - mSrtt) / 8;
+        }
+        if (mLastRtt >= 0) {
+            mJitter += (Math.abs(rtt - mLastRtt) - mJitter) / 16;
+        }
+        mLastRtt = rtt;
+
+        mWindowRtt[mWindowNext] = rtt;
+        mWindowOffset[mWindowNext] = ((t1 - t0) + (t2 - t3)) / 2;
+        mWindowNext = (mWindowNext + 1) % OFFSET_WINDOW;
+        mWindowCount = Math.min(mWindowCount + 1, OFFSET_WINDOW);
+        int best = 0;
+        for (int i = 1; i < mWindowCount; i++) {
+            if (mWindowRtt[i] < mWindowRtt[best]) {
+                best = i;
+            }
+        }
+        mOffset = mWindowOffset[best];
+        return true;
+    }
+
+    /**
+     * Smoothed round-trip time, or -1 before the first pong.
+     */
+    public synchronized long getRttMicros() {
+        return mSrtt;
+    }
+
+    public synchronized long getJitterMicros() {
+        return mJitter;
+    }
+
+    public synchronized long getClockOffsetMicros() {
+        return mOffset;
+    }
+
+    static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters for one connected device, updated by its PeerWriter and
+ * BtStreamWatcher without locking. ConnectionEngine turns them into a
+ * ConnectionStats.Peer on request.
+ */
+final class LinkStats {
+    private final String mAddress;
+
+    private final long mConnectedAtMillis = System.currentTimeMillis();
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private final AtomicLong mMessagesSent = new AtomicLong();
+
+    private final AtomicLong mWrites = new AtomicLong();
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    private final AtomicLong mMessagesReceived = new AtomicLong();
+
+    // Enqueue of the oldest frame in a batch until the batch is flushed.
+    private final LatencyHistogram mSendLatency = new LatencyHistogram();
+
+    // Frame fully read until the listener returns.
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+
+    private final LinkClock mClock = new LinkClock();
+
+    public LinkStats(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public LinkClock getClock() {
+        return mClock;
+    }
+
+    public void onBatchWritten(int frames, int bytes, long latencyMicros) {
+        mMessagesSent.addAndGet(frames);
+        mBytesSent.addAndGet(bytes);
+        mWrites.incrementAndGet();
+        mSendLatency.record(latencyMicros);
+    }
+
+    public void onMessageReceived(int bytes, long dispatchMicros) {
+        mMessagesReceived.incrementAndGet();
+        mBytesReceived.addAndGet(bytes);
+        mDispatchLatency.record(dispatchMicros);
+    }
+
+    // Part of a message that is not complete yet.
+    public void onBytesReceived(int bytes) {
+        mBytesReceived.addAndGet(bytes);
+    }
+
+    public ConnectionStats.Peer snapshot(int queuedBytes, long droppedFrames) {
+        return new ConnectionStats.Peer(mAddress, mConnectedAtMillis,
+                mBytesSent.get(), mMessagesSent.get(), mWrites.get(),
+                mBytesReceived.get(), mMessagesReceived.get(),
+                queuedBytes, droppedFrames,
+                mClock.getRttMicros(), mClock.getJitterMicros(), mClock.getClockOffsetMicros(),
+                new ConnectionStats.Histogram(mSendLatency.snapshot()),
+                new ConnectionStats.Histogram(mDispatchLatency.snapshot()));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Everything ConnectionEngine keeps for one connected device. A Peer lives
+ * as long as its session: across a dropout that is resumed it moves to the
+ * new socket, while a new session from the same address gets a new Peer.
+ */
+final class Peer {
+    /**
+     * A reconnect that the server accepted for this session, waiting for the
+     * peer's reader to pick it up.
+     */
+    public static final class Offer {
+        public final TransportSocket mSocket;
+
+        public final FrameReader mReader;
+
+        public final SessionResume.Handshake mHello;
+
+        public Offer(TransportSocket socket, FrameReader reader, SessionResume.Handshake hello) {
+            mSocket = socket;
+            mReader = reader;
+            mHello = hello;
+        }
+    }
+
+    private final String mAddress;
+
+    private final long mSessionId;
+
+    // Whether this end connected, and so reconnects after a dropout.
+    private final boolean mClient;
+
+    private volatile TransportSocket mSocket;
+
+    private final PeerWriter mWriter;
+
+    private final LinkStats mStats;
+
+    private volatile Future<?> mWriterTask;
+
+    private volatile Future<?> mWatcherTask;
+
+    private Offer mOffer;
+
+    private boolean mClosed;
+
+    public Peer(String address, long sessionId, boolean client, TransportSocket socket, PeerWriter writer,
+            LinkStats stats) {
+        mAddress = address;
+        mSessionId = sessionId;
+        mClient = client;
+        mSocket = socket;
+        mWriter = writer;
+        mStats = stats;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public long getSessionId() {
+        return mSessionId;
+    }
+
+    public boolean isClient() {
+        return mClient;
+    }
+
+    public TransportSocket getSocket() {
+        return mSocket;
+    }
+
+    public PeerWriter getWriter() {
+        return mWriter;
+    }
+
+    public LinkStats getStats() {
+        return mStats;
+    }
+
+    public Future<?> getWriterTask() {
+        return mWriterTask;
+    }
+
+    public Future<?> getWatcherTask() {
+        return mWatcherTask;
+    }
+
+    public void setTasks(Future<?> writerTask, Future<?> watcherTask) {
+        mWriterTask = writerTask;
+        mWatcherTask = watcherTask;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Moves the session to socket after a dropout. Returns false if the peer
+     * has been closed meanwhile.
+     */
+    public synchronized boolean attach(TransportSocket socket) {
+        if (mClosed) {
+            return false;
+        }
+        mSocket = socket;
+        return true;
+    }
+
+    /**
+     * Hands a reconnect to the reader, closing the current socket in case
+     * the reader has not noticed the dropout yet. Returns false if the peer
+     * has been closed.
+     */
+    public boolean offer(Offer offer) throws IOException {
+        Offer replaced;
+        synchronized(this) {
+            if (mClosed) {
+                return false;
+            }
+            replaced = mOffer;
+            mOffer = offer;
+            notifyAll();
+        }
+        if (replaced != null) {
+            replaced.mSocket.close();
+        }
+        mSocket.close();
+        return true;
+    }
+
+    /**
+     * Waits until deadlineMillis for offer(). Returns null on timeout or if
+     * the peer is closed.
+     */
+    public synchronized Offer awaitOffer(long deadlineMillis) throws InterruptedException {
+        while (mOffer == null && !mClosed) {
+            long remaining = deadlineMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        Offer offer = mOffer;
+        mOffer = null;
+        return mClosed ? null : offer;
+    }
+
+    /**
+     * Stops the writer and closes the socket, which makes the reader fall out
+     * of its loop.
+     */
+    public void close() throws IOException {
+        Offer offer;
+        synchronized(this) {
+            mClosed = true;
+            offer = mOffer;
+            mOffer = null;
+            notifyAll();
+        }
+        mWriter.close();
+        if (offer != null) {
+            offer.mSocket.close();
+        }
+        mSocket.close();
+    }
+}
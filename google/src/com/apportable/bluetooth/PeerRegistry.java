@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The connected peers of one engine. Connects and disconnects are rare and
+ * copy the registry under a lock; lookups and iteration read the current
+ * copy without one, so a broadcast never sees a peer half-added or trips
+ * over one that drops mid-loop.
+ */
+final class PeerRegistry {
+    private static final class State {
+        // In connection order.
+        final Peer[] mPeers;
+
+        final HashMap<String, Peer> mByAddress;
+
+        State(Peer[] peers) {
+            mPeers = peers;
+            mByAddress = new HashMap<String, Peer>();
+            for (Peer peer : peers) {
+                mByAddress.put(peer.getAddress(), peer);
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private volatile State mState = new State(new Peer[0]);
+
+    public Peer get(String address) {
+        return mState.mByAddress.get(address);
+    }
+
+    /**
+     * The peers connected right now, oldest first. The array is shared and
+     * must not be modified.
+     */
+    public Peer[] snapshot() {
+        return mState.mPeers;
+    }
+
+    public int size() {
+        return mState.mPeers.length;
+    }
+
+    public String[] getAddresses() {
+        Peer[] peers = mState.mPeers;
+        String[] addresses = new String[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            addresses[i] = peers[i].getAddress();
+        }
+        return addresses;
+    }
+
+    /**
+     * Adds peer, replacing and returning any peer registered under the same
+     * address.
+     */
+    public Peer put(Peer peer) {
+        synchronized(mLock) {
+            Peer previous = mState.mByAddress.get(peer.getAddress());
+            ArrayList<Peer> peers = new ArrayList<Peer>(Arrays.asList(mState.mPeers));
+            if (previous != null) {
+                peers.remove(previous);
+            }
+            peers.add(peer);
+            mState = new State(peers.toArray(new Peer[peers.size()]));
+            return previous;
+        }
+    }
+
+    /**
+     * Removes peer. Returns false if it was no longer registered because a
+     * reconnect replaced it or the registry was cleared.
+     */
+    public boolean remove(Peer peer) {
+        synchronized(mLock) {
+            if (mState.mByAddress.get(peer.getAddress()) != peer) {
+                return false;
+            }
+            ArrayList<Peer> peers = new ArrayList<Peer>(Arrays.asList(mState.mPeers));
+            peers.remove(peer);
+            mState = new State(peers.toArray(new Peer[peers.size()]));
+            return true;
+        }
+    }
+
+    /**
+     * Removes every peer and returns them.
+     */
+    public Peer[] clear() {
+        synchronized(mLock) {
+            Peer[] peers = mState.mPeers;
+            mState = new State(new Peer[0]);
+            return peers;
+        }
+    }
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Outbound queue and writer thread for one connected device. Callers enqueue
+ * encoded frames and return immediately; the writer drains everything that is
+ * pending into a single write on the socket, so a burst of small game messages
+ * costs one RFCOMM write instead of one each.
+ *
+ * Messages wait in one FIFO lane per priority and batches are filled from
+ * the highest lane down. A message split into several frames (see
+ * ChannelFrames) gives up one frame per batch, so messages queued behind it
+ * in higher lanes do not wait for the whole of it.
+ *
+ * Every frame other than FLAG_CONTROL is also kept once written, up to a byte
+ * limit, until the peer acknowledges it (see SessionResume). When the socket
+ * fails the writer suspends instead of closing: messages keep queueing, and
+ * resume() puts it on a new socket, replays what the peer missed and carries
+ * on with the queue.
+ *
+ * In tick mode (setTickMode()) messages wait for the engine's next tick()
+ * whatever the flush policy, so that everything queued during a tick goes
+ * out together at its boundary, and nothing queued after it goes with it.
+ * Engine control frames do not wait.
+ *
+ * Once the peer grants credit (see FlowControl) enqueue() refuses messages
+ * beyond it with Connection.WOULD_BLOCK, and onCredit() tells the engine
+ * when a later grant makes room again.
+ */
+final class PeerWriter implements Runnable {
+    public static final String TAG = "com.apportable.bluetooth.PeerWriter";
+
+    // Upper bound on how long FLUSH_MAX_BYTES may hold back a partial batch.
+    private static final long MAX_BYTES_HOLD_MICROS = 10000;
+
+    private static final int COALESCE_BUFFER_SIZE = 8192;
+
+    /** Returned by a non-blocking enqueue when OVERFLOW_BLOCK would have to wait. */
+    public static final int FULL = -1;
+
+    // Returned by queue() when OVERFLOW_DISCONNECT has just closed the writer.
+    private static final int OVERFLOWED = -2;
+
+    /** Lane for engine control frames, above every app priority. */
+    public static final int CONTROL_PRIORITY = Connection.MAX_PRIORITY + 1;
+
+    /** latestKey for messages that must all be delivered. */
+    public static final int NO_KEY = -1;
+
+    public static final int DEFAULT_MAX_REPLAY_BYTES = 256 * 1024;
+
+    /**
+     * One queued message: its frames, the next one to write, when it was
+     * queued, and its place in the order messages were queued.
+     */
+    private static final class Entry {
+        byte[][] mFrames;
+
+        int mNext;
+
+        final int mLatestKey;
+
+        final long mEnqueueNanos;
+
+        final long mSeq;
+
+        Entry(byte[][] frames, int latestKey, long enqueueNanos, long seq) {
+            mFrames = frames;
+            mLatestKey = latestKey;
+            mEnqueueNanos = enqueueNanos;
+            mSeq = seq;
+        }
+
+        int remainingBytes() {
+            int bytes = 0;
+            for (int i = mNext; i < mFrames.length; i++) {
+                bytes += mFrames[i].length;
+            }
+            return bytes;
+        }
+    }
+
+    public interface OnWriteFailedListener {
+        public void OnWriteFailed(String device, IOException e);
+    }
+
+    private final String mAddress;
+
+    private OutputStream mOutput;
+
+    // Bumped by resume(), so that a failure on the old socket is told apart
+    // from one on the new.
+    private int mGeneration;
+
+    private boolean mSuspended;
+
+    private final OnWriteFailedListener mOnWriteFailedListener;
+
+    private final LinkStats mStats;
+
+    private final FrameCompressor.PeerPolicy mCompressionPolicy = new FrameCompressor.PeerPolicy();
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry>[] mLanes = (ArrayDeque<Entry>[]) new ArrayDeque<?>[CONTROL_PRIORITY + 1];
+
+    // Queued latest-wins messages by key, until the writer takes them.
+    private final HashMap<Integer, Entry> mLatest = new HashMap<Integer, Entry>();
+
+    private final byte[] mCoalesceBuffer = new byte[COALESCE_BUFFER_SIZE];
+
+    // Written frames the peer has not acknowledged, oldest first; the first
+    // is frame number mReplayFirst and the next to be written mSent.
+    private final ArrayDeque<byte[]> mReplay = new ArrayDeque<byte[]>();
+
+    private long mReplayFirst;
+
+    private long mSent;
+
+    private int mReplayBytes;
+
+    // 0 keeps nothing, for a session that cannot be resumed.
+    private int mMaxReplayBytes = 0;
+
+    // Frames at the end of mReplay still to be written again after resume().
+    private int mReplayPending;
+
+    // The count the reader last asked to acknowledge, and the last one sent.
+    private long mAckRequested;
+
+    private long mAckSent;
+
+    // The credit the reader last asked to grant the peer (0 for none yet),
+    // and whether it still has to go out.
+    private long mCreditRequested;
+
+    private boolean mCreditPending;
+
+    // The peer's latest grant, FlowControl.UNLIMITED until it sends one, and
+    // the bytes of frames other than FLAG_CONTROL written so far, counted
+    // the way the peer counts them.
+    private long mCreditLimit = FlowControl.UNLIMITED;
+
+    private long mWrittenBytes;
+
+    // Whether a message was refused for lack of credit since the last grant.
+    private boolean mCreditBlocked;
+
+    // Output and generation of the batch being written; writer thread only.
+    private OutputStream mBatchOutput;
+
+    private int mBatchGeneration;
+
+    private int mQueuedBytes;
+
+    // The part of mQueuedBytes in the control lane, which the overflow
+    // limit leaves out.
+    private int mControlBytes;
+
+    // Enqueue time of the oldest message in the batch being written; writer
+    // thread only.
+    private long mBatchEnqueueNanos;
+
+    private int mFlushPolicy = Connection.FLUSH_IMMEDIATE;
+
+    private int mFlushValue;
+
+    private int mOverflowPolicy = Connection.OVERFLOW_BLOCK;
+
+    private boolean mTickMode;
+
+    // Sequence number of the next message queued, and of the first one the
+    // last tick did not release.
+    private long mNextSeq;
+
+    private long mTickCutoff;
+
+    // 0 means unbounded.
+    private int mMaxQueuedBytes;
+
+    private long mDroppedFrames;
+
+    private boolean mClosed;
+
+    public PeerWriter(String address, OutputStream output, OnWriteFailedListener owfListener, LinkStats stats) {
+        mAddress = address;
+        mOutput = output;
+        mOnWriteFailedListener = owfListener;
+        mStats = stats;
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new ArrayDeque<Entry>();
+        }
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public FrameCompressor.PeerPolicy getCompressionPolicy() {
+        return mCompressionPolicy;
+    }
+
+    public synchronized void setFlushPolicy(int policy, int value) {
+        mFlushPolicy = policy;
+        mFlushValue = value;
+        notifyAll();
+    }
+
+    /**
+     * Holds messages until tick() while on; turning it off falls back to
+     * the flush policy.
+     */
+    public synchronized void setTickMode(boolean enabled) {
+        mTickMode = enabled;
+        notifyAll();
+    }
+
+    /**
+     * Releases what is queued now, in tick mode.
+     */
+    public synchronized void tick() {
+        mTickCutoff = mNextSeq;
+        notifyAll();
+    }
+
+    public synchronized void setOverflowPolicy(int policy, int maxQueuedBytes) {
+        mOverflowPolicy = policy;
+        mMaxQueuedBytes = maxQueuedBytes;
+        notifyAll();
+    }
+
+    /**
+     * Caps the bytes kept for replay; the oldest frames beyond it are
+     * dropped, and a dropout that needs them cannot be resumed.
+     */
+    public synchronized void setMaxReplayBytes(int maxReplayBytes) {
+        mMaxReplayBytes = maxReplayBytes;
+        trimReplay();
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public int enqueue(byte[] frame, boolean mayBlock) throws InterruptedException {
+        return enqueue(new byte[][] {frame}, Connection.DEFAULT_PRIORITY, NO_KEY, mayBlock);
+    }
+
+    public int enqueue(byte[] frame, int priority, boolean mayBlock) throws InterruptedException {
+        return enqueue(new byte[][] {frame}, priority, NO_KEY, mayBlock);
+    }
+
+    /**
+     * Queues the encoded frames of one message at priority and applies the
+     * overflow policy if the queue is over its byte limit. If latestKey is
+     * not NO_KEY and a message with the same key is still queued, the new
+     * one takes its place instead. Returns Connection.SUCCESS,
+     * Connection.QUEUE_OVERFLOW when older messages were dropped to make
+     * room, Connection.WOULD_BLOCK when the peer has granted no more credit,
+     * Connection.FAILURE when the writer is closed (or was closed by
+     * OVERFLOW_DISCONNECT), or FULL when mayBlock is false and the policy is
+     * OVERFLOW_BLOCK. Frames at CONTROL_PRIORITY do not need credit and are
+     * not subject to the overflow policy.
+     */
+    public int enqueue(byte[][] frames, int priority, int latestKey, boolean mayBlock)
+            throws InterruptedException {
+        int result = queue(frames, priority, latestKey, mayBlock);
+        if (result == OVERFLOWED) {
+            if (mOnWriteFailedListener != null) {
+                mOnWriteFailedListener.OnWriteFailed(mAddress, new IOException("Send queue overflow"));
+            }
+            return Connection.FAILURE;
+        }
+        return result;
+    }
+
+    private synchronized int queue(byte[][] frames, int priority, int latestKey, boolean mayBlock)
+            throws InterruptedException {
+        int length = 0;
+        for (byte[] frame : frames) {
+            length += frame.length;
+        }
+        if (latestKey != NO_KEY && !mClosed) {
+            Entry queued = mLatest.get(latestKey);
+            if (queued != null) {
+                mQueuedBytes += length - queued.remainingBytes();
+                queued.mFrames = frames;
+                notifyAll();
+                return Connection.SUCCESS;
+            }
+        }
+        if (!mClosed && priority < CONTROL_PRIORITY && !hasCredit()) {
+            mCreditBlocked = true;
+            return Connection.WOULD_BLOCK;
+        }
+        int result = Connection.SUCCESS;
+        while (!mClosed && priority < CONTROL_PRIORITY && isOverLimit(length)) {
+            if (mOverflowPolicy == Connection.OVERFLOW_DROP_OLDEST) {
+                dropOldest();
+                result = Connection.QUEUE_OVERFLOW;
+            } else if (mOverflowPolicy == Connection.OVERFLOW_DISCONNECT) {
+                Log.i(TAG, "PeerWriter for " + mAddress + " fell behind; disconnecting");
+                mClosed = true;
+                clear();
+                notifyAll();
+                return OVERFLOWED;
+            } else if (mayBlock) {
+                wait();
+            } else {
+                return FULL;
+            }
+        }
+        if (mClosed) {
+            return Connection.FAILURE;
+        }
+        Entry entry = new Entry(frames, latestKey, System.nanoTime(), mNextSeq++);
+        mLanes[priority].addLast(entry);
+        if (latestKey != NO_KEY) {
+            mLatest.put(latestKey, entry);
+        }
+        mQueuedBytes += length;
+        if (priority == CONTROL_PRIORITY) {
+            mControlBytes += length;
+        }
+        notifyAll();
+        return result;
+    }
+
+    // Queued control frames count too, which errs on the safe side.
+    private boolean hasCredit() {
+        return mCreditLimit < 0 || mWrittenBytes + mQueuedBytes < mCreditLimit;
+    }
+
+    // A message larger than the limit is still accepted into an empty queue.
+    private boolean isOverLimit(int length) {
+        int queued = mQueuedBytes - mControlBytes;
+        return mMaxQueuedBytes > 0 && queued > 0 && queued + length > mMaxQueuedBytes;
+    }
+
+    /**
+     * Drops the oldest message of the lowest priority, or what is left of it
+     * if the writer has started on it. Control frames are never dropped.
+     */
+    private void dropOldest() {
+        for (int priority = 0; priority < CONTROL_PRIORITY; priority++) {
+            ArrayDeque<Entry> lane = mLanes[priority];
+            if (!lane.isEmpty()) {
+                Entry entry = lane.removeFirst();
+                forget(entry);
+                mQueuedBytes -= entry.remainingBytes();
+                mDroppedFrames++;
+                return;
+            }
+        }
+    }
+
+    private void forget(Entry entry) {
+        if (entry.mLatestKey != NO_KEY && mLatest.get(entry.mLatestKey) == entry) {
+            mLatest.remove(entry.mLatestKey);
+        }
+    }
+
+    private void clear() {
+        for (ArrayDeque<Entry> lane : mLanes) {
+            lane.clear();
+        }
+        mLatest.clear();
+        mQueuedBytes = 0;
+        mControlBytes = 0;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Drops whatever is queued and closes once frame is written.
+     */
+    public synchronized void closeAfter(byte[] frame) {
+        clear();
+        mReplayPending = 0;
+        mLanes[CONTROL_PRIORITY].addLast(new Entry(new byte[][] {frame}, NO_KEY, System.nanoTime(), mNextSeq++));
+        mQueuedBytes = frame.length;
+        mControlBytes = frame.length;
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops writing until resume(). Returns false if the writer is closed.
+     */
+    public synchronized boolean suspend() {
+        if (mClosed) {
+            return false;
+        }
+        mSuspended = true;
+        return true;
+    }
+
+    /**
+     * The number of the oldest frame that can still be replayed.
+     */
+    public synchronized long getReplayFrom() {
+        return mReplayFirst;
+    }
+
+    /**
+     * Whether every frame from number received on is still at hand.
+     */
+    public synchronized boolean canReplayFrom(long received) {
+        return received >= mReplayFirst && received <= mSent;
+    }
+
+    /**
+     * Sends an ACK for received frames with the next write. Cheap enough for
+     * the reader to call as often as it likes; only the latest count goes
+     * out.
+     */
+    public synchronized void requestAck(long received) {
+        mAckRequested = received;
+        notifyAll();
+    }
+
+    /**
+     * Grants the peer credit up to limit with the next write, or lifts its
+     * limit with FlowControl.UNLIMITED. Like requestAck(), only the latest
+     * grant goes out.
+     */
+    public synchronized void sendCredit(long limit) {
+        mCreditRequested = limit;
+        mCreditPending = true;
+        notifyAll();
+    }
+
+    /**
+     * The peer granted credit up to limit. Returns true if that makes room
+     * after a message was refused with WOULD_BLOCK, which is when the app
+     * should hear that it can send again.
+     */
+    public synchronized boolean onCredit(long limit) {
+        if (limit < 0 || mCreditLimit < 0) {
+            mCreditLimit = limit;
+        } else {
+            // Grants may shrink the window but cannot take back credit.
+            mCreditLimit = Math.max(mCreditLimit, limit);
+        }
+        if (mCreditBlocked && hasCredit()) {
+            mCreditBlocked = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The peer has every frame before number received.
+     */
+    public synchronized void acknowledge(long received) {
+        while (mReplayFirst < received && !mReplay.isEmpty()) {
+            removeReplayed();
+        }
+        mReplayPending = Math.min(mReplayPending, mReplay.size());
+    }
+
+    /**
+     * Continues on output after a dropout, starting with the frames from
+     * number received on. Control frames queued meanwhile are stale and are
+     * dropped. Returns false if the writer is closed or no longer has those
+     * frames.
+     */
+    public synchronized boolean resume(OutputStream output, long received) {
+        if (mClosed || !canReplayFrom(received)) {
+            return false;
+        }
+        acknowledge(received);
+        mReplayPending = mReplay.size();
+        for (Entry entry : mLanes[CONTROL_PRIORITY]) {
+            forget(entry);
+            mQueuedBytes -= entry.remainingBytes();
+        }
+        mLanes[CONTROL_PRIORITY].clear();
+        mControlBytes = 0;
+        // The last grant may have been lost with the old socket, and the
+        // peer may be waiting on it.
+        mCreditPending = mCreditRequested != 0;
+        mOutput = output;
+        mGeneration++;
+        mSuspended = false;
+        notifyAll();
+        return true;
+    }
+
+    private void removeReplayed() {
+        mReplayBytes -= mReplay.removeFirst().length;
+        mReplayFirst++;
+    }
+
+    private void trimReplay() {
+        while (mReplayBytes > mMaxReplayBytes) {
+            removeReplayed();
+        }
+        mReplayPending = Math.min(mReplayPending, mReplay.size());
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                byte[][] batch = awaitBatch();
+                if (batch == null) {
+                    return;
+                }
+                try {
+                    writeBatch(mBatchOutput, batch);
+                } catch (IOException e) {
+                    boolean current;
+                    synchronized (this) {
+                        if (mClosed) {
+                            throw e;
+                        }
+                        // The batch is in mReplay; a failure on a socket
+                        // resume() has already replaced needs no action.
+                        current = mBatchGeneration == mGeneration;
+                        if (current) {
+                            mSuspended = true;
+                        }
+                    }
+                    if (current && mOnWriteFailedListener != null) {
+                        mOnWriteFailedListener.OnWriteFailed(mAddress, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mClosed = true;
+                clear();
+                notifyAll();
+            }
+            if (mOnWriteFailedListener != null) {
+                mOnWriteFailedListener.OnWriteFailed(mAddress, e);
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "PeerWriter for " + mAddress + " interrupted");
+        }
+    }
+
+    /**
+     * Waits until the flush policy says the pending frames should go out and
+     * takes a batch of them. Returns null when closed with nothing left to
+     * send.
+     */
+    private synchronized byte[][] awaitBatch() throws InterruptedException {
+        while (true) {
+            if (mSuspended) {
+                if (mClosed) {
+                    clear();
+                    return null;
+                }
+                wait();
+                continue;
+            }
+            mBatchOutput = mOutput;
+            mBatchGeneration = mGeneration;
+            if (mReplayPending > 0) {
+                return takeReplay();
+            }
+            if (mAckRequested > mAckSent) {
+                mAckSent = mAckRequested;
+                mBatchEnqueueNanos = System.nanoTime();
+                return new byte[][] {WireFormat.encode(WireFormat.FLAG_CONTROL, SessionResume.encodeAck(mAckSent))};
+            }
+            if (mCreditPending) {
+                mCreditPending = false;
+                mBatchEnqueueNanos = System.nanoTime();
+                return new byte[][] {WireFormat.encode(WireFormat.FLAG_CONTROL,
+                        FlowControl.encodeCredit(mCreditRequested))};
+            }
+            if (mQueuedBytes == 0) {
+                if (mClosed) {
+                    return null;
+                }
+                wait();
+                continue;
+            }
+            if (mTickMode && !mClosed) {
+                if (!hasTickReleased() && mLanes[CONTROL_PRIORITY].isEmpty()) {
+                    wait();
+                    continue;
+                }
+                byte[][] batch = takeBatch(mTickCutoff);
+                notifyAll(); // Wake producers blocked by OVERFLOW_BLOCK
+                return batch;
+            }
+            long holdMicros = 0;
+            if (!mClosed) {
+                if (mFlushPolicy == Connection.FLUSH_MAX_DELAY) {
+                    holdMicros = mFlushValue;
+                } else if (mFlushPolicy == Connection.FLUSH_MAX_BYTES && mQueuedBytes < mFlushValue) {
+                    holdMicros = MAX_BYTES_HOLD_MICROS;
+                }
+            }
+            long waitedMicros = (System.nanoTime() - oldestEnqueueNanos()) / 1000;
+            if (waitedMicros < holdMicros) {
+                long remainingMicros = holdMicros - waitedMicros;
+                wait(remainingMicros / 1000, (int) (remainingMicros % 1000) * 1000);
+                continue;
+            }
+            byte[][] batch = takeBatch(Long.MAX_VALUE);
+            notifyAll(); // Wake producers blocked by OVERFLOW_BLOCK
+            return batch;
+        }
+    }
+
+    private long oldestEnqueueNanos() {
+        long oldest = Long.MAX_VALUE;
+        for (ArrayDeque<Entry> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                oldest = Math.min(oldest, lane.peekFirst().mEnqueueNanos);
+            }
+        }
+        return oldest;
+    }
+
+    // Whether a message the last tick released is still queued.
+    private boolean hasTickReleased() {
+        for (int priority = 0; priority < CONTROL_PRIORITY; priority++) {
+            Entry entry = mLanes[priority].peekFirst();
+            if (entry != null && entry.mSeq < mTickCutoff) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes frames from the highest lane down until about a coalesce
+     * buffer's worth is collected, of messages queued before cutoff (a
+     * sequence number) and of control frames. In each lane whole messages
+     * are taken in order up to the first fragmented one, which gives up
+     * just its next frame.
+     */
+    private byte[][] takeBatch(long cutoff) {
+        ArrayDeque<byte[]> batch = new ArrayDeque<byte[]>();
+        int bytes = 0;
+        long oldest = Long.MAX_VALUE;
+        for (int priority = mLanes.length - 1; priority >= 0; priority--) {
+            Iterator<Entry> it = mLanes[priority].iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (priority < CONTROL_PRIORITY && entry.mSeq >= cutoff) {
+                    // Lanes are in the order queued; the rest are later too.
+                    break;
+                }
+                byte[] frame = entry.mFrames[entry.mNext];
+                if (!batch.isEmpty() && bytes + frame.length > COALESCE_BUFFER_SIZE) {
+                    return finishBatch(batch, bytes, oldest);
+                }
+                batch.addLast(frame);
+                bytes += frame.length;
+                if (priority == CONTROL_PRIORITY) {
+                    mControlBytes -= frame.length;
+                }
+                oldest = Math.min(oldest, entry.mEnqueueNanos);
+                forget(entry);
+                if (entry.mFrames.length == 1) {
+                    it.remove();
+                    continue;
+                }
+                entry.mNext++;
+                if (entry.mNext < entry.mFrames.length) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+        return finishBatch(batch, bytes, oldest);
+    }
+
+    private byte[][] finishBatch(ArrayDeque<byte[]> batch, int bytes, long oldestEnqueueNanos) {
+        mQueuedBytes -= bytes;
+        mBatchEnqueueNanos = oldestEnqueueNanos;
+        for (byte[] frame : batch) {
+            if ((frame[1] & WireFormat.FLAG_CONTROL) == 0) {
+                if (mMaxReplayBytes > 0) {
+                    mReplay.addLast(frame);
+                    mReplayBytes += frame.length;
+                } else {
+                    mReplayFirst++;
+                }
+                mWrittenBytes += frame.length;
+                mSent++;
+            }
+        }
+        trimReplay();
+        return batch.toArray(new byte[batch.size()][]);
+    }
+
+    /**
+     * Takes the next frames to replay, about a coalesce buffer's worth.
+     */
+    private byte[][] takeReplay() {
+        ArrayDeque<byte[]> batch = new ArrayDeque<byte[]>();
+        int bytes = 0;
+        int skip = mReplay.size() - mReplayPending;
+        for (byte[] frame : mReplay) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (!batch.isEmpty() && bytes + frame.length > COALESCE_BUFFER_SIZE) {
+                break;
+            }
+            batch.addLast(frame);
+            bytes += frame.length;
+        }
+        mReplayPending -= batch.size();
+        mBatchEnqueueNanos = System.nanoTime();
+        return batch.toArray(new byte[batch.size()][]);
+    }
+
+    private void writeBatch(OutputStream output, byte[][] batch) throws IOException {
+        int buffered = 0;
+        int total = 0;
+        for (byte[] frame : batch) {
+            total += frame.length;
+            if (buffered + frame.length > mCoalesceBuffer.length) {
+                if (buffered > 0) {
+                    output.write(mCoalesceBuffer, 0, buffered);
+                    buffered = 0;
+                }
+                if (frame.length > mCoalesceBuffer.length) {
+                    output.write(frame);
+                    continue;
+                }
+            }
+            System.arraycopy(frame, 0, mCoalesceBuffer, buffered, frame.length);
+            buffered += frame.length;
+        }
+        if (buffered > 0) {
+            output.write(mCoalesceBuffer, 0, buffered);
+        }
+        output.flush();
+        if (mStats != null) {
+            mStats.onBatchWritten(batch.length, total, (System.nanoTime() - mBatchEnqueueNanos) / 1000);
+        }
+    }
+}
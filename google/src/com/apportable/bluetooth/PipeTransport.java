@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-process Transport. Every PipeTransport created in the same JVM can reach
+ * the others by address, and connections are a pair of bounded in-memory
+ * byte pipes, so a server and several clients can run in one process.
+ */
+final class PipeTransport implements Transport {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    // "address/uuid" -> listening server socket
+    private static final Map<String, PipeServerSocket> sListeners = new HashMap<String, PipeServerSocket>();
+
+    // Open connections, for dropConnections(): {client address, server address} -> both ends.
+    private static final Map<PipeSocket, String[]> sConnections = new HashMap<PipeSocket, String[]>();
+
+    private final String mAddress;
+
+    private final String mName;
+
+    public PipeTransport(String address, String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    private static String key(String address, UUID uuid) {
+        return address + "/" + uuid;
+    }
+
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        String key = key(mAddress, uuid);
+        synchronized (sListeners) {
+            if (sListeners.containsKey(key)) {
+                throw new IOException("Address in use: " + key);
+            }
+            PipeServerSocket serverSocket = new PipeServerSocket(key);
+            sListeners.put(key, serverSocket);
+            return serverSocket;
+        }
+    }
+
+    public TransportSocket connect(String address, UUID uuid) throws IOException {
+        PipeServerSocket serverSocket;
+        synchronized (sListeners) {
+            serverSocket = sListeners.get(key(address, uuid));
+        }
+        if (serverSocket == null) {
+            throw new IOException("Connection refused: " + key(address, uuid));
+        }
+        Pipe toServer = new Pipe(PIPE_CAPACITY);
+        Pipe toClient = new Pipe(PIPE_CAPACITY);
+        PipeSocket clientSide = new PipeSocket(address, toClient, toServer);
+        PipeSocket serverSide = new PipeSocket(mAddress, toServer, toClient);
+        if (!serverSocket.offer(serverSide)) {
+            throw new IOException("Connection refused: " + key(address, uuid));
+        }
+        synchronized (sConnections) {
+            sConnections.put(clientSide, new String[] {mAddress, address});
+        }
+        return clientSide;
+    }
+
+    /**
+     * Breaks every open connection to or from address under both ends, the
+     * way an RF dropout does: each end's next read or write fails. For
+     * exercising session resume.
+     */
+    public static void dropConnections(String address) {
+        List<PipeSocket> dropped = new ArrayList<PipeSocket>();
+        synchronized (sConnections) {
+            Iterator<Map.Entry<PipeSocket, String[]>> it = sConnections.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PipeSocket, String[]> connection = it.next();
+                if (connection.getValue()[0].equals(address) || connection.getValue()[1].equals(address)) {
+                    dropped.add(connection.getKey());
+                    it.remove();
+                }
+            }
+        }
+        for (PipeSocket socket : dropped) {
+            // Closing both pipes of one end closes the other end's too.
+            socket.close();
+        }
+    }
+
+    public List<UUID> getAdvertisedServices(String address, long timeoutMillis) {
+        List<UUID> services = new ArrayList<UUID>();
+        String prefix = address + "/";
+        synchronized (sListeners) {
+            for (String key : sListeners.keySet()) {
+                if (key.startsWith(prefix)) {
+                    services.add(UUID.fromString(key.substring(prefix.length())));
+                }
+            }
+        }
+        return services;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    private static final class PipeServerSocket implements TransportServerSocket {
+        private final String mKey;
+
+        private final ArrayDeque<PipeSocket> mPending = new ArrayDeque<PipeSocket>();
+
+        private boolean mClosed;
+
+        PipeServerSocket(String key) {
+            mKey = key;
+        }
+
+        synchronized boolean offer(PipeSocket socket) {
+            if (mClosed) {
+                return false;
+            }
+            mPending.addLast(socket);
+            notifyAll();
+            return true;
+        }
+
+        public synchronized TransportSocket accept() throws IOException {
+            try {
+                while (mPending.isEmpty() && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mPending.isEmpty()) {
+                throw new IOException("Server socket closed");
+            }
+            return mPending.removeFirst();
+        }
+
+        public void close() {
+            synchronized (sListeners) {
+                if (sListeners.get(mKey) == this) {
+                    sListeners.remove(mKey);
+                }
+            }
+            synchronized (this) {
+                mClosed = true;
+                // Connections that arrived after the last accept() see EOF,
+                // the same as a refused RFCOMM connection would.
+                for (PipeSocket pending : mPending) {
+                    pending.close();
+                }
+                mPending.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    private static final class PipeSocket implements TransportSocket {
+        private final String mRemoteAddress;
+
+        private final Pipe mIn;
+
+        private final Pipe mOut;
+
+        PipeSocket(String remoteAddress, Pipe in, Pipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        public InputStream getInputStream() {
+            return mIn.mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOut.mOutput;
+        }
+
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        public void close() {
+            mIn.close();
+            mOut.close();
+            synchronized (sConnections) {
+                sConnections.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Bounded single-producer single-consumer byte pipe. Unlike
+     * java.io.PipedInputStream it does not care which threads read and write.
+     */
+    static final class Pipe {
+        private final byte[] mBuffer;
+
+        private int mReadPos;
+
+        private int mCount;
+
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (mCount == 0 && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mCount == 0) {
+                return -1;
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                try {
+                    while (mCount == mBuffer.length && !mClosed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
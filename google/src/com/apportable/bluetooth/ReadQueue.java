@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The bytes received from one device and the reads native code has asked
+ * for, with readDataToLength:withTimeout:tag: semantics: reads complete in
+ * the order they were requested, each with exactly its length in bytes.
+ * Native writes put a tag of tagLength bytes, little-endian, in front of
+ * each message; a read whose tag is the one at the front of the stream
+ * gets the bytes after it, and any other read gets the bytes as they are.
+ *
+ * Received bytes sit in a ring buffer, so completing a read costs a copy
+ * of its own bytes however much else is buffered. The buffer grows to the
+ * largest backlog and stays that size. Not thread-safe.
+ *
+ * A read that times out is removed with remove(), after which the reads
+ * behind it take its place in the stream.
+ */
+final class ReadQueue {
+    public static final int INITIAL_CAPACITY = 4096;
+
+    public static final class Read {
+        final int mLength;
+
+        final long mTag;
+
+        final int mTagLength;
+
+        // Set by the owner when the read has a timeout.
+        TimerWheel.Timeout mTimeout;
+
+        Read(int length, long tag, int tagLength) {
+            mLength = length;
+            mTag = tag;
+            mTagLength = tagLength;
+        }
+
+        public long getTag() {
+            return mTag;
+        }
+    }
+
+    // Capacity is a power of two; the data is mSize bytes from mHead.
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+
+    private int mHead;
+
+    private int mSize;
+
+    private final ArrayDeque<Read> mReads = new ArrayDeque<Read>();
+
+    public int getBufferedBytes() {
+        return mSize;
+    }
+
+    public int getPendingReads() {
+        return mReads.size();
+    }
+
+    public void append(byte[] src, int offset, int length) {
+        if (mBuffer.length - mSize < length) {
+            grow(mSize + length);
+        }
+        int mask = mBuffer.length - 1;
+        int tail = (mHead + mSize) & mask;
+        int first = Math.min(length, mBuffer.length - tail);
+        System.arraycopy(src, offset, mBuffer, tail, first);
+        System.arraycopy(src, offset + first, mBuffer, 0, length - first);
+        mSize += length;
+    }
+
+    // Unwraps the data to the start of a larger buffer.
+    private void grow(int needed) {
+        byte[] buffer = new byte[Integer.highestOneBit(needed - 1) << 1];
+        int first = Math.min(mSize, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, buffer, 0, first);
+        System.arraycopy(mBuffer, 0, buffer, first, mSize - first);
+        mBuffer = buffer;
+        mHead = 0;
+    }
+
+    public Read request(int length, long tag, int tagLength) {
+        Read read = new Read(length, tag, tagLength);
+        mReads.addLast(read);
+        return read;
+    }
+
+    /**
+     * Returns false if read has already completed or been removed.
+     */
+    public boolean remove(Read read) {
+        return mReads.removeFirstOccurrence(read);
+    }
+
+    /**
+     * The length of the oldest read if the buffered bytes complete it, or -1.
+     * Drops the tag in front of them when it is the read's, so call take()
+     * next rather than checking again.
+     */
+    public int nextReady() {
+        Read read = mReads.peekFirst();
+        if (read == null) {
+            return -1;
+        }
+        int tagLength = read.mTagLength;
+        if (tagLength > 0) {
+            // Messages arrive whole, so this only waits out a torn write.
+            if (mSize < tagLength) {
+                return -1;
+            }
+            if (peekTag(tagLength) == read.mTag) {
+                if (mSize < tagLength + read.mLength) {
+                    return -1;
+                }
+                skip(tagLength);
+            }
+        }
+        return mSize >= read.mLength ? read.mLength : -1;
+    }
+
+    /**
+     * Completes the read nextReady() found complete, copying its bytes into
+     * dst, which must have room for them, and returns it.
+     */
+    public Read take(ByteBuffer dst) {
+        Read read = mReads.removeFirst();
+        int length = read.mLength;
+        int first = Math.min(length, mBuffer.length - mHead);
+        dst.put(mBuffer, mHead, first);
+        dst.put(mBuffer, 0, length - first);
+        skip(length);
+        return read;
+    }
+
+    private long peekTag(int tagLength) {
+        int mask = mBuffer.length - 1;
+        long tag = 0;
+        for (int i = tagLength - 1; i >= 0; i--) {
+            tag = (tag << 8) | (mBuffer[(mHead + i) & mask] & 0xff);
+        }
+        // Sign-extend, as native code widening a shorter tag to long long does.
+        int shift = 64 - 8 * tagLength;
+        return (tag << shift) >> shift;
+    }
+
+    private void skip(int length) {
+        mHead = (mHead + length) & (mBuffer.length - 1);
+        mSize -= length;
+        if (mSize == 0) {
+            mHead = 0;
+        }
+    }
+
+    /**
+     * Drops the buffered bytes and pending reads, cancelling their timeouts.
+     */
+    public void clear() {
+        for (Read read : mReads) {
+            if (read.mTimeout != null) {
+                read.mTimeout.cancel();
+            }
+        }
+        mReads.clear();
+        mHead = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gathers received messages per device so that ConnectionService can hand a
+ * burst of them to the app in one oneway Binder transaction instead of one
+ * each. A device's batch goes out once its first message has waited the
+ * window or it holds maxBytes. ConnectionService also flushes it before any
+ * other event from that device, so that events stay in order.
+ */
+final class ReceiveBatcher {
+    public interface Sink {
+        /**
+         * Message i is the lengths[i] bytes of data following messages 0 to
+         * i - 1.
+         */
+        public void deliver(String device, byte[] data, int[] lengths);
+    }
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private static final class Batch {
+        final long mFirstNanos;
+
+        byte[] mData = new byte[1024];
+
+        int mLength;
+
+        int[] mLengths = new int[16];
+
+        int mCount;
+
+        Batch(long firstNanos) {
+            mFirstNanos = firstNanos;
+        }
+
+        void add(byte[] src, int offset, int length) {
+            if (mData.length - mLength < length) {
+                mData = Arrays.copyOf(mData, Math.max(mLength + length, mData.length * 2));
+            }
+            System.arraycopy(src, offset, mData, mLength, length);
+            mLength += length;
+            if (mCount == mLengths.length) {
+                mLengths = Arrays.copyOf(mLengths, mCount * 2);
+            }
+            mLengths[mCount++] = length;
+        }
+    }
+
+    private class DeliveryLoop implements Runnable {
+        public void run() {
+            while (true) {
+                String device;
+                synchronized(ReceiveBatcher.this) {
+                    if (mWindowNanos == 0 || mClosed) {
+                        mRunning = false;
+                        device = null;
+                    } else if (mPending.isEmpty()) {
+                        try {
+                            ReceiveBatcher.this.wait();
+                        } catch (InterruptedException e) {
+                            mRunning = false;
+                            return;
+                        }
+                        continue;
+                    } else {
+                        // Batches are kept in the order they were started.
+                        Map.Entry<String, Batch> oldest = mPending.entrySet().iterator().next();
+                        long waitNanos = oldest.getValue().mFirstNanos + mWindowNanos - System.nanoTime();
+                        if (waitNanos > 0) {
+                            try {
+                                ReceiveBatcher.this.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                            } catch (InterruptedException e) {
+                                mRunning = false;
+                                return;
+                            }
+                            continue;
+                        }
+                        device = oldest.getKey();
+                    }
+                }
+                if (device == null) {
+                    flushAll();
+                    return;
+                }
+                flush(device);
+            }
+        }
+    }
+
+    private final Sink mSink;
+
+    private final IoExecutor mExecutor = new IoExecutor("bt-deliver", 2, Thread.NORM_PRIORITY + 1, false);
+
+    private final LinkedHashMap<String, Batch> mPending = new LinkedHashMap<String, Batch>();
+
+    // Held from taking a batch until it is delivered, so that deliveries
+    // from the loop and from flush() callers cannot overtake each other.
+    private final Object mDeliverLock = new Object();
+
+    // 0 turns batching off.
+    private long mWindowNanos;
+
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+
+    private boolean mRunning;
+
+    private boolean mClosed;
+
+    public ReceiveBatcher(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Batches messages that arrive within windowMicros of the first in a
+     * batch, up to maxBytes (0 for DEFAULT_MAX_BYTES) per batch. A window of
+     * 0 turns batching off; pending batches are delivered.
+     */
+    public int setPolicy(int windowMicros, int maxBytes) {
+        synchronized(this) {
+            mWindowNanos = windowMicros * 1000L;
+            mMaxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+            notifyAll();
+            if (windowMicros == 0 || mRunning || mClosed) {
+                return Connection.SUCCESS;
+            }
+            if (mExecutor.execute("bt-deliver", new DeliveryLoop()) == null) {
+                return Connection.FAILURE;
+            }
+            mRunning = true;
+        }
+        return Connection.SUCCESS;
+    }
+
+    /**
+     * Adds a copy of message[offset, offset + length) to device's batch.
+     * Returns false if batching is off, in which case the caller delivers
+     * the message itself.
+     */
+    public boolean add(String device, byte[] message, int offset, int length) {
+        boolean full;
+        synchronized(this) {
+            if (mWindowNanos == 0 || mClosed) {
+                if (mPending.isEmpty()) {
+                    return false;
+                }
+                full = false;
+            } else {
+                Batch batch = mPending.get(device);
+                if (batch == null) {
+                    batch = new Batch(System.nanoTime());
+                    mPending.put(device, batch);
+                    notifyAll();
+                }
+                batch.add(message, offset, length);
+                full = batch.mLength >= mMaxBytes;
+                if (!full) {
+                    return true;
+                }
+            }
+        }
+        // Either full, or batching was just turned off and this message must
+        // not overtake the batch still pending for device.
+        flush(device);
+        return full;
+    }
+
+    /**
+     * Delivers device's pending batch, if any, on the calling thread.
+     */
+    public void flush(String device) {
+        synchronized(mDeliverLock) {
+            Batch batch;
+            synchronized(this) {
+                batch = mPending.remove(device);
+            }
+            if (batch != null) {
+                mSink.deliver(device, Arrays.copyOf(batch.mData, batch.mLength),
+                        Arrays.copyOf(batch.mLengths, batch.mCount));
+            }
+        }
+    }
+
+    private void flushAll() {
+        ArrayList<String> devices;
+        synchronized(this) {
+            devices = new ArrayList<String>(mPending.keySet());
+        }
+        for (String device : devices) {
+            flush(device);
+        }
+    }
+
+    /**
+     * Delivers what is pending and stops the delivery thread.
+     */
+    public void close() {
+        synchronized(this) {
+            mClosed = true;
+            notifyAll();
+        }
+        flushAll();
+        mExecutor.shutdown(1000);
+    }
+}
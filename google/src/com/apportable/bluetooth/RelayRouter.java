@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routing for relay mode (FLAG_RELAY frames), which lets a session grow past
+ * one server and MAX_SUPPORTED clients: a client that relays also accepts
+ * clients of its own and forwards traffic between its links, so devices form
+ * a tree around the first server.
+ *
+ * A relayed frame carries an envelope:
+ *
+ * <pre>
+ *   kind | BROADCAST | ttl | id (4 bytes) | origin | destination | body
+ * </pre>
+ *
+ * origin and destination are a length byte and an ASCII device address.
+ * The origin is left empty by the device that sends the frame and filled in
+ * by the first device to receive it, which knows the sender's address from
+ * its socket; a device does not always know its own. An empty destination
+ * without BROADCAST means the receiver itself.
+ *
+ * Kinds:
+ * <ul>
+ * <li>MESSAGE - an app message for the destination, or everyone.</li>
+ * <li>JOIN - the device in the body can be reached through the sender.
+ * Relays announce each new link to the rest of the tree and the rest of the
+ * tree to it. The first route heard to a device is kept.</li>
+ * <li>LEAVE - the device in the body can no longer be reached through the
+ * sender.</li>
+ * </ul>
+ *
+ * Every device a relayed frame passes lowers its ttl, and a frame whose ttl
+ * runs out or whose origin and id were seen recently is not passed on, so a
+ * device linked to two relays cannot make frames circle.
+ */
+final class RelayRouter {
+    public static final int MESSAGE = 0;
+
+    public static final int JOIN = 1;
+
+    public static final int LEAVE = 2;
+
+    public static final int BROADCAST = 0x80;
+
+    // Hops a frame may take; a tree of relays with seven links each reaches
+    // thousands of devices in far fewer.
+    public static final int DEFAULT_TTL = 8;
+
+    // Relayed frames remembered for loop suppression, per device.
+    static final int SEEN_CAPACITY = 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int MAX_ADDRESS_LENGTH = 255;
+
+    /**
+     * A decoded envelope; the body is left in the frame's buffer.
+     */
+    public static final class Envelope {
+        public int mKind;
+
+        public boolean mBroadcast;
+
+        public int mTtl;
+
+        public int mId;
+
+        public String mOrigin;
+
+        public String mDestination;
+
+        public int mBodyOffset;
+
+        public int mBodyLength;
+    }
+
+    // Device address -> address of the connected device it is reached
+    // through.
+    private final HashMap<String, String> mRoutes = new HashMap<String, String>();
+
+    private final HashSet<Long> mSeen = new HashSet<Long>();
+
+    private final long[] mSeenOrder = new long[SEEN_CAPACITY];
+
+    private int mSeenNext;
+
+    private int mNextId;
+
+    public static byte[] encode(int kind, int ttl, int id, String origin, String destination, byte[] body,
+            int bodyOffset, int bodyLength) {
+        byte[] originBytes = address(origin);
+        byte[] destinationBytes = address(destination);
+        byte[] payload = new byte[1 + 1 + 4 + 1 + originBytes.length + 1 + destinationBytes.length + bodyLength];
+        int offset = 0;
+        payload[offset++] = (byte) kind;
+        payload[offset++] = (byte) ttl;
+        payload[offset++] = (byte) (id >>> 24);
+        payload[offset++] = (byte) (id >>> 16);
+        payload[offset++] = (byte) (id >>> 8);
+        payload[offset++] = (byte) id;
+        payload[offset++] = (byte) originBytes.length;
+        System.arraycopy(originBytes, 0, payload, offset, originBytes.length);
+        offset += originBytes.length;
+        payload[offset++] = (byte) destinationBytes.length;
+        System.arraycopy(destinationBytes, 0, payload, offset, destinationBytes.length);
+        offset += destinationBytes.length;
+        System.arraycopy(body, bodyOffset, payload, offset, bodyLength);
+        return payload;
+    }
+
+    /**
+     * The envelope of a JOIN or LEAVE about device, for everyone.
+     */
+    public static byte[] encodeAnnouncement(int kind, int id, String device) {
+        byte[] body = address(device);
+        return encode(kind | BROADCAST, DEFAULT_TTL, id, "", "", body, 0, body.length);
+    }
+
+    private static byte[] address(String address) {
+        byte[] bytes = address.getBytes(ASCII);
+        if (bytes.length > MAX_ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("Address too long: " + address);
+        }
+        return bytes;
+    }
+
+    public static void decode(byte[] buffer, int offset, int length, Envelope envelope) throws IOException {
+        int end = offset + length;
+        if (length < 8) {
+            throw new IOException("Truncated relay envelope");
+        }
+        int header = buffer[offset++] & 0xFF;
+        envelope.mKind = header & ~BROADCAST;
+        envelope.mBroadcast = (header & BROADCAST) != 0;
+        envelope.mTtl = buffer[offset++] & 0xFF;
+        envelope.mId = ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+        offset += 4;
+        int originLength = buffer[offset++] & 0xFF;
+        if (offset + originLength + 1 > end) {
+            throw new IOException("Truncated relay envelope");
+        }
+        envelope.mOrigin = new String(buffer, offset, originLength, ASCII);
+        offset += originLength;
+        int destinationLength = buffer[offset++] & 0xFF;
+        if (offset + destinationLength > end) {
+            throw new IOException("Truncated relay envelope");
+        }
+        envelope.mDestination = new String(buffer, offset, destinationLength, ASCII);
+        offset += destinationLength;
+        envelope.mBodyOffset = offset;
+        envelope.mBodyLength = end - offset;
+    }
+
+    /**
+     * The body of a JOIN or LEAVE.
+     */
+    public static String getDevice(byte[] buffer, Envelope envelope) {
+        return new String(buffer, envelope.mBodyOffset, envelope.mBodyLength, ASCII);
+    }
+
+    /**
+     * Id for a frame this device originates.
+     */
+    public synchronized int nextId() {
+        return mNextId++;
+    }
+
+    /**
+     * Records a relayed frame; false if it was seen recently.
+     */
+    public synchronized boolean firstSighting(String origin, int id) {
+        long key = ((long) origin.hashCode() << 32) | (id & 0xFFFFFFFFL);
+        if (!mSeen.add(key)) {
+            return false;
+        }
+        if (mSeen.size() > SEEN_CAPACITY) {
+            mSeen.remove(mSeenOrder[mSeenNext]);
+        }
+        mSeenOrder[mSeenNext] = key;
+        mSeenNext = (mSeenNext + 1) % SEEN_CAPACITY;
+        return true;
+    }
+
+    /**
+     * Connected device through which device is reached, or null.
+     */
+    public synchronized String getNextHop(String device) {
+        return mRoutes.get(device);
+    }
+
+    /**
+     * Adds a route to device through nextHop unless there is one; false if
+     * there was.
+     */
+    public synchronized boolean addRoute(String device, String nextHop) {
+        if (mRoutes.containsKey(device)) {
+            return false;
+        }
+        mRoutes.put(device, nextHop);
+        return true;
+    }
+
+    /**
+     * Removes the route to device if it goes through nextHop.
+     */
+    public synchronized boolean removeRoute(String device, String nextHop) {
+        if (!nextHop.equals(mRoutes.get(device))) {
+            return false;
+        }
+        mRoutes.remove(device);
+        return true;
+    }
+
+    /**
+     * Removes and returns the routes through nextHop, after a connection to
+     * it was lost.
+     */
+    public synchronized List<String> removeRoutesThrough(String nextHop) {
+        List<String> removed = new ArrayList<String>();
+        Iterator<Map.Entry<String, String>> it = mRoutes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> route = it.next();
+            if (route.getValue().equals(nextHop)) {
+                removed.add(route.getKey());
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Devices reached through a relay.
+     */
+    public synchronized String[] getRoutedDevices() {
+        return mRoutes.keySet().toArray(new String[mRoutes.size()]);
+    }
+}
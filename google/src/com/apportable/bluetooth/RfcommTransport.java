@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transport over Bluetooth RFCOMM sockets.
+ */
+final class RfcommTransport implements Transport {
+    public static final String TAG = "com.apportable.bluetooth.RfcommTransport";
+
+    private final Context mContext;
+
+    private final BluetoothAdapter mBtAdapter;
+
+    public RfcommTransport(Context context, BluetoothAdapter adapter) {
+        mContext = context;
+        mBtAdapter = adapter;
+    }
+
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        final BluetoothServerSocket serverSocket = mBtAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        return new TransportServerSocket() {
+            public TransportSocket accept() throws IOException {
+                return new Socket(serverSocket.accept());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    public TransportSocket connect(String address, UUID uuid) throws IOException {
+        BluetoothSocket socket = mBtAdapter.getRemoteDevice(address).createRfcommSocketToServiceRecord(uuid);
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Socket(socket);
+    }
+
+    /**
+     * Asks the device over SDP which service records it has registered.
+     * Blocks for at most timeoutMillis.
+     */
+    public List<UUID> getAdvertisedServices(final String address, long timeoutMillis) {
+        final List<UUID> services = new ArrayList<UUID>();
+        final boolean[] done = new boolean[1];
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (device == null || !address.equals(device.getAddress())) {
+                    return;
+                }
+                Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+                synchronized (services) {
+                    if (uuids != null) {
+                        for (Parcelable uuid : uuids) {
+                            services.add(((ParcelUuid) uuid).getUuid());
+                        }
+                    }
+                    done[0] = true;
+                    services.notifyAll();
+                }
+            }
+        };
+        mContext.registerReceiver(receiver, new IntentFilter(BluetoothDevice.ACTION_UUID));
+        try {
+            if (!mBtAdapter.getRemoteDevice(address).fetchUuidsWithSdp()) {
+                return services;
+            }
+            long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            synchronized (services) {
+                long remaining;
+                while (!done[0] && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                    services.wait(remaining);
+                }
+                return new ArrayList<UUID>(services);
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "InterruptedException in getAdvertisedServices", e);
+        } finally {
+            mContext.unregisterReceiver(receiver);
+        }
+        return new ArrayList<UUID>();
+    }
+
+    public String getAddress() {
+        return mBtAdapter.getAddress();
+    }
+
+    public String getName() {
+        return mBtAdapter.getName();
+    }
+
+    private static final class Socket implements TransportSocket {
+        private final BluetoothSocket mSocket;
+
+        Socket(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+
+/**
+ * One app session in ConnectionService: its own engine (and with it its own
+ * sockets, reader, writer and accept threads and send queues), receive
+ * batcher and callback, so that sessions run side by side without sharing
+ * anything but the transport.
+ *
+ * A session is keyed by the srcApp the app passes, which is its package name
+ * for the default session and the package name, SESSION_SEPARATOR and a
+ * session name for a named one (see Connection). The default session listens
+ * on ConnectionEngine.SLOT_UUIDS, as every session did before; a named one
+ * on UUIDs derived from its key. Files received in the session go to its
+ * own transfer directory.
+ */
+final class ServiceSession {
+    public static final String TAG = "com.apportable.bluetooth.ServiceSession";
+
+    public static final char SESSION_SEPARATOR = '#';
+
+    // Sends a session may have waiting on a full send queue (OVERFLOW_BLOCK)
+    // at once. Each holds a Binder thread, and the service has about 16 for
+    // every session together.
+    static final int MAX_BLOCKING_CALLS = 2;
+
+    private final String mKey;
+
+    private final ConnectionEngine mEngine;
+
+    private final ReceiveBatcher mReceiveBatcher;
+
+    private final Semaphore mBlockingCalls = new Semaphore(MAX_BLOCKING_CALLS);
+
+    // Devices a send was refused for while the blocking calls were taken;
+    // each hears writable() once one is free.
+    private final HashSet<String> mRefused = new HashSet<String>();
+
+    private final ConnectionEngine.BlockingGate mBlockingGate = new ConnectionEngine.BlockingGate() {
+        public boolean enter() {
+            return mBlockingCalls.tryAcquire();
+        }
+
+        public void leave() {
+            mBlockingCalls.release();
+            releaseRefused();
+        }
+
+        public void refused(String device) {
+            synchronized(mRefused) {
+                mRefused.add(device);
+            }
+            // A call may have left since enter() turned this one away.
+            if (mBlockingCalls.availablePermits() > 0) {
+                releaseRefused();
+            }
+        }
+    };
+
+    private volatile IConnectionCallback mCallback;
+
+    public ServiceSession(String key, Transport transport, FastConnector.SlotStore slotStore,
+            File transferDirectory) {
+        mKey = key;
+        mEngine = new ConnectionEngine(transport, slotUuids(key), slotStore, ConnectionEngine.newDefaultIoExecutor());
+        mEngine.setCallback(mEngineCallback);
+        mEngine.setTransferDirectory(transferDirectory);
+        mReceiveBatcher = new ReceiveBatcher(mBatchSink);
+    }
+
+    static List<UUID> slotUuids(String key) {
+        return isNamed(key) ? ConnectionEngine.slotUuids(key) : ConnectionEngine.SLOT_UUIDS;
+    }
+
+    static boolean isNamed(String key) {
+        return key.indexOf(SESSION_SEPARATOR) >= 0;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public ConnectionEngine getEngine() {
+        return mEngine;
+    }
+
+    public ReceiveBatcher getReceiveBatcher() {
+        return mReceiveBatcher;
+    }
+
+    public void setCallback(IConnectionCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * For the session's sends: lets MAX_BLOCKING_CALLS of them wait for room
+     * in a full queue, and refuses the rest with Connection.WOULD_BLOCK
+     * rather than hold yet another Binder thread the other sessions need.
+     */
+    public ConnectionEngine.BlockingGate getBlockingGate() {
+        return mBlockingGate;
+    }
+
+    private void releaseRefused() {
+        String[] devices;
+        synchronized(mRefused) {
+            if (mRefused.isEmpty()) {
+                return;
+            }
+            devices = mRefused.toArray(new String[mRefused.size()]);
+            mRefused.clear();
+        }
+        for (String device : devices) {
+            mEngineCallback.writable(device);
+        }
+    }
+
+    /**
+     * Stops the session's server and connections and its threads.
+     */
+    public void close() {
+        mEngine.close();
+        mReceiveBatcher.close();
+    }
+
+    private final ReceiveBatcher.Sink mBatchSink = new ReceiveBatcher.Sink() {
+        public void deliver(String device, byte[] data, int[] lengths) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.messagesReceived(device, data, lengths);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in messagesReceived", e);
+            }
+        }
+    };
+
+    private final ConnectionEngine.Callback mEngineCallback = new ConnectionEngine.Callback() {
+        public void incomingConnection(String device) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.incomingConnection(device);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in incomingConnection", e);
+            }
+        }
+
+        public void maxConnectionsReached() {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.maxConnectionsReached();
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in maxConnectionsReached", e);
+            }
+        }
+
+        public void messageReceived(String device, BufferPool.Buffer message) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (mReceiveBatcher.add(device, message.getData(), 0, message.getLength())) {
+                    return;
+                }
+                if (callback != null) {
+                    callback.messageBytesReceived(device, message.toByteArray());
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in messageReceived", e);
+            } finally {
+                message.release();
+            }
+        }
+
+        public void connectionLost(String device) {
+            // Messages received before this must reach the app first.
+            mReceiveBatcher.flush(device);
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.connectionLost(device);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in connectionLost", e);
+            }
+        }
+
+        public void socketIOException() {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.socketIOException();
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in socketIOException", e);
+            }
+        }
+
+        public void linkTimingUpdated(String device, long rttMicros, long jitterMicros, long clockOffsetMicros) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.linkTimingUpdated(device, rttMicros, jitterMicros, clockOffsetMicros);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in linkTimingUpdated", e);
+            }
+        }
+
+        public void snapshotReceived(String device, int seq, byte[] snapshot) {
+            // Messages received before this must reach the app first.
+            mReceiveBatcher.flush(device);
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.snapshotReceived(device, seq, snapshot);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in snapshotReceived", e);
+            }
+        }
+
+        public void channelMessageReceived(String device, int channel, BufferPool.Buffer message) {
+            // Messages received before this must reach the app first.
+            mReceiveBatcher.flush(device);
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.channelMessageReceived(device, channel, message.toByteArray());
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in channelMessageReceived", e);
+            } finally {
+                message.release();
+            }
+        }
+
+        public void tick(long tick) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.tick(tick);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in tick", e);
+            }
+        }
+
+        public void writable(String device) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.writable(device);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in writable", e);
+            }
+        }
+
+        public void transferProgress(String device, int transferId, boolean incoming, long bytes, long totalBytes) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.transferProgress(device, transferId, incoming, bytes, totalBytes);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in transferProgress", e);
+            }
+        }
+
+        public void transferReceived(String device, int transferId, String name, File file) {
+            // Messages received before this must reach the app first.
+            mReceiveBatcher.flush(device);
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    // The service is part of the app, so the app can open
+                    // the file where it is.
+                    callback.fileReceived(device, transferId, name, file.getPath());
+                    return;
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in fileReceived", e);
+            }
+            file.delete();
+        }
+
+        public void transferFailed(String device, int transferId, boolean incoming) {
+            IConnectionCallback callback = mCallback;
+            try {
+                if (callback != null) {
+                    callback.transferFailed(device, transferId, incoming);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "RemoteException in transferFailed", e);
+            }
+        }
+    };
+}
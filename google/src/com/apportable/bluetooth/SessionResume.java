@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * FLAG_CONTROL frames that let a session outlive its socket.
+ *
+ * Every frame that is not FLAG_CONTROL is numbered from 0 in the order it is
+ * written, separately in each direction. The numbers are implicit: RFCOMM
+ * delivers in order, so both ends count the same frames without putting the
+ * count on the wire. The receiver reports its count with an ACK now and
+ * then, and the sender keeps what has not been acknowledged for replay (see
+ * PeerWriter).
+ *
+ * A connection starts with the client's HELLO. For a new session it carries
+ * session id 0 and the server answers with a WELCOME holding a fresh id.
+ * After a dropout the client reconnects and sends the session's id, how many
+ * frames it has received and the first frame it can still replay; the
+ * server's WELCOME echoes the id and its own count, and each side replays
+ * from the other's count. A WELCOME with id 0 refuses the session. BYE ends
+ * a session on purpose, so that the peer does not wait for a reconnect.
+ *
+ * <pre>
+ *   HELLO    type | session id | received | replay from   1 + 3 * 8 bytes
+ *   WELCOME  type | session id | received                 1 + 2 * 8 bytes
+ *   ACK      type | received                              1 + 8 bytes
+ *   BYE      type                                         1 byte
+ * </pre>
+ */
+final class SessionResume {
+    public static final int HELLO = 3;
+
+    public static final int WELCOME = 4;
+
+    public static final int ACK = 5;
+
+    public static final int BYE = 6;
+
+    public static final int HELLO_LENGTH = 1 + 3 * 8;
+
+    public static final int WELCOME_LENGTH = 1 + 2 * 8;
+
+    public static final int ACK_LENGTH = 1 + 8;
+
+    public static final int BYE_LENGTH = 1;
+
+    // A receiver acknowledges after this many frames or bytes, whichever
+    // comes first, which bounds what the sender holds for a healthy link.
+    public static final int ACK_EVERY_FRAMES = 16;
+
+    public static final int ACK_EVERY_BYTES = 16 * 1024;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * A decoded HELLO or WELCOME; mReplayFrom is 0 for a WELCOME.
+     */
+    public static final class Handshake {
+        public final long mSessionId;
+
+        public final long mReceived;
+
+        public final long mReplayFrom;
+
+        Handshake(long sessionId, long received, long replayFrom) {
+            mSessionId = sessionId;
+            mReceived = received;
+            mReplayFrom = replayFrom;
+        }
+    }
+
+    private SessionResume() {
+    }
+
+    public static long newSessionId() {
+        long id;
+        do {
+            id = sRandom.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    public static byte[] encodeHello(long sessionId, long received, long replayFrom) {
+        byte[] payload = new byte[HELLO_LENGTH];
+        payload[0] = HELLO;
+        LinkClock.putLong(payload, 1, sessionId);
+        LinkClock.putLong(payload, 9, received);
+        LinkClock.putLong(payload, 17, replayFrom);
+        return payload;
+    }
+
+    public static byte[] encodeWelcome(long sessionId, long received) {
+        byte[] payload = new byte[WELCOME_LENGTH];
+        payload[0] = WELCOME;
+        LinkClock.putLong(payload, 1, sessionId);
+        LinkClock.putLong(payload, 9, received);
+        return payload;
+    }
+
+    public static byte[] encodeAck(long received) {
+        byte[] payload = new byte[ACK_LENGTH];
+        payload[0] = ACK;
+        LinkClock.putLong(payload, 1, received);
+        return payload;
+    }
+
+    public static byte[] encodeBye() {
+        return new byte[] {BYE};
+    }
+
+    public static boolean isAck(byte[] buffer, int offset, int length) {
+        return length == ACK_LENGTH && buffer[offset] == ACK;
+    }
+
+    public static boolean isBye(byte[] buffer, int offset, int length) {
+        return length == BYE_LENGTH && buffer[offset] == BYE;
+    }
+
+    public static long getAckReceived(byte[] buffer, int offset) {
+        return LinkClock.getLong(buffer, offset + 1);
+    }
+
+    /**
+     * Reads the frame a connection must start with, a HELLO on the server
+     * side and a WELCOME on the client side.
+     */
+    public static Handshake readHandshake(FrameReader reader, int type) throws IOException {
+        if (!reader.next()) {
+            throw new IOException("Connection closed during handshake");
+        }
+        byte[] buffer = reader.getBuffer();
+        int offset = reader.getPayloadOffset();
+        int length = reader.getPayloadLength();
+        int expectedLength = type == HELLO ? HELLO_LENGTH : WELCOME_LENGTH;
+        if ((reader.getFlags() & WireFormat.FLAG_CONTROL) == 0 || length != expectedLength
+                || buffer[offset] != type) {
+            throw new IOException("Expected a session handshake");
+        }
+        long sessionId = LinkClock.getLong(buffer, offset + 1);
+        long received = LinkClock.getLong(buffer, offset + 9);
+        long replayFrom = type == HELLO ? LinkClock.getLong(buffer, offset + 17) : 0;
+        if (received < 0 || replayFrom < 0) {
+            throw new IOException("Malformed session handshake");
+        }
+        return new Handshake(sessionId, received, replayFrom);
+    }
+
+    /**
+     * Writes a handshake frame straight to a socket that has no PeerWriter
+     * on it yet.
+     */
+    public static void writeHandshake(TransportSocket socket, byte[] payload) throws IOException {
+        socket.getOutputStream().write(WireFormat.encode(WireFormat.FLAG_CONTROL, payload));
+        socket.getOutputStream().flush();
+    }
+}
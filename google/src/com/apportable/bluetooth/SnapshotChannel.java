@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * State for the snapshot channel (FLAG_SNAPSHOT frames) of one engine.
+ *
+ * Sending: every snapshot gets the next sequence number and is kept in a
+ * short history. Each peer is sent a delta against the newest snapshot it
+ * has acknowledged, or the full snapshot if it has acknowledged none that is
+ * still in the history, or if the delta would not be smaller.
+ *
+ * Receiving: every snapshot a peer sends is kept in a history of the same
+ * size and acknowledged. A delta whose base is missing (its frame was
+ * dropped by OVERFLOW_DROP_OLDEST, say) is answered with RESYNC, and the
+ * sender goes back to full snapshots for that peer.
+ *
+ * <pre>
+ *   FULL   | 1 | varint seq | snapshot
+ *   DELTA  | 2 | varint seq | varint base seq | SnapshotDelta
+ *   ACK    | 3 | varint seq
+ *   RESYNC | 4
+ * </pre>
+ */
+final class SnapshotChannel {
+    public static final int FULL = 1;
+
+    public static final int DELTA = 2;
+
+    public static final int ACK = 3;
+
+    public static final int RESYNC = 4;
+
+    // At 30 snapshots a second this tolerates half a second of ack delay
+    // before falling back to full snapshots.
+    static final int HISTORY = 16;
+
+    /**
+     * A decoded snapshot, and the reply to send to its sender.
+     */
+    public static final class Received {
+        public final int mSeq;
+
+        public final byte[] mSnapshot;
+
+        public final byte[] mReply;
+
+        Received(int seq, byte[] snapshot, byte[] reply) {
+            mSeq = seq;
+            mSnapshot = snapshot;
+            mReply = reply;
+        }
+    }
+
+    private static final class History {
+        private final int[] mSeqs = new int[HISTORY];
+
+        private final byte[][] mSnapshots = new byte[HISTORY][];
+
+        void put(int seq, byte[] snapshot) {
+            mSeqs[seq % HISTORY] = seq;
+            mSnapshots[seq % HISTORY] = snapshot;
+        }
+
+        byte[] get(int seq) {
+            if (seq <= 0 || mSeqs[seq % HISTORY] != seq) {
+                return null;
+            }
+            return mSnapshots[seq % HISTORY];
+        }
+    }
+
+    private final History mSent = new History();
+
+    private int mLastSeq = 0;
+
+    // Newest sequence number each peer acknowledged.
+    private final HashMap<String, Integer> mAcked = new HashMap<String, Integer>();
+
+    private final HashMap<String, History> mReceived = new HashMap<String, History>();
+
+    public synchronized int add(byte[] snapshot) {
+        mLastSeq++;
+        mSent.put(mLastSeq, snapshot);
+        return mLastSeq;
+    }
+
+    /**
+     * Payloads carrying snapshot seq to each of peers. Peers sharing a
+     * baseline share one delta.
+     */
+    public synchronized byte[][] encode(int seq, String[] peers) {
+        byte[] snapshot = mSent.get(seq);
+        byte[][] payloads = new byte[peers.length][];
+        HashMap<Integer, byte[]> byBase = new HashMap<Integer, byte[]>();
+        for (int i = 0; i < peers.length; i++) {
+            Integer acked = mAcked.get(peers[i]);
+            int base = acked != null && mSent.get(acked) != null ? acked : 0;
+            byte[] payload = byBase.get(base);
+            if (payload == null) {
+                payload = base > 0 ? encodeDelta(seq, snapshot, base) : null;
+                if (payload == null) {
+                    payload = encodeFull(seq, snapshot);
+                }
+                byBase.put(base, payload);
+            }
+            payloads[i] = payload;
+        }
+        return payloads;
+    }
+
+    private byte[] encodeDelta(int seq, byte[] snapshot, int base) {
+        byte[] delta = SnapshotDelta.encode(mSent.get(base), snapshot);
+        int headerLength = 1 + WireFormat.varintSize(seq) + WireFormat.varintSize(base);
+        if (headerLength + delta.length >= 1 + WireFormat.varintSize(seq) + snapshot.length) {
+            return null;
+        }
+        byte[] payload = new byte[headerLength + delta.length];
+        payload[0] = DELTA;
+        int offset = WireFormat.writeVarint(payload, 1, seq);
+        offset = WireFormat.writeVarint(payload, offset, base);
+        System.arraycopy(delta, 0, payload, offset, delta.length);
+        return payload;
+    }
+
+    private static byte[] encodeFull(int seq, byte[] snapshot) {
+        byte[] payload = new byte[1 + WireFormat.varintSize(seq) + snapshot.length];
+        payload[0] = FULL;
+        int offset = WireFormat.writeVarint(payload, 1, seq);
+        System.arraycopy(snapshot, 0, payload, offset, snapshot.length);
+        return payload;
+    }
+
+    /**
+     * Handles a FLAG_SNAPSHOT payload from peer. Returns the decoded snapshot
+     * with its ACK, a RESYNC reply with no snapshot, or null for ACK and
+     * RESYNC frames.
+     */
+    public synchronized Received receive(String peer, byte[] buffer, int offset, int length) throws IOException {
+        SnapshotDelta.Cursor in = new SnapshotDelta.Cursor(buffer, offset, length);
+        int type = in.readByte();
+        if (type == ACK) {
+            int seq = in.readVarint();
+            Integer acked = mAcked.get(peer);
+            if (acked == null || seq > acked) {
+                mAcked.put(peer, seq);
+            }
+            return null;
+        }
+        if (type == RESYNC) {
+            mAcked.remove(peer);
+            return null;
+        }
+        History history = mReceived.get(peer);
+        if (history == null) {
+            history = new History();
+            mReceived.put(peer, history);
+        }
+        int seq = in.readVarint();
+        byte[] snapshot;
+        if (type == FULL) {
+            snapshot = new byte[in.remaining()];
+            System.arraycopy(buffer, in.position(), snapshot, 0, snapshot.length);
+        } else if (type == DELTA) {
+            byte[] base = history.get(in.readVarint());
+            if (base == null) {
+                return new Received(seq, null, new byte[] {RESYNC});
+            }
+            snapshot = SnapshotDelta.apply(base, buffer, in.position(), in.remaining());
+        } else {
+            throw new IOException("Unknown snapshot frame type " + type);
+        }
+        history.put(seq, snapshot);
+        byte[] ack = new byte[1 + WireFormat.varintSize(seq)];
+        ack[0] = ACK;
+        WireFormat.writeVarint(ack, 1, seq);
+        return new Received(seq, snapshot, ack);
+    }
+
+    public synchronized void removePeer(String peer) {
+        mAcked.remove(peer);
+        mReceived.remove(peer);
+    }
+}
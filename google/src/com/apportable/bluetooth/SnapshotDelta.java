@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Binary delta between two snapshots: the new snapshot is XORed with the
+ * base (missing base bytes count as zero), and runs of zeros are skipped.
+ *
+ * <pre>
+ *   varint targetLength
+ *   repeated: varint skip, varint count, count bytes of target XOR base
+ * </pre>
+ *
+ * Unchanged runs shorter than MIN_SKIP are folded into the literal around
+ * them, since two varints would cost more than the bytes they skip.
+ */
+final class SnapshotDelta {
+    private static final int MIN_SKIP = 3;
+
+    private SnapshotDelta() {
+    }
+
+    public static byte[] encode(byte[] base, byte[] target) {
+        byte[] delta = new byte[write(base, target, null)];
+        write(base, target, delta);
+        return delta;
+    }
+
+    /**
+     * Writes the delta into dst, or with dst null only measures it. Returns
+     * the length.
+     */
+    private static int write(byte[] base, byte[] target, byte[] dst) {
+        int out = putVarint(dst, 0, target.length);
+        int pos = 0;
+        while (pos < target.length) {
+            int skipStart = pos;
+            while (pos < target.length && xor(base, target, pos) == 0) {
+                pos++;
+            }
+            if (pos == target.length) {
+                break;
+            }
+            int literalStart = pos;
+            int zeros = 0;
+            while (pos < target.length && zeros < MIN_SKIP) {
+                zeros = xor(base, target, pos) == 0 ? zeros + 1 : 0;
+                pos++;
+            }
+            int literalEnd = pos - zeros;
+            pos = literalEnd;
+            out = putVarint(dst, out, literalStart - skipStart);
+            out = putVarint(dst, out, literalEnd - literalStart);
+            if (dst != null) {
+                for (int i = literalStart; i < literalEnd; i++) {
+                    dst[out + i - literalStart] = (byte) xor(base, target, i);
+                }
+            }
+            out += literalEnd - literalStart;
+        }
+        return out;
+    }
+
+    private static int xor(byte[] base, byte[] target, int i) {
+        return (i < base.length ? base[i] ^ target[i] : target[i]) & 0xFF;
+    }
+
+    private static int putVarint(byte[] dst, int offset, int value) {
+        if (dst == null) {
+            return offset + WireFormat.varintSize(value);
+        }
+        return WireFormat.writeVarint(dst, offset, value);
+    }
+
+    /**
+     * Rebuilds the target from base and delta[offset, offset + length).
+     */
+    public static byte[] apply(byte[] base, byte[] delta, int offset, int length) throws IOException {
+        Cursor in = new Cursor(delta, offset, length);
+        int targetLength = in.readVarint();
+        if (targetLength > WireFormat.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Snapshot of " + targetLength + " bytes exceeds limit");
+        }
+        byte[] target = new byte[targetLength];
+        System.arraycopy(base, 0, target, 0, Math.min(base.length, targetLength));
+        int pos = 0;
+        while (in.remaining() > 0) {
+            int skip = in.readVarint();
+            int count = in.readVarint();
+            if (skip > targetLength - pos || count > targetLength - pos - skip || count > in.remaining()) {
+                throw new IOException("Malformed snapshot delta");
+            }
+            pos += skip;
+            for (int i = 0; i < count; i++) {
+                target[pos + i] ^= in.readByte();
+            }
+            pos += count;
+        }
+        return target;
+    }
+
+    /**
+     * Reads varints and bytes from a slice of an array, failing with an
+     * IOException instead of running past its end.
+     */
+    static final class Cursor {
+        private byte[] mBuffer;
+
+        private int mPos;
+
+        private int mLimit;
+
+        Cursor() {
+        }
+
+        Cursor(byte[] buffer, int offset, int length) {
+            reset(buffer, offset, length);
+        }
+
+        /**
+         * Points this cursor at another range, so that a reader thread can
+         * keep one instead of allocating one per frame.
+         */
+        public Cursor reset(byte[] buffer, int offset, int length) {
+            mBuffer = buffer;
+            mPos = offset;
+            mLimit = offset + length;
+            return this;
+        }
+
+        public int remaining() {
+            return mLimit - mPos;
+        }
+
+        public int position() {
+            return mPos;
+        }
+
+        public byte readByte() throws IOException {
+            if (mPos >= mLimit) {
+                throw new IOException("Truncated snapshot frame");
+            }
+            return mBuffer[mPos++];
+        }
+
+        public int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift <= 28; shift += 7) {
+                int b = readByte() & 0xFF;
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in snapshot frame");
+        }
+    }
+}
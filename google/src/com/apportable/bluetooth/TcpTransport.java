@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transport over TCP, normally on localhost. Each service UUID maps to a
+ * fixed port, basePort plus the UUID's index in the slot list, so a server
+ * and clients in separate JVMs agree on where to meet.
+ */
+final class TcpTransport implements Transport {
+    private final String mHost;
+
+    private final int mBasePort;
+
+    private final List<UUID> mSlots;
+
+    public TcpTransport(String host, int basePort, List<UUID> slots) {
+        mHost = host;
+        mBasePort = basePort;
+        mSlots = slots;
+    }
+
+    private int portFor(UUID uuid) throws IOException {
+        int slot = mSlots.indexOf(uuid);
+        if (slot < 0) {
+            throw new IOException("No port for service " + uuid);
+        }
+        return mBasePort + slot;
+    }
+
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(mHost), portFor(uuid)), 1);
+        return new TransportServerSocket() {
+            public TransportSocket accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                return new TcpSocket(socket, socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    public TransportSocket connect(String address, UUID uuid) throws IOException {
+        Socket socket = new Socket(address, portFor(uuid));
+        return new TcpSocket(socket, address);
+    }
+
+    public List<UUID> getAdvertisedServices(String address, long timeoutMillis) {
+        return new ArrayList<UUID>();
+    }
+
+    public String getAddress() {
+        return mHost;
+    }
+
+    public String getName() {
+        return mHost + ":" + mBasePort;
+    }
+
+    private static final class TcpSocket implements TransportSocket {
+        private final Socket mSocket;
+
+        private final String mRemoteAddress;
+
+        TcpSocket(Socket socket, String remoteAddress) throws IOException {
+            mSocket = socket;
+            mRemoteAddress = remoteAddress;
+            // Small game messages should not wait for Nagle; PeerWriter already coalesces.
+            mSocket.setTcpNoDelay(true);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+/**
+ * Fixed-rate clock for tick mode. Tick n is due at start + n * period,
+ * reckoned from the start rather than from when the previous tick actually
+ * fired, so a thread that wakes late delays one tick without pushing every
+ * later one back. A thread that falls more than a period behind skips the
+ * ticks it missed instead of firing them back to back.
+ *
+ * Not thread-safe; the engine's tick loop is its only user.
+ */
+final class TickScheduler {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int mTicksPerSecond;
+
+    private final long mStartNanos;
+
+    // Tick numbers continue across rate changes; mFirstTick is the number
+    // of the tick due at mStartNanos.
+    private final long mFirstTick;
+
+    private long mNext;
+
+    private long mSkipped;
+
+    public TickScheduler(int ticksPerSecond, long startNanos, long firstTick) {
+        mTicksPerSecond = ticksPerSecond;
+        mStartNanos = startNanos;
+        mFirstTick = firstTick;
+    }
+
+    public int getTicksPerSecond() {
+        return mTicksPerSecond;
+    }
+
+    // Computed from the tick count rather than summed, so that a period
+    // that is not a whole number of nanoseconds does not drift either.
+    private long dueNanos(long n) {
+        return mStartNanos + n * NANOS_PER_SECOND / mTicksPerSecond;
+    }
+
+    /**
+     * How long until the next tick is due; 0 or less if it is.
+     */
+    public long nanosUntilNextTick(long nowNanos) {
+        return dueNanos(mNext) - nowNanos;
+    }
+
+    /**
+     * Takes the tick that is due at nowNanos and returns its number. Ticks
+     * that were due before it are skipped.
+     */
+    public long advance(long nowNanos) {
+        long elapsed = nowNanos - mStartNanos;
+        long due = Math.max(mNext, elapsed * mTicksPerSecond / NANOS_PER_SECOND);
+        mSkipped += due - mNext;
+        mNext = due + 1;
+        return mFirstTick + due;
+    }
+
+    /**
+     * The number the next tick will get.
+     */
+    public long getNextTick() {
+        return mFirstTick + mNext;
+    }
+
+    public long getSkippedTicks() {
+        return mSkipped;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel: timeouts go into one of wheelSize buckets by the
+ * tick they are due in, and one thread visits a bucket per tick and runs
+ * the tasks that are due. Scheduling and cancelling are O(1) whatever the
+ * number of timeouts, and they all share the one thread, which waits
+ * without ticking while nothing is scheduled.
+ *
+ * Timeouts fire up to a tick late, never early. Tasks run on the wheel's
+ * thread, one after another, outside its lock; a slow task delays the
+ * rest.
+ */
+final class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    public static final int DEFAULT_WHEEL_SIZE = 256;
+
+    public final class Timeout {
+        private final Runnable mTask;
+
+        private final long mDeadlineTick;
+
+        // Links within the bucket; mBucket is -1 once fired or cancelled.
+        private int mBucket = -1;
+
+        private Timeout mPrevious;
+
+        private Timeout mNext;
+
+        Timeout(Runnable task, long deadlineTick) {
+            mTask = task;
+            mDeadlineTick = deadlineTick;
+        }
+
+        /**
+         * Returns false if it has already fired or been cancelled.
+         */
+        public boolean cancel() {
+            synchronized(TimerWheel.this) {
+                if (mBucket < 0) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+    }
+
+    private final String mName;
+
+    private final long mTickNanos;
+
+    private final Timeout[] mBuckets;
+
+    private final long mStartNanos = System.nanoTime();
+
+    // The next tick to visit, counted from mStartNanos.
+    private long mTick;
+
+    private int mPending;
+
+    private Thread mDriver;
+
+    public TimerWheel(String name) {
+        this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * wheelSize must be a power of two.
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+        }
+        mName = name;
+        mTickNanos = tickMillis * 1000000;
+        mBuckets = new Timeout[wheelSize];
+    }
+
+    /**
+     * Runs task once delayMillis have passed, unless the Timeout returned is
+     * cancelled first.
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long now = System.nanoTime() - mStartNanos;
+        if (mPending == 0) {
+            // Nothing is in the buckets, so the ticks slept through need no
+            // visit.
+            mTick = Math.max(mTick, now / mTickNanos);
+        }
+        // A tick's timeouts fire once it has passed, so this is the tick
+        // the deadline falls in, or the one before it when it falls on a
+        // boundary.
+        long deadlineTick = Math.max(mTick, (now + delayMillis * 1000000 + mTickNanos - 1) / mTickNanos - 1);
+        Timeout timeout = new Timeout(task, deadlineTick);
+        int bucket = (int) (deadlineTick & (mBuckets.length - 1));
+        timeout.mBucket = bucket;
+        timeout.mNext = mBuckets[bucket];
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout;
+        }
+        mBuckets[bucket] = timeout;
+        mPending++;
+        if (mDriver == null) {
+            mDriver = new Thread(new Runnable() {
+                public void run() {
+                    drive();
+                }
+            }, mName);
+            mDriver.setDaemon(true);
+            mDriver.start();
+        } else if (mPending == 1) {
+            notifyAll();
+        }
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrevious != null) {
+            timeout.mPrevious.mNext = timeout.mNext;
+        } else {
+            mBuckets[timeout.mBucket] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        }
+        timeout.mBucket = -1;
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        mPending--;
+    }
+
+    public synchronized int getPending() {
+        return mPending;
+    }
+
+    private void drive() {
+        ArrayList<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            synchronized(this) {
+                if (mDriver != Thread.currentThread()) {
+                    return;
+                }
+                long waitNanos = mPending == 0 ? 0 : (mTick + 1) * mTickNanos - (System.nanoTime() - mStartNanos);
+                if (mPending == 0 || waitNanos > 0) {
+                    try {
+                        wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                // mTick has fully passed; later rounds stay in the bucket.
+                Timeout timeout = mBuckets[(int) (mTick & (mBuckets.length - 1))];
+                while (timeout != null) {
+                    Timeout next = timeout.mNext;
+                    if (timeout.mDeadlineTick <= mTick) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+                mTick++;
+            }
+            for (Timeout timeout : expired) {
+                timeout.mTask.run();
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Drops every pending timeout and ends the thread; a later schedule()
+     * starts a new one.
+     */
+    public synchronized void stop() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            while (mBuckets[i] != null) {
+                unlink(mBuckets[i]);
+            }
+        }
+        mDriver = null;
+        notifyAll();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The link layer ConnectionEngine runs over. RfcommTransport is what ships;
+ * PipeTransport and TcpTransport let the engine run inside a plain JVM for
+ * load tests and profiling without any Bluetooth hardware.
+ */
+interface Transport {
+    /**
+     * Registers a service under uuid and returns a socket to accept one
+     * connection on it.
+     */
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException;
+
+    /**
+     * Opens a connection to the service registered under uuid at address.
+     */
+    public TransportSocket connect(String address, UUID uuid) throws IOException;
+
+    /**
+     * Returns the subset of our service UUIDs the remote end has registered
+     * right now, or an empty list if the transport can't tell.
+     */
+    public List<UUID> getAdvertisedServices(String address, long timeoutMillis);
+
+    public String getAddress();
+
+    public String getName();
+}
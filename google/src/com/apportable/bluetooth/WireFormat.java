@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apportable.bluetooth;
+
+/**
+ * Framing used on the wire between two ConnectionService instances.
+ *
+ * Every message is sent as one frame:
+ *
+ * <pre>
+ *   +---------+-------+----------------+-----------------+
+ *   | version | flags | length (varint)| payload         |
+ *   | 1 byte  | 1 byte| 1-5 bytes      | length bytes    |
+ *   +---------+-------+----------------+-----------------+
+ * </pre>
+ *
+ * The length is an unsigned LEB128 varint, so messages under 128 bytes pay a
+ * three byte header. The payload is opaque; a zero byte may appear anywhere.
+ *
+ * Flags:
+ * <ul>
+ * <li>FLAG_CONTROL - the payload is for ConnectionEngine itself (pings and
+ * pongs, see LinkClock; the session handshake and acknowledgements, see
+ * SessionResume) and is never delivered to the app.</li>
+ * <li>FLAG_SNAPSHOT - a snapshot, delta or acknowledgement on the snapshot
+ * channel, see SnapshotChannel.</li>
+ * <li>FLAG_COMPRESSED - the payload is compressed, see FrameCompressor;
+ * the other flags apply to the inflated payload.</li>
+ * <li>FLAG_CHANNEL - a message, or part of one, on a numbered channel, see
+ * ChannelFrames.</li>
+ * <li>FLAG_RELAY - a message or route announcement passed along a tree of
+ * relays, see RelayRouter.</li>
+ * <li>FLAG_TRANSFER - a chunk of a file being sent, or the offer,
+ * acknowledgement or outcome of a file transfer, see FileTransfers.</li>
+ * </ul>
+ *
+ * Version 2 starts every connection with the SessionResume handshake.
+ */
+final class WireFormat {
+    public static final int VERSION = 2;
+
+    public static final int MAX_HEADER_LENGTH = 2 + 5;
+
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    public static final int FLAG_CONTROL = 0x01;
+
+    public static final int FLAG_SNAPSHOT = 0x02;
+
+    public static final int FLAG_COMPRESSED = 0x04;
+
+    public static final int FLAG_CHANNEL = 0x08;
+
+    public static final int FLAG_RELAY = 0x10;
+
+    public static final int FLAG_TRANSFER = 0x20;
+
+    private WireFormat() {
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int writeVarint(byte[] dst, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static int headerSize(int payloadLength) {
+        return 2 + varintSize(payloadLength);
+    }
+
+    /**
+     * Writes a frame header at offset and returns the offset of the payload.
+     */
+    public static int writeHeader(byte[] dst, int offset, int flags, int payloadLength) {
+        dst[offset++] = (byte) VERSION;
+        dst[offset++] = (byte) flags;
+        return writeVarint(dst, offset, payloadLength);
+    }
+
+    /**
+     * Builds a complete frame around payload[offset, offset + length).
+     */
+    public static byte[] encode(int flags, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds "
+                    + MAX_PAYLOAD_LENGTH);
+        }
+        byte[] frame = new byte[headerSize(length) + length];
+        int payloadOffset = writeHeader(frame, 0, flags, length);
+        System.arraycopy(payload, offset, frame, payloadOffset, length);
+        return frame;
+    }
+
+    public static byte[] encode(int flags, byte[] payload) {
+        return encode(flags, payload, 0, payload.length);
+    }
+}
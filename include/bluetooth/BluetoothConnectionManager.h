@@ -3,6 +3,20 @@
 
 @class BluetoothSocket;
 
+// Delivery classes for openChannel:priority:delivery:.
+enum {
+    BluetoothChannelReliable = 0,   // every message arrives, in order
+    BluetoothChannelLatest = 1,     // a newer message replaces one still queued
+};
+
+// Results of sendDeviceMessage: and sendDeviceData:.
+enum {
+    BluetoothWriteSucceeded = 0,
+    BluetoothWriteFailed = 1,
+    BluetoothWriteOverflowed = 2,   // queued, but older data was dropped
+    BluetoothWriteWouldBlock = 3,   // the device granted no more credit; not sent
+};
+
 @interface BluetoothConnectionManager : JavaObject
 //- (id)initWithDelegate:(id<BluetoothDelegate>)delegate;
 - (id)initWithName:(NSString *)name isClient:(BOOL)isClient delegate:(id)delegate;
@@ -12,8 +26,52 @@
 - (void)stopPublishing;
 - (void)startSearching;
 - (bool)isConnectedToServer;
-- (void)returnRead:(int)length fromSocket:(BluetoothSocket *)socket tag:(long)requestedTag;
-- (void)sendDeviceMessage:(BluetoothSocket *)device withMessage:(NSString *)message withTag:(long)tag;
+// Ping connected devices every interval seconds (0 stops); results arrive via
+// socket:didUpdateRTT:jitter:clockOffset: on the delegate.
+- (void)setPingInterval:(NSTimeInterval)interval;
+// Channels 1-255, priorities 0-7 (3 is the default stream's). Messages on a
+// channel arrive whole via socket:didReceiveData:onChannel: on the delegate.
+- (void)openChannel:(int)channel priority:(int)priority delivery:(int)delivery;
+// Gather data received within window seconds (0, the default, stops) into
+// one delivery per device of up to maxBytes (0 for 64 KB). Saves a service
+// call per message when many small ones arrive together.
+- (void)setReceiveBatchWindow:(NSTimeInterval)window maxBytes:(int)maxBytes;
+// Keep a connection through dropouts of up to grace seconds (0, the default,
+// stops): the client reconnects by itself and lost data is resent, so
+// socketDidDisconnect: only arrives once grace runs out. Each side buffers
+// up to maxReplayBytes (0 for 256 KB) of unacknowledged data.
+- (void)setSessionResumeGrace:(NSTimeInterval)grace maxReplayBytes:(int)maxReplayBytes;
+// Clients a server accepts, 1-7 (4 by default). Call before startPublishing.
+- (void)setMaxConnections:(int)maxConnections;
+// Relay mode, for sessions bigger than a server and 7 clients: every client
+// also publishes and passes data on for clients that connect to it. Devices
+// reached that way arrive through connectionReceived: and can be read from
+// and written to like any other, but not on channels. Set it on every device
+// before startPublishing or startSearching.
+- (void)setRelay:(BOOL)relay;
+// Send at a fixed rate, 1-120 ticks per second (0, the default, stops):
+// data written during a tick goes out together at its end, one write per
+// device, and bluetoothDidTick: on the delegate follows each tick.
+- (void)setTickRate:(int)ticksPerSecond;
+// Let each device get at most windowBytes of data ahead of what this device
+// has read (0, the default, stops). Writes beyond it return
+// BluetoothWriteWouldBlock instead of queueing, and
+// socketDidBecomeWritable: on the delegate follows once there is room.
+- (void)setReceiveWindow:(int)windowBytes;
+// Received data is buffered on the Java side; socket:didReadData:withTag:
+// delivers exactly length bytes, without the tag when it matches, or
+// socket:didTimeOutReadWithTag: follows once timeout seconds (negative for
+// none) pass without them.
+- (void)readDataToLength:(NSUInteger)length fromSocket:(BluetoothSocket *)socket withTimeout:(NSTimeInterval)timeout tag:(long)tag;
+// Like sendDeviceData:withData:withTag:, except that data the device has no
+// credit for (see setReceiveWindow:) is held and sent once it grants more:
+// socket:didWriteDataWithTag: follows then, or socket:didTimeOutWriteWithTag:
+// once timeout seconds (negative for none) pass first.
+- (void)writeData:(NSData *)data toSocket:(BluetoothSocket *)socket withTimeout:(NSTimeInterval)timeout tag:(long)tag;
+// socket:didWriteDataWithTag: follows unless these return BluetoothWriteWouldBlock.
+- (int)sendDeviceMessage:(BluetoothSocket *)device withMessage:(NSString *)message withTag:(long)tag;
+- (int)sendDeviceData:(BluetoothSocket *)device withData:(NSData *)data withTag:(long)tag;
+- (int)sendDeviceData:(BluetoothSocket *)device withData:(NSData *)data onChannel:(int)channel withTag:(long)tag;
 - (void)disconnect;
 - (void)shutdown;
 
@@ -1,6 +1,5 @@
 #import <Foundation/NSDictionary.h>
 #import <Foundation/NSData.h>
-#import "BluetoothReadQueue.h"
 #import "BluetoothConnectionManager.h"
 
 @class BluetoothConnectionManager;
@@ -16,9 +15,10 @@
 @interface BluetoothSocket : NSObject<VirtualSocket>
 - (id)initWithName:(NSString *)name withConnection:(BluetoothConnectionManager *)connection;
 + (BluetoothSocket *)socketFromName:(NSString *)name;
+// Sends data as one message on a channel opened with
+// -[BluetoothConnectionManager openChannel:priority:delivery:].
+- (void)writeData:(NSData *)data onChannel:(int)channel withTimeout:(NSTimeInterval)timeout tag:(long)tag;
 
 @property (nonatomic, readonly) NSString *name;
 @property (nonatomic, readonly) BluetoothConnectionManager *connection;
-@property (nonatomic, readonly) NSMutableData *receivedBuffer;
-@property (nonatomic, readonly) BluetoothReadQueue *readQueue;
 @end
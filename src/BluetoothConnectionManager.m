@@ -3,18 +3,26 @@
 #import "BluetoothSocket.h"
 #import <BridgeKit/AndroidActivity.h>
 #import <BridgeKit/AndroidContext.h>
-#import "GNUstepBase/GSMime.h"
 #import <UIKit/UIAlertView.h>
+#import <limits.h>
 
 #define TAG_LENGTH sizeof(long)
 
+// Timeouts go to Java in milliseconds, negative for none.
+static int timeoutMillis(NSTimeInterval timeout)
+{
+    if (timeout < 0)
+    {
+        return -1;
+    }
+    return timeout * 1000 < INT_MAX ? (int)(timeout * 1000) : INT_MAX;
+}
+
 @interface BluetoothConnectionManager() {
 @public
     // BOOL _inRestoreState;
 
 @private
-    // NSMutableData *_receivedBuffer;
-    // int _pendingReadLength;
 }
 - (id)_initWithContext:(AndroidContext *)ctx name:(NSString *)name isClient:(BOOL)isClient;
 + (BOOL)_isAvailable;
@@ -24,7 +32,19 @@
 - (void)_startSearching;
 - (void)_disconnect;
 - (void)_shutdown;
-- (void)_sendDeviceMessage:(NSString *)device message:(NSString *)message;
+- (int)_sendDeviceMessage:(NSString *)device message:(NSString *)message;
+- (int)_sendDeviceBytes:(NSString *)device data:(NSData *)data;
+- (void)_setPingInterval:(int)intervalMillis;
+- (void)_openChannel:(int)channel priority:(int)priority delivery:(int)delivery;
+- (void)_setReceiveBatching:(int)windowMicros maxBytes:(int)maxBytes;
+- (void)_setSessionResume:(int)graceMillis maxReplayBytes:(int)maxReplayBytes;
+- (void)_setMaxConnections:(int)maxConnections;
+- (void)_setRelay:(BOOL)relay;
+- (void)_setTickRate:(int)ticksPerSecond;
+- (void)_setReceiveWindow:(int)windowBytes;
+- (int)_sendDeviceChannelBytes:(NSString *)device channel:(int)channel data:(NSData *)data;
+- (void)_readDataToLength:(NSString *)device length:(int)length tag:(long long)tag tagLength:(int)tagLength timeout:(int)timeoutMillis;
+- (int)_writeDeviceBytes:(NSString *)device data:(NSData *)data tag:(long long)tag timeout:(int)timeoutMillis;
 - (bool)_isConnectedToServer;
 
 @property (nonatomic, readonly) id delegate;
@@ -35,6 +55,12 @@
 @optional
 - (void)didConnectToServer:(BluetoothSocket *)server;
 - (void)connectionReceived:(BluetoothSocket *)clientDevice;
+- (void)socket:(id <VirtualSocket>)sock didUpdateRTT:(NSTimeInterval)rtt jitter:(NSTimeInterval)jitter clockOffset:(NSTimeInterval)offset;
+- (void)socket:(id <VirtualSocket>)sock didReceiveData:(NSData *)data onChannel:(int)channel;
+- (void)bluetoothDidTick:(long long)tick;
+- (void)socketDidBecomeWritable:(id <VirtualSocket>)sock;
+- (void)socket:(id <VirtualSocket>)sock didTimeOutReadWithTag:(long)tag;
+- (void)socket:(id <VirtualSocket>)sock didTimeOutWriteWithTag:(long)tag;
 @end
 
 
@@ -76,8 +102,32 @@
     [BluetoothConnectionManager registerInstanceMethod:@"startSearching" selector:@selector(_startSearching) returnValue:nil arguments:nil];
     [BluetoothConnectionManager registerInstanceMethod:@"disconnect" selector:@selector(_disconnect) returnValue:nil arguments:nil];
     [BluetoothConnectionManager registerInstanceMethod:@"shutdown" selector:@selector(_shutdown) returnValue:nil arguments:nil];
-    [BluetoothConnectionManager registerInstanceMethod:@"sendDeviceMessage" selector:@selector(_sendDeviceMessage:message:) returnValue:nil 
+    [BluetoothConnectionManager registerInstanceMethod:@"sendDeviceMessage" selector:@selector(_sendDeviceMessage:message:) returnValue:[JavaClass intPrimitive] 
         arguments:[NSString className], [NSString className], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"sendDeviceBytes" selector:@selector(_sendDeviceBytes:data:) returnValue:[JavaClass intPrimitive] 
+        arguments:[NSString className], [NSData className], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setPingInterval" selector:@selector(_setPingInterval:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"openChannel" selector:@selector(_openChannel:priority:delivery:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], [JavaClass intPrimitive], [JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setReceiveBatching" selector:@selector(_setReceiveBatching:maxBytes:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], [JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setSessionResume" selector:@selector(_setSessionResume:maxReplayBytes:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], [JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setMaxConnections" selector:@selector(_setMaxConnections:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setRelay" selector:@selector(_setRelay:) returnValue:nil 
+        arguments:[JavaClass boolPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setTickRate" selector:@selector(_setTickRate:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"setReceiveWindow" selector:@selector(_setReceiveWindow:) returnValue:nil 
+        arguments:[JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"sendDeviceChannelBytes" selector:@selector(_sendDeviceChannelBytes:channel:data:) returnValue:[JavaClass intPrimitive] 
+        arguments:[NSString className], [JavaClass intPrimitive], [NSData className], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"readDataToLength" selector:@selector(_readDataToLength:length:tag:tagLength:timeout:) returnValue:nil 
+        arguments:[NSString className], [JavaClass intPrimitive], [JavaClass longPrimitive], [JavaClass intPrimitive], [JavaClass intPrimitive], nil];
+    [BluetoothConnectionManager registerInstanceMethod:@"writeDeviceBytes" selector:@selector(_writeDeviceBytes:data:tag:timeout:) returnValue:[JavaClass intPrimitive] 
+        arguments:[NSString className], [NSData className], [JavaClass longPrimitive], [JavaClass intPrimitive], nil];
     [BluetoothConnectionManager registerInstanceMethod:@"isConnectedToServer" selector:@selector(_isConnectedToServer) returnValue:[JavaClass boolPrimitive] arguments:nil];
     [BluetoothConnectionManager registerCallback:@"connectionReceived"
                             selector:@selector(connectionReceived:) 
@@ -95,14 +145,38 @@
                             selector:@selector(didConnectToServer:) 
                             returnValue:nil
                             arguments:[NSString className], nil];
-    [BluetoothConnectionManager registerCallback:@"didReceive"
-                            selector:@selector(didReceive:fromDevice:) 
+    [BluetoothConnectionManager registerCallback:@"didReadData"
+                            selector:@selector(didReadData:fromDevice:tag:) 
+                            returnValue:nil
+                            arguments:@"java.nio.ByteBuffer", [NSString className], [JavaClass longPrimitive], nil];
+    [BluetoothConnectionManager registerCallback:@"didWriteData"
+                            selector:@selector(didWriteData:tag:) 
                             returnValue:nil
-                            arguments:[NSString className], [NSString className], nil];
+                            arguments:[NSString className], [JavaClass longPrimitive], nil];
+    [BluetoothConnectionManager registerCallback:@"didTimeOut"
+                            selector:@selector(didTimeOut:tag:write:) 
+                            returnValue:nil
+                            arguments:[NSString className], [JavaClass longPrimitive], [JavaClass boolPrimitive], nil];
+    [BluetoothConnectionManager registerCallback:@"didReceiveChannelBytes"
+                            selector:@selector(didReceiveChannelBytes:fromDevice:channel:) 
+                            returnValue:nil
+                            arguments:@"java.nio.ByteBuffer", [NSString className], [JavaClass intPrimitive], nil];
     [BluetoothConnectionManager registerCallback:@"didDisconnect"
                             selector:@selector(didDisconnect:) 
                             returnValue:nil
                             arguments:[NSString className], nil];
+    [BluetoothConnectionManager registerCallback:@"didUpdateLinkTiming"
+                            selector:@selector(didUpdateLinkTiming:rtt:jitter:clockOffset:) 
+                            returnValue:nil
+                            arguments:[NSString className], [JavaClass longPrimitive], [JavaClass longPrimitive], [JavaClass longPrimitive], nil];
+    [BluetoothConnectionManager registerCallback:@"didTick"
+                            selector:@selector(didTick:) 
+                            returnValue:nil
+                            arguments:[JavaClass longPrimitive], nil];
+    [BluetoothConnectionManager registerCallback:@"didBecomeWritable"
+                            selector:@selector(didBecomeWritable:) 
+                            returnValue:nil
+                            arguments:[NSString className], nil];
     [BluetoothConnectionManager registerCallback:@"resetBluetoothNeeded"
                             selector:@selector(resetBluetoothNeeded) 
                             returnValue:nil
@@ -161,12 +235,63 @@
     return [self _isConnectedToServer];
 }
 
-- (void)sendDeviceMessage:(BluetoothSocket *)device withMessage:(NSString *)message withTag:(long)tag {
-    [self _sendDeviceMessage:device.name message:message];
-    if ([self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
+- (void)setPingInterval:(NSTimeInterval)interval {
+    [self _setPingInterval:(int)(interval * 1000)];
+}
+
+- (void)openChannel:(int)channel priority:(int)priority delivery:(int)delivery {
+    [self _openChannel:channel priority:priority delivery:delivery];
+}
+
+- (void)setReceiveBatchWindow:(NSTimeInterval)window maxBytes:(int)maxBytes {
+    [self _setReceiveBatching:(int)(window * 1000000) maxBytes:maxBytes];
+}
+
+- (void)setSessionResumeGrace:(NSTimeInterval)grace maxReplayBytes:(int)maxReplayBytes {
+    [self _setSessionResume:(int)(grace * 1000) maxReplayBytes:maxReplayBytes];
+}
+
+- (void)setMaxConnections:(int)maxConnections {
+    [self _setMaxConnections:maxConnections];
+}
+
+- (void)setRelay:(BOOL)relay {
+    [self _setRelay:relay];
+}
+
+- (void)setTickRate:(int)ticksPerSecond {
+    [self _setTickRate:ticksPerSecond];
+}
+
+- (void)setReceiveWindow:(int)windowBytes {
+    [self _setReceiveWindow:windowBytes];
+}
+
+- (int)sendDeviceMessage:(BluetoothSocket *)device withMessage:(NSString *)message withTag:(long)tag {
+    int result = [self _sendDeviceMessage:device.name message:message];
+    if (result != BluetoothWriteWouldBlock && [self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
+    {
+        [self.delegate socket:device didWriteDataWithTag:tag];
+    }
+    return result;
+}
+
+- (int)sendDeviceData:(BluetoothSocket *)device withData:(NSData *)data withTag:(long)tag {
+    int result = [self _sendDeviceBytes:device.name data:data];
+    if (result != BluetoothWriteWouldBlock && [self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
+    {
+        [self.delegate socket:device didWriteDataWithTag:tag];
+    }
+    return result;
+}
+
+- (int)sendDeviceData:(BluetoothSocket *)device withData:(NSData *)data onChannel:(int)channel withTag:(long)tag {
+    int result = [self _sendDeviceChannelBytes:device.name channel:channel data:data];
+    if (result != BluetoothWriteWouldBlock && [self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
     {
         [self.delegate socket:device didWriteDataWithTag:tag];
     }
+    return result;
 }
 
 - (void)connectionReceived:(NSString *)clientDevice
@@ -215,52 +340,77 @@
     });
 }
 
--(void)returnRead:(int)length fromSocket:(BluetoothSocket *)socket tag:(long)requestedTag
+- (void)readDataToLength:(NSUInteger)length fromSocket:(BluetoothSocket *)socket withTimeout:(NSTimeInterval)timeout tag:(long)tag
+{
+    [self _readDataToLength:socket.name length:length tag:tag tagLength:TAG_LENGTH timeout:timeoutMillis(timeout)];
+}
+
+- (void)writeData:(NSData *)data toSocket:(BluetoothSocket *)socket withTimeout:(NSTimeInterval)timeout tag:(long)tag
+{
+    int result = [self _writeDeviceBytes:socket.name data:data tag:tag timeout:timeoutMillis(timeout)];
+    // A held write completes later through didWriteData:tag:.
+    if (result != BluetoothWriteWouldBlock && [self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
+    {
+        [self.delegate socket:socket didWriteDataWithTag:tag];
+    }
+}
+
+- (void)didWriteData:(NSString *)device tag:(long long)tag
 {
-    NSData *readBuffer;
-    @synchronized(socket.receivedBuffer) {
-        unsigned char *bytes = (unsigned char *)[socket.receivedBuffer bytes];
-        if (!bytes)
+    dispatch_async(dispatch_get_main_queue(), ^{
+        BluetoothSocket *socket = [self.socketMap valueForKey:device];
+        if (socket != nil && [self.delegate respondsToSelector:@selector(socket:didWriteDataWithTag:)])
+        {
+            [self.delegate socket:socket didWriteDataWithTag:(long)tag];
+        }
+    });
+}
+
+- (void)didTimeOut:(NSString *)device tag:(long long)tag write:(BOOL)write
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        BluetoothSocket *socket = [self.socketMap valueForKey:device];
+        if (socket == nil)
         {
-            DEBUG_LOG("OOPS, NULL bytes from BluetoothSocket");
             return;
         }
-        long readTag = *(int *)bytes;
-        NSRange range = NSMakeRange(0, TAG_LENGTH);
-        if (readTag == requestedTag) {
-            // Then the data starts after the tag
-            [socket.receivedBuffer replaceBytesInRange:range withBytes:NULL length:0];
-            if ([socket.receivedBuffer length] < length) {
-                // No longer enough bytes for request - is this even possible?
-                DEBUG_LOG("TO Do - reset readQueue");
-                return;
-            }
+        if (write && [self.delegate respondsToSelector:@selector(socket:didTimeOutWriteWithTag:)])
+        {
+            [self.delegate socket:socket didTimeOutWriteWithTag:(long)tag];
         }
+        else if (!write && [self.delegate respondsToSelector:@selector(socket:didTimeOutReadWithTag:)])
+        {
+            [self.delegate socket:socket didTimeOutReadWithTag:(long)tag];
+        }
+    });
+}
 
-        range = NSMakeRange(0, length);
-//        DEBUG_LOG("substringing %d to %d expecting tag %lx found tag %lx", [socket.receivedBuffer length], length, requestedTag, readTag);
-        readBuffer = [socket.receivedBuffer subdataWithRange:range];
-        [socket.receivedBuffer replaceBytesInRange:range withBytes:NULL length:0];
-    }
-
-    if ([self.delegate respondsToSelector:@selector(socket:didReadData:withTag:)])
-    {
-        [self.delegate socket:socket didReadData:readBuffer withTag:requestedTag];
-    }
+- (void)didReadData:(NSData *)data fromDevice:(NSString *)device tag:(long long)tag
+{
+    // The Java side reuses the direct buffer for the next read, so take a
+    // copy before leaving the callback.
+    NSData *readData = [data copy];
+    dispatch_async(dispatch_get_main_queue(), ^{
+        BluetoothSocket *socket = [self.socketMap valueForKey:device];
+        if (socket != nil && [self.delegate respondsToSelector:@selector(socket:didReadData:withTag:)])
+        {
+            [self.delegate socket:socket didReadData:readData withTag:(long)tag];
+        }
+        [readData release];
+    });
 }
 
-- (void)didReceive:(NSString *)message fromDevice:(NSString *)device
+- (void)didReceiveChannelBytes:(NSData *)data fromDevice:(NSString *)device channel:(int)channel
 {
+    // Same buffer reuse as didReadData:fromDevice:tag:.
+    NSData *message = [data copy];
     dispatch_async(dispatch_get_main_queue(), ^{
         BluetoothSocket *socket = [self.socketMap valueForKey:device];
-        NSMutableData *rawData = [[GSMimeDocument decodeBase64FromString:message multipleChunks:YES] mutableCopy];
-        @synchronized(socket) {
-            [socket.receivedBuffer appendData:rawData];
-            while (![socket.readQueue isEmpty] && [socket.readQueue nextLength] <= [socket.receivedBuffer length]) {
-                long nextTag = [socket.readQueue nextTag];
-                [self returnRead:([socket.readQueue dequeue]) fromSocket:socket tag:nextTag];
-            }
+        if (socket != nil && [self.delegate respondsToSelector:@selector(socket:didReceiveData:onChannel:)])
+        {
+            [self.delegate socket:socket didReceiveData:message onChannel:channel];
         }
+        [message release];
     });
 }
 
@@ -280,6 +430,38 @@
 }
 
 
+- (void)didUpdateLinkTiming:(NSString *)device rtt:(long long)rttMicros jitter:(long long)jitterMicros clockOffset:(long long)offsetMicros
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        BluetoothSocket *socket = [self.socketMap valueForKey:device];
+        if (socket != nil && [self.delegate respondsToSelector:@selector(socket:didUpdateRTT:jitter:clockOffset:)])
+        {
+            [self.delegate socket:socket didUpdateRTT:rttMicros / 1e6 jitter:jitterMicros / 1e6 clockOffset:offsetMicros / 1e6];
+        }
+    });
+}
+
+- (void)didTick:(long long)tick
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        if ([self.delegate respondsToSelector:@selector(bluetoothDidTick:)])
+        {
+            [self.delegate bluetoothDidTick:tick];
+        }
+    });
+}
+
+- (void)didBecomeWritable:(NSString *)device
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        BluetoothSocket *socket = [self.socketMap valueForKey:device];
+        if (socket != nil && [self.delegate respondsToSelector:@selector(socketDidBecomeWritable:)])
+        {
+            [self.delegate socketDidBecomeWritable:socket];
+        }
+    });
+}
+
 - (void)resetBluetoothNeeded
 {
     dispatch_async(dispatch_get_main_queue(), ^{
@@ -1,5 +1,4 @@
 #import "BluetoothSocket.h"
-#import "GNUstepBase/GSMime.h"
 
 @implementation BluetoothSocket
 
@@ -10,8 +9,6 @@
     if ((self = [super init]) ) {
         _name = [name copy];
         _connection = connection;
-        _readQueue = [[BluetoothReadQueue alloc] init];
-        _receivedBuffer = [[NSMutableData alloc] init];
         [[_connection socketMap] setObject:self forKey:name];
     }
 
@@ -21,8 +18,6 @@
 - (void) dealloc
 {
     [[_connection socketMap] removeObjectForKey:self.name];
-    [_receivedBuffer release];
-    [_readQueue release];
     [_name release];
     [super dealloc];
 }
@@ -31,25 +26,23 @@
 - (void)writeData:(NSData *)data withTimeout:(NSTimeInterval)timeout tag:(long)tag
 {
 //    NSLog(@"packet is %@ device is %@", data, self.name);
-    NSMutableData *dataWithTag = [NSMutableData dataWithBytes:&tag length:sizeof(long)];
+    NSMutableData *dataWithTag = [NSMutableData dataWithCapacity:sizeof(long) + [data length]];
+    [dataWithTag appendBytes:&tag length:sizeof(long)];
     [dataWithTag appendData:data];
-    NSString *message = [GSMimeDocument encodeBase64ToString:dataWithTag];
-//    NSLog(@"%p message is %@ clientDevice is %@", self, message, self.name);
-    [_connection sendDeviceMessage:self withMessage:message withTag:tag];
+    [_connection writeData:dataWithTag toSocket:self withTimeout:timeout tag:tag];
 }
 
 
-- (void)readDataToLength:(NSUInteger)length withTimeout:(NSTimeInterval)timeout tag:(long)tag;
-// TODO timeout and input tag
+- (void)writeData:(NSData *)data onChannel:(int)channel withTimeout:(NSTimeInterval)timeout tag:(long)tag
 {
-    int needed = length;
-    if ([_receivedBuffer length] < needed) {
-        @synchronized(self) {
-            [_readQueue enqueue:needed withTimeout:timeout tag:tag];
-        }
-    } else {
-        [_connection returnRead:length fromSocket:self tag:tag];
-    }
+    // Channel messages keep their boundaries, so no tag goes on the wire.
+    [_connection sendDeviceData:self withData:data onChannel:channel withTag:tag];
+}
+
+
+- (void)readDataToLength:(NSUInteger)length withTimeout:(NSTimeInterval)timeout tag:(long)tag
+{
+    [_connection readDataToLength:length fromSocket:self withTimeout:timeout tag:tag];
 }
 
 // Only for clients